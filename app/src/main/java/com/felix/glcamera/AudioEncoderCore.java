@@ -0,0 +1,251 @@
+package com.felix.glcamera;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder.AudioSource;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Captures microphone audio with AudioRecord, encodes it to AAC, and feeds the result to
+ * a MuxerCoordinator shared with the video encoder.
+ * <p>
+ * Everything runs on a dedicated thread, started by start() and finished by stop(), so
+ * neither the GL thread nor the video encoder thread ever waits on audio.  PCM is read
+ * straight into the codec's input buffers, and BufferInfo is reused, so the capture loop
+ * doesn't allocate once it's running.
+ */
+public class AudioEncoderCore implements Runnable {
+    private static final String TAG = "AudioEncoderCore";
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";    // AAC
+    private static final int SAMPLE_RATE = 44100;                 // supported on all devices
+    private static final int CHANNEL_COUNT = 1;
+    private static final int BIT_RATE = 64000;
+    private static final int BYTES_PER_FRAME = 2 * CHANNEL_COUNT; // 16-bit PCM
+    private static final int TIMEOUT_USEC = 10000;
+    private static final long EOS_TIMEOUT_MS = 2000;        // max wait for EOS to come out
+    // stop() should never hang the caller, even if the codec does.
+    private static final long JOIN_TIMEOUT_MS = 2 * EOS_TIMEOUT_MS;
+
+    private final MuxerCoordinator mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private Thread mThread;
+    private volatile boolean mStopRequested;
+
+    // ----- accessed exclusively by the audio thread -----
+    private AudioRecord mAudioRecord;
+    private MediaCodec mEncoder;
+    private int mTrackIndex = -1;
+    private long mStartTimeUs;
+    private long mFramesRead;
+
+    /**
+     * @param muxer Muxer to send the encoded audio to.  It must be expecting one track
+     *              for us.
+     */
+    public AudioEncoderCore(MuxerCoordinator muxer) {
+        mMuxer = muxer;
+    }
+
+    /**
+     * Starts capturing on a new thread.  Returns immediately; if the microphone or the
+     * encoder can't be set up, the audio track is abandoned and the video is muxed alone.
+     */
+    public void start() {
+        mStopRequested = false;
+        mThread = new Thread(this, "AudioEncoder");
+        mThread.start();
+    }
+
+    /**
+     * Asks the capture thread to send end-of-stream and finish.  Does not wait.
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Waits for the capture thread to finish after stop().  Gives up after JOIN_TIMEOUT_MS;
+     * the thread then finishes the track whenever it gets there.
+     */
+    public void waitForStop() {
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mThread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException ie) {
+            // ignore
+        }
+        if (mThread.isAlive()) {
+            Log.w(TAG, "audio thread still running after " + JOIN_TIMEOUT_MS + " ms");
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            prepare();
+        } catch (Exception e) {
+            Log.w(TAG, "unable to start audio capture, recording without audio", e);
+            releaseCodecAndRecorder();
+            mMuxer.abandonTrack();
+            return;
+        }
+
+        try {
+            while (!mStopRequested) {
+                feedEncoder(false);
+                drainEncoder(0);
+            }
+            long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+            // Every input buffer may still be with the codec; drain until one comes free.
+            while (!feedEncoder(true)) {
+                if (System.currentTimeMillis() >= deadline) {
+                    Log.w(TAG, "no input buffer for end of stream");
+                    break;
+                }
+                drainEncoder(0);
+            }
+            drainEncoder(deadline);
+        } catch (Exception e) {
+            Log.e(TAG, "audio encoding failed", e);
+        } finally {
+            releaseCodecAndRecorder();
+            if (mTrackIndex >= 0) {
+                mMuxer.finishTrack();
+            } else {
+                mMuxer.abandonTrack();
+            }
+        }
+    }
+
+    private void prepare() throws IOException {
+        int channelConfig = CHANNEL_COUNT == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("unsupported audio parameters: " + minBufferSize);
+        }
+        // A few codec buffers' worth, so a hiccup on this thread doesn't lose audio.
+        mAudioRecord = new AudioRecord(AudioSource.CAMCORDER, SAMPLE_RATE, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 4);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            throw new IOException("AudioRecord not initialized (missing RECORD_AUDIO permission?)");
+        }
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, CHANNEL_COUNT);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBufferSize);
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+
+        mAudioRecord.startRecording();
+        // Same clock as SurfaceTexture timestamps, so audio and video line up.
+        mStartTimeUs = System.nanoTime() / 1000;
+        mFramesRead = 0;
+    }
+
+    /**
+     * Reads one buffer of PCM directly into a codec input buffer, or queues end-of-stream.
+     * Returns false if no input buffer came free in time.
+     */
+    private boolean feedEncoder(boolean endOfStream) {
+        int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if (index < 0) {
+            return false;
+        }
+        // Timestamps are derived from the number of samples read rather than the wall
+        // clock, so they advance evenly without drift.
+        long ptsUs = mStartTimeUs + mFramesRead * 1000000L / SAMPLE_RATE;
+        if (endOfStream) {
+            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+            mEncoder.queueInputBuffer(index, 0, 0, ptsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        ByteBuffer inputBuffer = mEncoder.getInputBuffer(index);
+        inputBuffer.clear();
+        int bytesRead = mAudioRecord.read(inputBuffer, inputBuffer.capacity());
+        if (bytesRead <= 0) {
+            if (VERBOSE) Log.d(TAG, "AudioRecord.read returned " + bytesRead);
+            mEncoder.queueInputBuffer(index, 0, 0, ptsUs, 0);
+            return true;
+        }
+        mFramesRead += bytesRead / BYTES_PER_FRAME;
+        mEncoder.queueInputBuffer(index, 0, bytesRead, ptsUs, 0);
+        return true;
+    }
+
+    /**
+     * Moves encoded output to the muxer.  With a deadline (a System.currentTimeMillis()
+     * value), keeps going until the EOS buffer comes out or the deadline passes; with 0,
+     * returns as soon as nothing is ready.
+     */
+    private void drainEncoder(long eosDeadlineMs) {
+        boolean endOfStream = eosDeadlineMs != 0;
+        while (true) {
+            int status = mEncoder.dequeueOutputBuffer(mBufferInfo, endOfStream ? TIMEOUT_USEC : 0);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                if (System.currentTimeMillis() >= eosDeadlineMs) {
+                    Log.w(TAG, "timed out waiting for end of stream");
+                    return;
+                }
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mTrackIndex >= 0) {
+                    throw new RuntimeException("format changed twice");
+                }
+                MediaFormat newFormat = mEncoder.getOutputFormat();
+                Log.d(TAG, "encoder output format changed: " + newFormat);
+                mTrackIndex = mMuxer.addTrack(newFormat);
+            } else if (status >= 0) {
+                ByteBuffer encodedData = mEncoder.getOutputBuffer(status);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already passed to the muxer with the format.
+                    mBufferInfo.size = 0;
+                }
+                if (mBufferInfo.size != 0 && mTrackIndex >= 0) {
+                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                }
+                mEncoder.releaseOutputBuffer(status, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void releaseCodecAndRecorder() {
+        if (mAudioRecord != null) {
+            if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                mAudioRecord.stop();
+            }
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mEncoder != null) {
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException ise) {
+                // never got started
+            }
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.felix.glcamera.camera.CapabilityCache;
 import com.felix.glcamera.util.CameraUtils;
 import com.felix.glcamera.widgets.AutoFitGLSurfaceView;
 import com.felix.glcamera.widgets.ProgressView;
@@ -61,6 +62,8 @@ public class CameraRecordActivity extends Activity implements View.OnClickListen
 
         findViewById(R.id.title_back).setOnClickListener(this);
 
+        // Camera capabilities are cached per build, so later launches needn't ask again.
+        CapabilityCache.getInstance().setFile(new File(getCacheDir(), "camera_caps"));
         //是否支持前置摄像头
         if (CameraUtils.isSupportFront()) {
             mCameraSwitch.setOnClickListener(this);
@@ -115,6 +118,18 @@ public class CameraRecordActivity extends Activity implements View.OnClickListen
                         case 5:
                             mRecorderHelper.changeFilterMode(FilterType.FILTER_EMBOSS);
                             break;
+                        case 6:
+                            mRecorderHelper.changeFilterMode(FilterType.FILTER_FILM);
+                            break;
+                        case 7:
+                            mRecorderHelper.changeFilterMode(FilterType.FILTER_SOFT);
+                            break;
+                        case 8:
+                            mRecorderHelper.changeFilterMode(FilterType.FILTER_LUT_TEAL_ORANGE);
+                            break;
+                        case 9:
+                            mRecorderHelper.changeFilterMode(FilterType.FILTER_LUT_FADED);
+                            break;
                     }
                 }
             }
@@ -1,42 +1,48 @@
 package com.felix.glcamera;
 
-import android.graphics.Bitmap;
+import android.Manifest;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
 import android.graphics.SurfaceTexture;
-import android.hardware.Camera;
-import android.hardware.Camera.CameraInfo;
-import android.hardware.Camera.Parameters;
-import android.hardware.Camera.Size;
-import android.media.AudioManager;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaPlayer;
-import android.media.ThumbnailUtils;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
 
+import com.felix.glcamera.camera.CameraController;
+import com.felix.glcamera.camera.CaptureSource;
+import com.felix.glcamera.camera.FrameAnalyzer;
+import com.felix.glcamera.camera.SizeSelector;
+import com.felix.glcamera.filter.Convolution;
+import com.felix.glcamera.filter.FilterGraph;
+import com.felix.glcamera.filter.FilterPass;
+import com.felix.glcamera.filter.LutCache;
+import com.felix.glcamera.filter.LutPass;
+import com.felix.glcamera.gles.FrameBuffer;
 import com.felix.glcamera.gles.FullFrameRect;
+import com.felix.glcamera.gles.GlState;
+import com.felix.glcamera.gles.GlUtil;
+import com.felix.glcamera.gles.PixelReader;
+import com.felix.glcamera.gles.ProgramCache;
 import com.felix.glcamera.gles.Texture2dProgram;
-import com.felix.glcamera.util.CameraUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import static android.hardware.Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
-import static android.hardware.Camera.Parameters.WHITE_BALANCE_AUTO;
 import static com.felix.glcamera.FilterType.FILTER_NONE;
-import static com.felix.glcamera.FilterType.FILTER_NORMAL;
 
 
 @SuppressWarnings("ALL")
@@ -46,19 +52,29 @@ public class CameraRecorderHelper {
     private static final int ERROR_CAMERA_EXISTED = 2;
     private static final int ERROR_CAMERA_PREVIEW = 3;
     private static final int ERROR_FILE_CREATE = 4;
-    private static final int MAX_FRAME_RATE = 30;
 
-    private Camera mCamera;
-    private Parameters mParameters;
+    private static final int TARGET_FRAME_RATE = 30;
+    // Most camera pixels per second to filter and encode: 1080p at 30fps.
+    private static final long PIXEL_BUDGET = 1920L * 1080 * 30;
+    private static final int SNAPSHOT_QUALITY = 90;
+    private static final int THUMBNAIL_SIZE = 320;          // longest edge
+    // Longest stopRecord() waits for the thumbnail to be written.
+    private static final long THUMBNAIL_WAIT_MS = 500;
+
+    private CameraController mCameraController;
     private VideoObject mVideoObject;
     private OnErrorListener mOnErrorListener;
     private OnPreviewListener mOnPreparedListener;
-    private int mFrameRate = 15;
-    private int mCameraId = CameraInfo.CAMERA_FACING_BACK;
+    private int mFrameRate = TARGET_FRAME_RATE;
+    private int mThumbnailKeyFrame;
+    private int mThumbnailSize = THUMBNAIL_SIZE;
+    private int mCameraId = CaptureSource.FACING_BACK;
     private boolean mStartPreview;
+    private boolean mSwitchingCamera;
     private boolean mStartPlay;
 
     private MediaRecorder mMediaRecorder;
+    private SnapshotWriter mSnapshotWriter;
 
     private GLSurfaceView mGLSurfaceView;
 
@@ -66,10 +82,22 @@ public class CameraRecorderHelper {
 
     public void setPreviewDisplay(GLSurfaceView glSurfaceView) {
         this.mGLSurfaceView = glSurfaceView;
-        mGLSurfaceView.setEGLContextClientVersion(2);
+        // GLES 3 where available, so frames can be passed to the encoder with fences.
+        ActivityManager activityManager = (ActivityManager) glSurfaceView.getContext()
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        boolean supportsGles3 = activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+        mGLSurfaceView.setEGLContextClientVersion(supportsGles3 ? 3 : 2);
+        // Linked shaders are kept across launches, so the first frame doesn't wait on compiles.
+        ProgramCache.getInstance().setBinaryDirectory(
+                new File(glSurfaceView.getContext().getCacheDir(), "programs"));
+        // Camera results come back to this (the UI) thread.
+        mCameraController = new CameraController(glSurfaceView.getContext(), mCaptureCallback);
         mRenderer = new CameraSurfaceRenderer();
         mGLSurfaceView.setRenderer(mRenderer);
         mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        // One recorder for the whole session, so its encoder thread and EGL context can be
+        // reused from one clip to the next.
+        mMediaRecorder = new MediaRecorder(mGLSurfaceView);
     }
 
 
@@ -86,17 +114,22 @@ public class CameraRecorderHelper {
         }
     }
 
+    private boolean hasRecordAudioPermission() {
+        return ContextCompat.checkSelfPermission(mGLSurfaceView.getContext(),
+                Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+    }
+
     private volatile boolean isRecording = false;
     private volatile boolean isPlaying = false;
 
     public void startRecord() {
         if (!isRecording) {
-            mMediaRecorder = new MediaRecorder(mGLSurfaceView);
             mMediaRecorder.setOutputFile(this.getVideoPath());
-            mMediaRecorder.setVideoEncodingBitRate(2 * 1024 * 1024);
-            mMediaRecorder.setVideoSize(mPreviewHeight, mPreviewWidth);
             mMediaRecorder.setFilterType(mRenderer.mCurrentFilter);
+            mMediaRecorder.setAudioEnabled(hasRecordAudioPermission());
+            mCameraController.setRecording(true);
             mMediaRecorder.start();
+            captureThumbnail();
             isRecording = true;
         }
     }
@@ -104,15 +137,90 @@ public class CameraRecorderHelper {
 
     public void stopRecord() {
         if (isRecording) {
+            mCameraController.setRecording(false);
             stopPreview();
-            if (mMediaRecorder != null) {
-                mMediaRecorder.stop();
-                mMediaRecorder = null;
+            // Get the thumbnail finished while the encoder finalizes the file.
+            final CountDownLatch thumbnailRead = new CountDownLatch(1);
+            mGLSurfaceView.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    mRenderer.finishThumbnail();
+                    thumbnailRead.countDown();
+                }
+            });
+            mMediaRecorder.stop();
+            if (mVideoObject != null) {
+                mVideoObject.setMetadata(mMediaRecorder.getMetadata());
             }
+            awaitThumbnail(thumbnailRead);
             isRecording = false;
         }
     }
 
+    /**
+     * Chooses the recorded frame the thumbnail is taken from: 0 for the first, n for the one
+     * that starts the nth key frame interval after it.  If the recording is shorter, its last
+     * frame is used.
+     */
+    public void setThumbnailFrame(int keyFrame) {
+        mThumbnailKeyFrame = keyFrame;
+    }
+
+    /**
+     * Sets the longest edge of the thumbnail, in pixels.
+     */
+    public void setThumbnailSize(int maxSize) {
+        mThumbnailSize = maxSize;
+    }
+
+    /**
+     * Has the renderer read the thumbnail back from the frame chosen with
+     * setThumbnailFrame(), as it's being recorded.
+     */
+    private void captureThumbnail() {
+        if (mVideoObject == null) {
+            return;
+        }
+        File file = new File(mVideoObject.getVideoThumbPath());
+        deleteFileIfExists(file);   // from an earlier take
+        final SnapshotRequest request = new SnapshotRequest(getSnapshotWriter(), file,
+                SnapshotWriter.Format.JPEG, mThumbnailSize, null);
+        final long offsetNanos = mThumbnailKeyFrame * mMediaRecorder.getIFrameInterval()
+                * 1000000000L;
+        mGLSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.captureThumbnail(request, offsetNanos);
+            }
+        });
+    }
+
+    private void awaitThumbnail(CountDownLatch thumbnailRead) {
+        try {
+            if (!thumbnailRead.await(THUMBNAIL_WAIT_MS, TimeUnit.MILLISECONDS)
+                    || !getSnapshotWriter().awaitWritten(THUMBNAIL_WAIT_MS)) {
+                Log.w(TAG, "thumbnail not written in time");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SnapshotWriter getSnapshotWriter() {
+        if (mSnapshotWriter == null) {
+            mSnapshotWriter = new SnapshotWriter();
+        }
+        return mSnapshotWriter;
+    }
+
+
+    /**
+     * Returns the time from the last startRecord() to its first encoded frame, in
+     * milliseconds, or -1 if not known.  Available once the recording has stopped.
+     */
+    public long getRecordStartLatencyMs() {
+        return mMediaRecorder.getStartLatencyMs();
+    }
 
     void setOnPreparedListener(OnPreviewListener preparedListener) {
         this.mOnPreparedListener = preparedListener;
@@ -123,55 +231,44 @@ public class CameraRecorderHelper {
     }
 
     boolean isFrontCamera() {
-        return this.mCameraId == 1;
+        return this.mCameraId == CaptureSource.FACING_FRONT;
     }
 
     private void switchCamera(int cameraId) {
         switch (cameraId) {
-            case CameraInfo.CAMERA_FACING_BACK:
-            case CameraInfo.CAMERA_FACING_FRONT:
+            case CaptureSource.FACING_BACK:
+            case CaptureSource.FACING_FRONT:
                 this.mCameraId = cameraId;
-                this.stopPreview();
-                this.startPreview();
+                if (this.mCameraController.isOpen() && this.mSurfaceTexture != null) {
+                    // Keep GL, the texture and the encoder; only the camera changes.  The
+                    // display holds the last frame until the new camera's arrive.
+                    this.mSwitchingCamera = true;
+                    this.mGLSurfaceView.queueEvent(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRenderer.beginCameraSwitch();
+                        }
+                    });
+                    this.mCameraController.switchCamera(cameraId);
+                } else {
+                    this.stopPreview();
+                    this.startPreview();
+                }
             default:
         }
     }
 
     void switchCamera() {
-        if (this.mCameraId == CameraInfo.CAMERA_FACING_BACK) {
-            this.switchCamera(CameraInfo.CAMERA_FACING_FRONT);
+        if (this.mCameraId == CaptureSource.FACING_BACK) {
+            this.switchCamera(CaptureSource.FACING_FRONT);
         } else {
-            this.switchCamera(CameraInfo.CAMERA_FACING_BACK);
+            this.switchCamera(CaptureSource.FACING_BACK);
         }
     }
 
 
     void toggleFlashMode() {
-        if (this.mParameters != null) {
-            try {
-                String flashMode;
-                if (!TextUtils.isEmpty(flashMode = this.mParameters.getFlashMode()) && !Parameters.FLASH_MODE_OFF.equals(flashMode)) {
-                    this.setFlashMode(Parameters.FLASH_MODE_OFF);
-                } else {
-                    this.setFlashMode(Parameters.FLASH_MODE_TORCH);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void setFlashMode(String flashMode) {
-        if (this.mParameters != null && this.mCamera != null) {
-            try {
-                if (Parameters.FLASH_MODE_TORCH.equals(flashMode) || Parameters.FLASH_MODE_OFF.equals(flashMode)) {
-                    this.mParameters.setFlashMode(flashMode);
-                    this.mCamera.setParameters(this.mParameters);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        this.mCameraController.setTorch(!this.mCameraController.isTorchOn());
     }
 
 
@@ -206,135 +303,55 @@ public class CameraRecorderHelper {
         }
     }
 
-    private boolean isSupported(List list, String target) {
-        return list != null && list.contains(target);
-    }
-
     private int mPreviewWidth = -1;
     private int mPreviewHeight = -1;
 
-    private void prepareCameraParameters() {
-        if (this.mParameters != null) {
-            //设置预览帧率
-            List<Integer> supportedFrameRates = this.mParameters.getSupportedPreviewFrameRates();
-            if (supportedFrameRates != null) {
-                if (supportedFrameRates.contains(MAX_FRAME_RATE)) {
-                    this.mFrameRate = MAX_FRAME_RATE;
-                } else {
-                    Collections.sort(supportedFrameRates);
-                    for (int i = supportedFrameRates.size() - 1; i >= 0; --i) {
-                        if (supportedFrameRates.get(i) <= MAX_FRAME_RATE) {
-                            this.mFrameRate = supportedFrameRates.get(i);
-                            break;
-                        }
-                    }
-                    if (this.mFrameRate == -1) {
-                        this.mFrameRate = supportedFrameRates.get(0);
-                    }
-                }
-            }
-            this.mParameters.setPreviewFrameRate(this.mFrameRate);
-            //设置预览尺寸
-            List<Size> supportedPreviewSizes = this.mParameters.getSupportedPreviewSizes();
-            int preferPreviewWidth = mGLSurfaceView.getHeight();
-            int preferPreviewHeight = mGLSurfaceView.getWidth();
-            Size previewSize = CameraUtils.chooseOptimalSize(supportedPreviewSizes, preferPreviewWidth, preferPreviewHeight);
-            this.mPreviewWidth = previewSize.width;
-            this.mPreviewHeight = previewSize.height;
-            this.mParameters.setPreviewSize(this.mPreviewWidth, this.mPreviewHeight);
-            if (isSupported(this.mParameters.getSupportedFocusModes(), FOCUS_MODE_CONTINUOUS_VIDEO)) {
-                this.mParameters.setFocusMode(FOCUS_MODE_CONTINUOUS_VIDEO);
-            }
-            if (isSupported(this.mParameters.getSupportedWhiteBalance(), WHITE_BALANCE_AUTO)) {
-                this.mParameters.setWhiteBalance(WHITE_BALANCE_AUTO);
-            }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-                if (this.mParameters.isVideoStabilizationSupported()) {
-                    this.mParameters.setVideoStabilization(true);
-                }
-            }
-            if (!CameraUtils.isDevice("GT-N7100", "GT-I9308", "GT-I9300")) {
-                this.mParameters.set("cam_mode", 1);
-                this.mParameters.set("cam-mode", 1);
-            }
-            if (!CameraUtils.isDevice("GT-I9100"))
-                this.mParameters.setRecordingHint(true);
-        }
+    public boolean isVideoExists() {
+        return mVideoObject != null && new File(mVideoObject.getVideoPath()).exists();
     }
 
-    private void retrieveMetaData() {
-        if (mVideoObject != null && !TextUtils.isEmpty(mVideoObject.getVideoPath()) && new File(mVideoObject.getVideoPath()).exists()) {
-            MediaMetadataRetriever retr = new MediaMetadataRetriever();
-            retr.setDataSource(mVideoObject.getVideoPath());
-            String sWidth = retr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-            String sHeight = retr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-            String sDuration = retr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            mVideoObject.setVideoWidth((int) parseFloat(sWidth));
-            mVideoObject.setVideoHeight((int) parseFloat(sHeight));
-            mVideoObject.setVideoDuration((int) parseFloat(sDuration));
+    /**
+     * Returns what was recorded about the video: size, frame counts, timestamps and bit
+     * rate.  Kept from the recording, or read from the file saved alongside it, so the video
+     * itself is never parsed.  Null if there's no video.
+     */
+    public VideoMetadata getVideoMetadata() {
+        if (mVideoObject == null) {
+            return null;
         }
-    }
-
-    private float parseFloat(String sValue) {
-        try {
-            return (int) Float.parseFloat(sValue);
-        } catch (Exception e) {
-            return 0;
+        VideoMetadata metadata = mVideoObject.getMetadata();
+        if (metadata == null) {
+            metadata = VideoMetadata.readFrom(
+                    VideoMetadata.getSidecarFile(new File(mVideoObject.getVideoPath())));
+            mVideoObject.setMetadata(metadata);
         }
+        return metadata;
     }
 
-
-    public boolean isVideoExists() {
-        return mVideoObject != null && new File(mVideoObject.getVideoPath()).exists();
-    }
-
+    /**
+     * Returns the duration in milliseconds.
+     */
     public int getVideoDuration() {
-        if (mVideoObject != null) {
-            int duration = mVideoObject.getVideoDuration();
-            if (duration != 0) {
-                return duration;
-            } else {
-                retrieveMetaData();
-                return mVideoObject.getVideoDuration();
-            }
-        }
-        return 0;
+        VideoMetadata metadata = getVideoMetadata();
+        return metadata != null ? (int) (metadata.getDurationUs() / 1000) : 0;
     }
 
     public int getVideoWidth() {
-        if (mVideoObject != null) {
-            int videoWidth = mVideoObject.getVideoWidth();
-            if (videoWidth != 0) {
-                return videoWidth;
-            } else {
-                retrieveMetaData();
-                return mVideoObject.getVideoWidth();
-            }
-        }
-        return 0;
+        VideoMetadata metadata = getVideoMetadata();
+        return metadata != null ? metadata.getWidth() : 0;
     }
 
     public int getVideoHeight() {
-        if (mVideoObject != null) {
-            int videoHeight = mVideoObject.getVideoHeight();
-            if (videoHeight != 0) {
-                return videoHeight;
-            } else {
-                retrieveMetaData();
-                return mVideoObject.getVideoHeight();
-            }
-        }
-        return 0;
+        VideoMetadata metadata = getVideoMetadata();
+        return metadata != null ? metadata.getHeight() : 0;
     }
 
-
+    /**
+     * Returns the thumbnail captured while recording, or null if there isn't one.
+     */
     public String getVideoThumbnail() {
-        if (mVideoObject != null) {
-            if (TextUtils.isEmpty(mVideoObject.getVideoThumbPath()) || !new File(mVideoObject.getVideoThumbPath()).exists()) {
-                if (new File(mVideoObject.getVideoPath()).exists() && createVideoThumbnail(mVideoObject.getVideoPath(), mVideoObject.getVideoThumbPath())) {
-                    return mVideoObject.getVideoThumbPath();
-                }
-            }
+        if (mVideoObject != null && new File(mVideoObject.getVideoThumbPath()).exists()) {
+            return mVideoObject.getVideoThumbPath();
         }
         return null;
     }
@@ -346,98 +363,53 @@ public class CameraRecorderHelper {
         return null;
     }
 
-    private boolean createVideoThumbnail(String videoPath, String videoThumbPath) {
-        if (TextUtils.isEmpty(videoThumbPath)) return false;
-        File file = new File(videoThumbPath);
-        if (file.exists()) {
-            return true;
-        }
-        Bitmap bitmap = null;
-        FileOutputStream fos = null;
-        try {
-            if (!file.getParentFile().exists()) {
-                boolean mkdirs = file.getParentFile().mkdirs();
-                if (!mkdirs) return false;
-            }
-            bitmap = ThumbnailUtils.createVideoThumbnail(videoPath, 3);
-            if (bitmap == null) return false;
-            fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (bitmap != null) {
-                bitmap.recycle();
-            }
-        }
-        return true;
-    }
-
-    private MediaPlayer mMediaPlayer;
+    private MoviePlayer mMoviePlayer;
+    private Surface mPlaybackSurface;       // the decoder's way into mSurfaceTexture
 
+    /**
+     * Loops the recorded video in the preview, through the current filter.
+     */
     public void startPlay() {
         if (!isPlaying) {
-            try {
-                if (mMediaPlayer == null) {
-                    mMediaPlayer = new MediaPlayer();
-                    mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                        @Override
-                        public void onPrepared(MediaPlayer mp) {
-                            if (!mMediaPlayer.isPlaying()) {
-                                mMediaPlayer.start();
-                            }
-                        }
-                    });
-                    mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                    if (mSurfaceTexture != null) {
-                        playWithSurfaceTexture(mSurfaceTexture);
-                    }
-                    this.mStartPlay = true;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+            this.mStartPlay = true;
+            if (mSurfaceTexture != null) {
+                playWithSurfaceTexture(mSurfaceTexture);
             }
             isPlaying = true;
         }
     }
 
+    /**
+     * Moves playback to the frame at the given time, in milliseconds from the start.
+     */
+    public void seekPlayback(long timeMs) {
+        if (mMoviePlayer != null) {
+            mMoviePlayer.seekTo(timeMs * 1000);
+        }
+    }
+
     public void stopPlay() {
         this.mStartPlay = false;
         this.isPlaying = false;
-        if (mMediaPlayer != null) {
-            mMediaPlayer.stop();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        if (mMoviePlayer != null) {
+            mMoviePlayer.release();
+            mMoviePlayer = null;
+        }
+        if (mPlaybackSurface != null) {
+            mPlaybackSurface.release();
+            mPlaybackSurface = null;
         }
     }
 
     public void startPreview() {
-        if (this.mCamera != null) {
+        if (this.mCameraController.isOpen()) {
             if (this.mOnErrorListener != null) {
                 this.mOnErrorListener.onError(ERROR_CAMERA_EXISTED, "camera already initialized");
             }
             return;
         }
-        if (this.mCameraId == CameraInfo.CAMERA_FACING_BACK) {
-            this.mCamera = Camera.open(CameraInfo.CAMERA_FACING_BACK);
-        } else {
-            this.mCamera = Camera.open(CameraInfo.CAMERA_FACING_FRONT);
-        }
-        if (mCamera == null) {
-            if (this.mOnErrorListener != null) {
-                this.mOnErrorListener.onError(ERROR_CAMERA_OPEN, "Unable to open camera");
-            }
-            return;
-        }
-        this.mCamera.setDisplayOrientation(90);
+        // Returns at once; the camera opens on the camera thread while we carry on.
+        this.mCameraController.open(this.mCameraId);
         if (this.mSurfaceTexture != null) {
             previewWithSurfaceTexture(this.mSurfaceTexture);
         }
@@ -457,79 +429,151 @@ public class CameraRecorderHelper {
     }
 
     private void playWithSurfaceTexture(SurfaceTexture st) {
-        try {
-            Surface surface = new Surface(mSurfaceTexture);
-            mMediaPlayer.setSurface(surface);
-            st.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
-                @Override
-                public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                    mGLSurfaceView.requestRender();
-                }
-            });
-            final int videoWidth = mVideoObject.getVideoWidth();
-            final int videoHeight = mVideoObject.getVideoHeight();
-            this.mGLSurfaceView.queueEvent(new Runnable() {
-                @Override
-                public void run() {
-                    mRenderer.setCameraPreviewSize(videoWidth, videoHeight);
-                }
-            });
-            mMediaPlayer.setDataSource(mVideoObject.getVideoPath());
-            mMediaPlayer.setLooping(true);
-            mMediaPlayer.prepareAsync();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        st.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                mGLSurfaceView.requestRender();
+            }
+        });
+        final int videoWidth = getVideoWidth();
+        final int videoHeight = getVideoHeight();
+        this.mGLSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.setCameraPreviewSize(videoWidth, videoHeight);
+            }
+        });
+        VideoMetadata metadata = getVideoMetadata();
+        mPlaybackSurface = new Surface(st);
+        mMoviePlayer = new MoviePlayer(new File(mVideoObject.getVideoPath()),
+                metadata != null ? metadata.getDurationUs() : 0);
+        mMoviePlayer.start(mPlaybackSurface);
     }
 
     private void previewWithSurfaceTexture(SurfaceTexture st) {
-        try {
-            this.mParameters = this.mCamera.getParameters();
-            this.prepareCameraParameters();
-            this.mCamera.setParameters(this.mParameters);
-            this.mGLSurfaceView.queueEvent(new Runnable() {
+        st.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                mGLSurfaceView.requestRender();
+            }
+        });
+        // The sensor is landscape, the view portrait.
+        SizeSelector.Request request = new SizeSelector.Request(mGLSurfaceView.getHeight(),
+                mGLSurfaceView.getWidth(), TARGET_FRAME_RATE, PIXEL_BUDGET,
+                VideoCodecSelector.getEncoderLimits(mMediaRecorder.getVideoEncoder()));
+        this.mCameraController.setPreviewTexture(st, request);
+    }
+
+    private final CaptureSource.Callback mCaptureCallback = new CaptureSource.Callback() {
+        @Override
+        public void onOpened() {
+        }
+
+        @Override
+        public void onPreviewStarted(final SizeSelector.Selection selection) {
+            mPreviewWidth = selection.mPreviewWidth;
+            mPreviewHeight = selection.mPreviewHeight;
+            mFrameRate = selection.getFrameRate();
+            final boolean switched = mSwitchingCamera;
+            mSwitchingCamera = false;
+            mGLSurfaceView.queueEvent(new Runnable() {
                 @Override
                 public void run() {
-                    mRenderer.setCameraPreviewSize(mPreviewWidth, mPreviewHeight);
-                }
-            });
-            st.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
-                @Override
-                public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                    mGLSurfaceView.requestRender();
+                    mRenderer.setCameraPreviewSize(selection.mPreviewWidth,
+                            selection.mPreviewHeight);
+                    mRenderer.setRecordingSize(selection.mRecordWidth, selection.mRecordHeight);
+                    if (switched) {
+                        mRenderer.onCameraSwitched();
+                    }
                 }
             });
-            this.mCamera.setPreviewTexture(st);
-            this.mCamera.startPreview();
 
-            if (this.mOnPreparedListener != null) {
-                this.mOnPreparedListener.onPreviewStarted(this.mPreviewWidth, this.mPreviewHeight);
+            // Now that the size is known, get the encoder ready so startRecord() is instant.
+            mMediaRecorder.setVideoFrameRate(mFrameRate);
+            mMediaRecorder.setVideoSize(selection.mRecordWidth, selection.mRecordHeight);
+            mMediaRecorder.prepare();
+
+            if (mOnPreparedListener != null) {
+                mOnPreparedListener.onPreviewStarted(mPreviewWidth, mPreviewHeight);
             }
+        }
 
-        } catch (IOException ioe) {
-            if (this.mOnErrorListener != null) {
-                this.mOnErrorListener.onError(ERROR_CAMERA_PREVIEW, "Unable to preview");
+        @Override
+        public void onError(int error, String message) {
+            if (mSwitchingCamera) {
+                mSwitchingCamera = false;
+                mGLSurfaceView.queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRenderer.cancelCameraSwitch();
+                    }
+                });
+            }
+            if (error == CaptureSource.ERROR_OPEN) {
+                stopPreview();
+            }
+            if (mOnErrorListener != null) {
+                mOnErrorListener.onError(error == CaptureSource.ERROR_OPEN
+                        ? ERROR_CAMERA_OPEN : ERROR_CAMERA_PREVIEW, message);
             }
         }
-    }
+    };
 
 
     public void stopPreview() {
         this.mStartPreview = false;
-        if (this.mCamera != null) {
-            try {
-                this.mCamera.stopPreview();
-                this.mCamera.setPreviewCallback(null);
-                this.mCamera.release();
-            } catch (Exception e) {
-                e.printStackTrace();
+        this.mSwitchingCamera = false;
+        this.mCameraController.close();
+    }
+
+    /**
+     * Sets something to look at preview frames on the CPU (barcodes, motion, brightness),
+     * or null for nothing.  Call before startPreview().  Frames that arrive while all
+     * workers are busy are dropped; see getAnalyzedFrameCount() and
+     * getDroppedAnalysisFrameCount().
+     */
+    public void setFrameAnalyzer(FrameAnalyzer analyzer, int workerCount) {
+        mCameraController.setFrameAnalyzer(analyzer, workerCount);
+    }
+
+    public long getAnalyzedFrameCount() {
+        return mCameraController.getAnalyzedFrameCount();
+    }
+
+    public long getDroppedAnalysisFrameCount() {
+        return mCameraController.getDroppedAnalysisFrameCount();
+    }
+
+    /**
+     * Saves the next filtered frame, as it would be recorded, without pausing the preview or
+     * a recording.  The pixels are read back asynchronously and written on a background
+     * thread; the listener hears about it on this (the UI) thread.
+     *
+     * @param maxSize Longest edge of the image; the frame is scaled down to fit.  0 for the
+     *                full video size.
+     */
+    public void takeSnapshot(File file, SnapshotWriter.Format format, int maxSize,
+            SnapshotWriter.Listener listener) {
+        final SnapshotRequest request = new SnapshotRequest(getSnapshotWriter(), file, format,
+                maxSize, listener);
+        mGLSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.takeSnapshot(request);
             }
-            this.mCamera = null;
-        }
+        });
+        mGLSurfaceView.requestRender();
     }
 
     public void release() {
         mSurfaceTexture = null;
+        mCameraController.setFrameAnalyzer(null, 0);
+        if (mSnapshotWriter != null) {
+            mSnapshotWriter.release();
+            mSnapshotWriter = null;
+        }
+        // The GLSurfaceView's EGL context is going away, and the encoder shares with it.
+        mMediaRecorder.release();
         this.mGLSurfaceView.queueEvent(new Runnable() {
             @Override
             public void run() {
@@ -561,9 +605,7 @@ public class CameraRecorderHelper {
         private String outputVideoThumbPath;
         private String outputVideoPath;
 
-        private int videoWidth;
-        private int videoHeight;
-        private int videoDuration;
+        private VideoMetadata metadata;
 
 
         VideoObject(String outputDirectory, String key) {
@@ -586,30 +628,57 @@ public class CameraRecorderHelper {
         }
 
 
-        int getVideoWidth() {
-            return videoWidth;
+        VideoMetadata getMetadata() {
+            return metadata;
         }
 
-        void setVideoWidth(int videoWidth) {
-            this.videoWidth = videoWidth;
+        void setMetadata(VideoMetadata metadata) {
+            this.metadata = metadata;
         }
+    }
 
-        int getVideoHeight() {
-            return videoHeight;
-        }
 
-        void setVideoHeight(int videoHeight) {
-            this.videoHeight = videoHeight;
+    /**
+     * A snapshot waiting for its frame, then for its pixels.
+     */
+    private static class SnapshotRequest implements PixelReader.Callback {
+        private final SnapshotWriter mWriter;
+        private final File mFile;
+        private final SnapshotWriter.Format mFormat;
+        private final int mMaxSize;
+        private final SnapshotWriter.Listener mListener;
+        private PixelReader mReader;
+
+        SnapshotRequest(SnapshotWriter writer, File file, SnapshotWriter.Format format,
+                int maxSize, SnapshotWriter.Listener listener) {
+            mWriter = writer;
+            mFile = file;
+            mFormat = format;
+            mMaxSize = maxSize;
+            mListener = listener;
         }
 
-        int getVideoDuration() {
-            return videoDuration;
+        /**
+         * Starts reading the frame back, scaled to fit mMaxSize.  Returns false if the reader
+         * is busy.
+         */
+        boolean read(PixelReader reader, FrameBuffer frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int longest = Math.max(width, height);
+            if (mMaxSize > 0 && longest > mMaxSize) {
+                width = Math.max(1, width * mMaxSize / longest);
+                height = Math.max(1, height * mMaxSize / longest);
+            }
+            mReader = reader;
+            return reader.read(frame.getTextureId(), width, height, this);
         }
 
-        void setVideoDuration(int videoDuration) {
-            this.videoDuration = videoDuration;
+        @Override
+        public void onPixelsRead(ByteBuffer rgba, int width, int height) {
+            mWriter.write(rgba, width, height, mReader.getBufferPool(), mFile, mFormat,
+                    SNAPSHOT_QUALITY, mListener);
         }
-
     }
 
 
@@ -618,7 +687,16 @@ public class CameraRecorderHelper {
         private static final int RECORDING_OFF = 0;
         private static final int RECORDING_ON = 1;
         private static final int RECORDING_RESUMED = 2;
-        private FullFrameRect mFullScreen;
+        // Two so we can render the next frame while the encoder copies the last one.
+        private static final int FRAME_BUFFER_COUNT = 2;
+        private static final int LUT_CACHE_BYTES = 4 * 1024 * 1024;    // four 64^3 tables
+        private static final int CROSSFADE_FRAMES = 8;  // from the frozen frame after a switch
+        private FilterGraph mFilterGraph;       // camera texture through the filter
+        private FullFrameRect mBlitScreen;      // filtered frame to the display
+        private final FrameBuffer[] mFrameBuffers = new FrameBuffer[FRAME_BUFFER_COUNT];
+        private int mNextFrameBuffer;
+        private int mSurfaceWidth;
+        private int mSurfaceHeight;
         private final float[] mTexMatrix = new float[16];
         private int mTextureId;
         private SurfaceTexture mSurfaceTexture;
@@ -627,9 +705,29 @@ public class CameraRecorderHelper {
         private boolean mIncomingSizeUpdated;
         private int mIncomingWidth;
         private int mIncomingHeight;
+        private int mRecordWidth;               // 0: the preview size, upright
+        private int mRecordHeight;
         private FilterType mCurrentFilter;
         private FilterType mNewFilter;
+        private int mPrewarmIndex;              // next FilterType to compile ahead of time
+        private LutCache mLutCache;
+        private LutPass mLutPass;               // in the current chain, if it's a LUT look
         private SurfaceHandler mSurfaceHandler;
+        private FilterGraph mFreezeGraph;       // blurs the frame frozen during a camera switch
+        private FrameBuffer mFreezeInput;
+        private FrameBuffer mFreezeBuffer;
+        private boolean mFrozen;                // mFreezeBuffer is on screen, or fading out
+        private long mSwitchStartNanos;         // 0 unless waiting for a switched camera
+        private boolean mSwitchStarted;         // new camera is previewing
+        private long mFrozenTimestamp;
+        private int mFadeFrame;
+        private PixelReader mPixelReader;
+        private SnapshotRequest mSnapshot;      // waiting for a frame to read back
+        private FrameBuffer mSnapshotBuffer;    // filtered into for snapshots when not recording
+        private SnapshotRequest mThumbnail;     // waiting for its frame to be recorded
+        private long mThumbnailOffsetNanos;     // from the first recorded frame
+        private long mFirstRecordedNanos;
+        private FrameBuffer mLastRecorded;
 
         CameraSurfaceRenderer() {
             mSurfaceHandler = new SurfaceHandler(Looper.getMainLooper());
@@ -658,45 +756,233 @@ public class CameraRecorderHelper {
                 mSurfaceTexture.release();
                 mSurfaceTexture = null;
             }
-            if (mFullScreen != null) {
-                mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
-                mFullScreen = null;             //  to be destroyed
+            if (mFilterGraph != null) {
+                mFilterGraph.release(false);    // assume the GLSurfaceView EGL context is about
+                mFilterGraph = null;            //  to be destroyed
+            }
+            if (mBlitScreen != null) {
+                mBlitScreen.release(false);
+                mBlitScreen = null;
+            }
+            if (mLutCache != null) {
+                mLutCache.release(false);
+                mLutCache = null;
+            }
+            if (mFreezeGraph != null) {
+                mFreezeGraph.release(false);
+                mFreezeGraph = null;
             }
+            if (mPixelReader != null) {
+                mPixelReader.release(false);
+                mPixelReader = null;
+            }
+            mSnapshot = mThumbnail = null;
+            releaseFreezeBuffers(false);
+            releaseFrameBuffers(false);
             mIncomingWidth = mIncomingHeight = -1;
         }
 
+        void takeSnapshot(SnapshotRequest request) {
+            mSnapshot = request;
+        }
+
+        /**
+         * Reads the thumbnail from the recording about to start, at the first frame at least
+         * the offset after its first.
+         */
+        void captureThumbnail(SnapshotRequest request, long offsetNanos) {
+            mThumbnail = request;
+            mThumbnailOffsetNanos = offsetNanos;
+            mFirstRecordedNanos = -1;
+            mLastRecorded = null;
+        }
+
+        /**
+         * The recording has stopped: falls back to its last frame if the thumbnail's never
+         * came, and hands the pixels over without waiting for another frame.
+         */
+        void finishThumbnail() {
+            if (mThumbnail != null && mLastRecorded != null
+                    && mThumbnail.read(mPixelReader, mLastRecorded)) {
+                GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            }
+            mThumbnail = null;
+            mLastRecorded = null;
+            if (mPixelReader != null) {
+                mPixelReader.finish(THUMBNAIL_WAIT_MS * 1000000);
+            }
+        }
+
+        private void onFrameRecorded(FrameBuffer frameBuffer, long timestampNanos) {
+            mLastRecorded = frameBuffer;
+            if (mFirstRecordedNanos < 0) {
+                mFirstRecordedNanos = timestampNanos;
+            }
+            if (mThumbnail != null
+                    && timestampNanos - mFirstRecordedNanos >= mThumbnailOffsetNanos
+                    && mThumbnail.read(mPixelReader, frameBuffer)) {
+                mThumbnail = null;
+                GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            }
+        }
+
         public void changeRecordingState(boolean isRecording) {
             mRecordingEnabled = isRecording;
         }
 
         private void updateFilter() {
-            FilterType.FilterInfo filterInfo = FilterType.getFilterInfo(mNewFilter);
-            Texture2dProgram.ProgramType programType = filterInfo.programType;
-            float[] kernel = filterInfo.kernel;
-            float colorAdj = filterInfo.colorAdj;
-            if (programType != mFullScreen.getProgram().getProgramType()) {
-                mFullScreen.changeProgram(new Texture2dProgram(programType));
-                mIncomingSizeUpdated = true;
-            }
-            if (kernel != null) {
-                mFullScreen.getProgram().setKernel(kernel, colorAdj);
+            // LUT looks all have the same passes, so going from one to another only swaps
+            // the table (see updateLut()).
+            if (mLutPass == null || FilterType.getLutAsset(mNewFilter) == null) {
+                List<FilterPass> passes = FilterType.createPasses(mNewFilter);
+                mLutPass = null;
+                for (FilterPass pass : passes) {
+                    if (pass instanceof LutPass) {
+                        mLutPass = (LutPass) pass;
+                    }
+                }
+                mFilterGraph.setPasses(passes);
             }
             mCurrentFilter = mNewFilter;
         }
 
+        /**
+         * Points the LUT pass at the current look's table, once it has loaded.
+         */
+        private void updateLut() {
+            mLutCache.uploadLoaded();
+            if (mLutPass != null) {
+                LutCache.Lut lut = mLutCache.get(FilterType.getLutAsset(mCurrentFilter));
+                if (lut != null) {
+                    mLutPass.setLut(lut.mTextureId, lut.mSize);
+                } else {
+                    mLutPass.setLut(0, 0);
+                }
+            }
+        }
+
+        /**
+         * Freezes the display on a blurred copy of the last frame, until the next camera's
+         * frames arrive.  Called when a camera switch starts.
+         */
+        void beginCameraSwitch() {
+            mSwitchStartNanos = System.nanoTime();
+            mSwitchStarted = false;
+            if (mIncomingWidth <= 0 || mSurfaceWidth <= 0) {
+                return;     // nothing on screen to freeze
+            }
+            if (mFreezeBuffer == null || mFreezeBuffer.getWidth() != mSurfaceWidth
+                    || mFreezeBuffer.getHeight() != mSurfaceHeight) {
+                releaseFreezeBuffers(true);
+                mFreezeInput = new FrameBuffer(mSurfaceWidth, mSurfaceHeight);
+                mFreezeBuffer = new FrameBuffer(mSurfaceWidth, mSurfaceHeight);
+            }
+            if (mFreezeGraph == null) {
+                mFreezeGraph = new FilterGraph(false);
+                mFreezeGraph.setPasses(Convolution.pyramidBlur(3, 2f));
+            }
+            // The texture still holds the old camera's last frame.
+            mFilterGraph.draw(mTextureId, mTexMatrix, mFreezeInput, mSurfaceWidth, mSurfaceHeight);
+            mFreezeGraph.setInputSize(mSurfaceWidth, mSurfaceHeight);
+            mFreezeGraph.draw(mFreezeInput.getTextureId(), GlUtil.IDENTITY_MATRIX, mFreezeBuffer,
+                    mSurfaceWidth, mSurfaceHeight);
+            GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            mFrozen = true;
+            mFadeFrame = 0;
+            mGLSurfaceView.requestRender();
+        }
+
+        /**
+         * The new camera is previewing: the next frame that isn't the one latched now is its
+         * first.
+         */
+        void onCameraSwitched() {
+            if (mSwitchStartNanos != 0) {
+                mSwitchStarted = true;
+                mFrozenTimestamp = mSurfaceTexture.getTimestamp();
+            }
+        }
+
+        void cancelCameraSwitch() {
+            mSwitchStartNanos = 0;
+            mFrozen = false;
+        }
+
+        private void releaseFreezeBuffers(boolean doEglCleanup) {
+            if (mFreezeInput != null) {
+                mFreezeInput.release(doEglCleanup);
+                mFreezeInput = null;
+            }
+            if (mFreezeBuffer != null) {
+                mFreezeBuffer.release(doEglCleanup);
+                mFreezeBuffer = null;
+            }
+        }
+
+        /**
+         * Draws the frozen frame over the display with the given opacity.
+         */
+        private void drawFrozen(float alpha) {
+            if (alpha < 1f) {
+                GLES20.glEnable(GLES20.GL_BLEND);
+                GLES20.glBlendColor(0f, 0f, 0f, alpha);
+                GLES20.glBlendFunc(GLES20.GL_CONSTANT_ALPHA, GLES20.GL_ONE_MINUS_CONSTANT_ALPHA);
+            }
+            mBlitScreen.drawFrame(mFreezeBuffer.getTextureId(), GlUtil.IDENTITY_MATRIX);
+            if (alpha < 1f) {
+                GLES20.glDisable(GLES20.GL_BLEND);
+            }
+        }
+
         void setCameraPreviewSize(int width, int height) {
             mIncomingWidth = width;
             mIncomingHeight = height;
             mIncomingSizeUpdated = true;
         }
 
+        /**
+         * Sets the size to record at, which the encoder may need a little smaller than the
+         * preview.
+         */
+        void setRecordingSize(int width, int height) {
+            mRecordWidth = width;
+            mRecordHeight = height;
+        }
+
         private boolean isPrepared = false;
 
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            // New context, new share group: programs from the old one are gone.
+            ProgramCache.getInstance().onContextLost();
+            GlState.get().onContextChanged();
             this.mRecordingStatus = RECORDING_OFF;
-            this.mFullScreen = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
-            this.mTextureId = this.mFullScreen.createTextureObject();
+            this.mFilterGraph = new FilterGraph(true);
+            this.mPrewarmIndex = 0;
+            if (mLutCache != null) {
+                mLutCache.release(false);      // belonged to the old context
+            }
+            this.mLutCache = new LutCache(mGLSurfaceView.getContext().getAssets(), LUT_CACHE_BYTES);
+            this.mLutPass = null;
+            this.mCurrentFilter = FILTER_NONE;
+            // The freeze objects went with the old context.
+            this.mFreezeGraph = null;
+            this.mFreezeInput = this.mFreezeBuffer = null;
+            this.mFrozen = false;
+            this.mSwitchStartNanos = 0;
+            if (mPixelReader != null) {
+                mPixelReader.release(false);
+            }
+            this.mPixelReader = new PixelReader();
+            // Start decoding the tables now, so the first switch to a look is instant.
+            for (FilterType filterType : FilterType.values()) {
+                String asset = FilterType.getLutAsset(filterType);
+                if (asset != null) {
+                    mLutCache.get(asset);
+                }
+            }
+            this.mBlitScreen = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+            this.mTextureId = GlUtil.createExternalTexture();
             this.mSurfaceTexture = new SurfaceTexture(mTextureId);
             this.isPrepared = true;
             this.mSurfaceHandler.sendMessage(mSurfaceHandler.obtainMessage(SurfaceHandler.MSG_SET_SURFACE_TEXTURE, this.mSurfaceTexture));
@@ -705,39 +991,171 @@ public class CameraRecorderHelper {
 
         @Override
         public void onSurfaceChanged(GL10 gl, int width, int height) {
-
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            GLES20.glViewport(0, 0, width, height);
         }
 
 
         @Override
         public void onDrawFrame(GL10 gl) {
             mSurfaceTexture.updateTexImage();
+            // Hand over snapshot pixels whose copy finished since the last frame.
+            mPixelReader.poll();
 
             if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
                 return;
             }
 
-            if (isPlaying) {
-                mNewFilter = FILTER_NORMAL;
+            if (mSwitchStartNanos != 0) {
+                if (!mSwitchStarted || mSurfaceTexture.getTimestamp() == mFrozenTimestamp) {
+                    // Still waiting for the new camera.
+                    if (mFrozen) {
+                        drawFrozen(1f);
+                        return;
+                    }
+                } else {
+                    Log.d(TAG, "camera switch: first frame after "
+                            + (System.nanoTime() - mSwitchStartNanos) / 1000000 + " ms");
+                    mSwitchStartNanos = 0;
+                }
             }
 
             if (mCurrentFilter != mNewFilter) {
                 updateFilter();
             }
+            updateLut();
 
             if (mIncomingSizeUpdated) {
-                mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
+                mFilterGraph.setInputSize(mIncomingWidth, mIncomingHeight);
                 mIncomingSizeUpdated = false;
             }
 
             mSurfaceTexture.getTransformMatrix(mTexMatrix);
-            mFullScreen.drawFrame(mTextureId, mTexMatrix);
+            FrameBuffer frameBuffer = isRecording ? obtainFrameBuffer() : null;
+            boolean encode = frameBuffer != null;
+            if (frameBuffer == null && mSnapshot != null && mPixelReader.hasFreeSlot()) {
+                // Filter into a buffer for once, so there's a frame to read back.
+                frameBuffer = obtainSnapshotBuffer();
+            }
+            if (frameBuffer == null) {
+                // Not recording, or the encoder still holds both buffers (in which case the
+                // frame is dropped from the recording): just filter straight to the display.
+                mFilterGraph.draw(mTextureId, mTexMatrix, null, mSurfaceWidth, mSurfaceHeight);
+            } else {
+                // Filter once into the buffer, then copy the result to the display and let the
+                // encoder copy it to its input surface.
+                mFilterGraph.draw(mTextureId, mTexMatrix, frameBuffer,
+                        frameBuffer.getWidth(), frameBuffer.getHeight());
+                GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+                mBlitScreen.drawFrame(frameBuffer.getTextureId(), GlUtil.IDENTITY_MATRIX);
+                if (mSnapshot != null) {
+                    if (mSnapshot.read(mPixelReader, frameBuffer)) {
+                        mSnapshot = null;
+                    }
+                    GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+                }
+                if (encode) {
+                    long timestamp = mSurfaceTexture.getTimestamp();
+                    if (mMediaRecorder.onFrameAvailable(frameBuffer, timestamp)) {
+                        onFrameRecorded(frameBuffer, timestamp);
+                    }
+                }
+            }
+
+            if (mFrozen && mSwitchStartNanos == 0) {
+                // Crossfade from the frozen frame to the new camera.
+                mFadeFrame++;
+                drawFrozen(1f - (float) mFadeFrame / (CROSSFADE_FRAMES + 1));
+                if (mFadeFrame == CROSSFADE_FRAMES) {
+                    mFrozen = false;
+                }
+            }
+
+            prewarmNextFilter();
+        }
+
+        /**
+         * Once the preview is up, gets one filter's programs into the ProgramCache per frame,
+         * so switching filters later doesn't stall on compiling.
+         */
+        private void prewarmNextFilter() {
+            FilterType[] filters = FilterType.values();
+            if (mPrewarmIndex < filters.length) {
+                mFilterGraph.prewarm(FilterType.createPasses(filters[mPrewarmIndex++]));
+            }
+        }
+
+        /**
+         * Returns a buffer the encoder isn't holding, creating the buffers at the video size
+         * if needed, or null if both are still in use.
+         */
+        private FrameBuffer obtainFrameBuffer() {
+            int width = getVideoWidth();
+            int height = getVideoHeight();
+            if (mFrameBuffers[0] == null || mFrameBuffers[0].getWidth() != width
+                    || mFrameBuffers[0].getHeight() != height) {
+                if (mFrameBuffers[0] != null && (mFrameBuffers[0].isInUse() || mFrameBuffers[1].isInUse())) {
+                    return null;    // resize once the encoder lets go of the old ones
+                }
+                releaseFrameBuffers(true);
+                for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+                    mFrameBuffers[i] = new FrameBuffer(width, height);
+                }
+                mNextFrameBuffer = 0;
+            }
+            // Alternate when we can, so we don't render into the buffer the encoder has only
+            // just finished reading.
+            for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+                int index = (mNextFrameBuffer + i) % FRAME_BUFFER_COUNT;
+                if (!mFrameBuffers[index].isInUse()) {
+                    mNextFrameBuffer = (index + 1) % FRAME_BUFFER_COUNT;
+                    return mFrameBuffers[index];
+                }
+            }
+            return null;
+        }
 
-            if (isRecording) {
-                if (mMediaRecorder != null) {
-                    mMediaRecorder.onFrameAvailable(mTextureId, mSurfaceTexture);
+        /**
+         * Returns the buffer frames are filtered into for snapshots while not recording.  It's
+         * kept for the next snapshot until the video size changes.
+         */
+        private FrameBuffer obtainSnapshotBuffer() {
+            int width = getVideoWidth();
+            int height = getVideoHeight();
+            if (mSnapshotBuffer != null && (mSnapshotBuffer.getWidth() != width
+                    || mSnapshotBuffer.getHeight() != height)) {
+                mSnapshotBuffer.release(true);
+                mSnapshotBuffer = null;
+            }
+            if (mSnapshotBuffer == null) {
+                mSnapshotBuffer = new FrameBuffer(width, height);
+            }
+            return mSnapshotBuffer;
+        }
+
+        // The camera delivers landscape frames that the texture matrix rotates upright, so the
+        // video size is the preview size swapped, unless the encoder needed it trimmed.
+        private int getVideoWidth() {
+            return mRecordWidth > 0 ? mRecordWidth : mIncomingHeight;
+        }
+
+        private int getVideoHeight() {
+            return mRecordHeight > 0 ? mRecordHeight : mIncomingWidth;
+        }
+
+        private void releaseFrameBuffers(boolean doEglCleanup) {
+            mLastRecorded = null;
+            for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+                if (mFrameBuffers[i] != null) {
+                    mFrameBuffers[i].release(doEglCleanup);
+                    mFrameBuffers[i] = null;
                 }
             }
+            if (mSnapshotBuffer != null) {
+                mSnapshotBuffer.release(doEglCleanup);
+                mSnapshotBuffer = null;
+            }
         }
     }
 
@@ -1,73 +1,99 @@
 package com.felix.glcamera;
 
-import com.felix.glcamera.gles.Texture2dProgram;
+import com.felix.glcamera.filter.ColorMatrixPass;
+import com.felix.glcamera.filter.Convolution;
+import com.felix.glcamera.filter.FilterPass;
+import com.felix.glcamera.filter.KernelPass;
+import com.felix.glcamera.filter.LutPass;
+import com.felix.glcamera.filter.VignettePass;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Felix on 2018/6/11 0011.
  */
 public enum FilterType {
-    FILTER_NONE, FILTER_NORMAL, FILTER_BLACK_WHITE, FILTER_BLUR, FILTER_SHARPEN, FILTER_EDGE_DETECT, FILTER_EMBOSS;
-
-    public static class FilterInfo {
-        public Texture2dProgram.ProgramType programType;
-        public float[] kernel;
-        public float colorAdj;
+    FILTER_NONE, FILTER_NORMAL, FILTER_BLACK_WHITE, FILTER_BLUR, FILTER_SHARPEN, FILTER_EDGE_DETECT, FILTER_EMBOSS, FILTER_FILM, FILTER_SOFT,
+    FILTER_LUT_TEAL_ORANGE, FILTER_LUT_FADED;
 
-        public FilterInfo(Texture2dProgram.ProgramType programType, float[] kernel, float colorAdj) {
-            this.programType = programType;
-            this.kernel = kernel;
-            this.colorAdj = colorAdj;
-        }
-    }
-
-    public static FilterInfo getFilterInfo(FilterType filterType) {
-        Texture2dProgram.ProgramType programType;
-        float[] kernel = null;
-        float colorAdj = 0.0f;
+    /**
+     * Returns the chain of passes that implements the filter, for use with FilterGraph.
+     * FILTER_NONE and FILTER_NORMAL have no passes; the graph just copies the frame.
+     */
+    public static List<FilterPass> createPasses(FilterType filterType) {
+        List<FilterPass> passes = new ArrayList<FilterPass>();
         switch (filterType) {
+            case FILTER_NONE:
             case FILTER_NORMAL:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
                 break;
             case FILTER_BLACK_WHITE:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_BW;
+                passes.add(ColorMatrixPass.grayscale());
                 break;
             case FILTER_BLUR:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[]{
-                        1f / 16f, 2f / 16f, 1f / 16f,
-                        2f / 16f, 4f / 16f, 2f / 16f,
-                        1f / 16f, 2f / 16f, 1f / 16f};
+                // 13x13 Gaussian as two passes of 7 bilinear fetches each.
+                passes.addAll(Convolution.gaussianBlur(6, 3f));
                 break;
             case FILTER_SHARPEN:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[]{
-                        0f, -1f, 0f,
-                        -1f, 5f, -1f,
-                        0f, -1f, 0f};
+                passes.add(new KernelPass(SHARPEN_KERNEL, 0f));
                 break;
             case FILTER_EDGE_DETECT:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[]{
+                passes.add(new KernelPass(new float[]{
                         -1f, -1f, -1f,
                         -1f, 8f, -1f,
-                        -1f, -1f, -1f};
+                        -1f, -1f, -1f}, 0f));
                 break;
             case FILTER_EMBOSS:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[]{
+                passes.add(new KernelPass(new float[]{
                         2f, 0f, 0f,
                         0f, -1f, 0f,
-                        0f, 0f, -1f};
-                colorAdj = 0.5f;
+                        0f, 0f, -1f}, 0.5f));
                 break;
-            case FILTER_NONE:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+            case FILTER_FILM:
+                // Warm, slightly crushed grade, then sharpen, then vignette.  The grade
+                // runs in its own stage; the vignette is fused into the sharpen shader.
+                passes.add(new ColorMatrixPass(new float[]{
+                        1.1f, 0f, 0f, 0f,
+                        0f, 1.05f, 0f, 0f,
+                        0f, 0f, 0.95f, 0f,
+                        0f, 0f, 0f, 1f}, new float[]{-0.03f, -0.02f, 0f, 0f}));
+                passes.add(new KernelPass(SHARPEN_KERNEL, 0f));
+                passes.add(new VignettePass(0.6f, 0.35f));
+                break;
+            case FILTER_SOFT:
+                // Wide blur at a fixed cost per pixel, then a gentle vignette.
+                passes.addAll(Convolution.pyramidBlur(3, 1.5f));
+                passes.add(new VignettePass(0.3f, 0.45f));
+                break;
+            case FILTER_LUT_TEAL_ORANGE:
+            case FILTER_LUT_FADED:
+                // The table itself comes from getLutAsset(), via a LutCache.
+                passes.add(new LutPass(1f));
                 break;
             default:
                 throw new RuntimeException("Unknown filter mode ");
         }
-        return new FilterInfo(programType, kernel, colorAdj);
+        return passes;
     }
 
+    /**
+     * Returns the asset with the lookup table for a LUT filter's LutPass, or null if the
+     * filter doesn't use one.  All LUT filters have the same passes, so switching between
+     * them only needs LutPass.setLut().
+     */
+    public static String getLutAsset(FilterType filterType) {
+        switch (filterType) {
+            case FILTER_LUT_TEAL_ORANGE:
+                return "luts/teal_orange.png";
+            case FILTER_LUT_FADED:
+                return "luts/faded.png";
+            default:
+                return null;
+        }
+    }
 
+    private static final float[] SHARPEN_KERNEL = {
+            0f, -1f, 0f,
+            -1f, 5f, -1f,
+            0f, -1f, 0f};
 }
@@ -0,0 +1,104 @@
+package com.felix.glcamera;
+
+import com.felix.glcamera.gles.FrameBuffer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The per-frame path from the GL thread to the encoder thread: a FrameRing, plus a flag
+ * so the encoder thread is only woken when the ring goes from idle to busy.
+ * <p>
+ * Neither side takes a lock or allocates.  The GL work, and how the consumer thread gets
+ * woken, are up to the Callback.
+ */
+public class FrameHandoff {
+
+    /**
+     * Does the parts of the handoff that need GL or a Looper.
+     */
+    public interface Callback {
+        /**
+         * Producer thread: the buffer is about to be handed to the consumer.
+         */
+        void onHandOff(FrameBuffer frameBuffer);
+
+        /**
+         * Producer thread: arrange for drain() to be called on the consumer thread.
+         */
+        void scheduleDrain();
+
+        /**
+         * Consumer thread: encode the frame.  The slot is recycled once this returns.
+         */
+        void onFrame(FrameRing.Slot slot);
+    }
+
+    private final FrameRing mRing;
+    private final Callback mCallback;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    public FrameHandoff(int capacity, Callback callback) {
+        mRing = new FrameRing(capacity);
+        mCallback = callback;
+    }
+
+    /**
+     * Producer: hands the frame off, or drops it if the consumer is too far behind.
+     *
+     * @return true if the frame was accepted.
+     */
+    public boolean offer(FrameBuffer frameBuffer, int textureId, float[] transform,
+            long timestampNanos) {
+        FrameRing.Slot slot = mRing.acquire();
+        if (slot == null) {
+            return false;
+        }
+        mCallback.onHandOff(frameBuffer);
+        System.arraycopy(transform, 0, slot.transform, 0, slot.transform.length);
+        slot.timestampNanos = timestampNanos;
+        slot.textureId = textureId;
+        slot.frameBuffer = frameBuffer;
+        mRing.publish();
+
+        // Only wake the consumer if it isn't already going to look at the ring.
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mCallback.scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Consumer: passes every frame published so far to Callback#onFrame().
+     */
+    public void drain() {
+        // Clear the flag first: anything published after this point schedules a new pass.
+        mDrainScheduled.set(false);
+        FrameRing.Slot slot;
+        while ((slot = mRing.peek()) != null) {
+            mCallback.onFrame(slot);
+            slot.frameBuffer = null;
+            mRing.release();
+        }
+    }
+
+    /**
+     * Consumer: gives every frame still in the ring back to the producer without encoding
+     * it, and forgets any pending wakeup.
+     */
+    public void discardPending() {
+        FrameRing.Slot slot;
+        while ((slot = mRing.peek()) != null) {
+            slot.frameBuffer.discard();
+            slot.frameBuffer = null;
+            mRing.release();
+        }
+        mDrainScheduled.set(false);
+    }
+
+    /**
+     * Returns the number of frames dropped because the consumer fell behind.
+     */
+    public long getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+}
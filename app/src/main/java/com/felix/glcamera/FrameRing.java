@@ -0,0 +1,116 @@
+package com.felix.glcamera;
+
+import com.felix.glcamera.gles.FrameBuffer;
+
+/**
+ * Fixed-capacity ring of frame slots, used to hand frames from the GL thread to the
+ * encoder thread without allocating.
+ * <p>
+ * Exactly one thread may produce (acquire / publish) and exactly one thread may consume
+ * (peek / release).  All slots are allocated up front and recycled, so nothing is created
+ * per frame.  If the consumer falls behind and the ring is full, the producer drops the
+ * frame rather than waiting; see getDroppedCount().
+ */
+public class FrameRing {
+
+    /**
+     * One frame's worth of state.  The arrays are owned by the ring and reused.
+     */
+    public static class Slot {
+        public final float[] transform = new float[16];
+        public long timestampNanos;
+        public int textureId;
+        public FrameBuffer frameBuffer;     // set when the texture is an offscreen render
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+
+    // mTail is only written by the producer, mHead only by the consumer.  Both are
+    // free-running counters; the slot index is the counter masked by the capacity.
+    private volatile long mHead;
+    private volatile long mTail;
+    private volatile long mDropped;
+
+    /**
+     * @param capacity Number of slots.  Must be a power of two.
+     */
+    public FrameRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mSlots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the number of slots.
+     */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Producer: returns the next free slot for writing, or null if the ring is full.  In
+     * that case the frame is counted as dropped.  The slot isn't visible to the consumer
+     * until publish() is called.
+     */
+    public Slot acquire() {
+        long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            mDropped++;     // only the producer writes this
+            return null;
+        }
+        return mSlots[(int) (tail & mMask)];
+    }
+
+    /**
+     * Producer: makes the slot returned by the last acquire() visible to the consumer.
+     */
+    public void publish() {
+        mTail = mTail + 1;
+    }
+
+    /**
+     * Consumer: returns the oldest published slot, or null if the ring is empty.  The slot
+     * stays valid until release() is called.
+     */
+    public Slot peek() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        return mSlots[(int) (head & mMask)];
+    }
+
+    /**
+     * Consumer: hands the slot returned by the last peek() back to the producer.
+     */
+    public void release() {
+        mHead = mHead + 1;
+    }
+
+    /**
+     * Consumer: discards everything that has been published so far.
+     */
+    public void clear() {
+        mHead = mTail;
+    }
+
+    /**
+     * Returns the number of published frames not yet released.
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * Returns the number of frames dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -13,4 +13,6 @@ public interface IMediaRecorder {
 
 
     void stop();
+
+    void release();
 }
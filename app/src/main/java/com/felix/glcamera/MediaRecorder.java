@@ -1,11 +1,14 @@
 package com.felix.glcamera;
 
-import android.graphics.SurfaceTexture;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaFormat;
 import android.opengl.EGL14;
 import android.opengl.EGLContext;
 import android.opengl.GLSurfaceView;
 
 import com.felix.glcamera.TextureMovieEncoder.EncoderConfig;
+import com.felix.glcamera.gles.FrameBuffer;
 
 import java.io.File;
 
@@ -17,10 +20,14 @@ public class MediaRecorder implements IMediaRecorder {
     private TextureMovieEncoder mVideoEncoder;
     private GLSurfaceView mGLSurfaceView;
     private String mOutputFile;
-    private int mBitRate;
+    private int mBitRate;           // 0: chosen from the size and frame rate
+    private int mFrameRate = EncoderConfig.DEFAULT_FRAME_RATE;
+    private int mIFrameInterval = EncoderConfig.DEFAULT_IFRAME_INTERVAL;
+    private String mMimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
     private int mVideoWidth;
     private int mVideoHeight;
     private FilterType mFilterType;
+    private boolean mRecordAudio;
 
     public MediaRecorder(GLSurfaceView gLSurfaceView) {
         this.mGLSurfaceView = gLSurfaceView;
@@ -32,16 +39,53 @@ public class MediaRecorder implements IMediaRecorder {
         this.mOutputFile = outputFile;
     }
 
+    /**
+     * Sets the bit rate.  If never set, one is picked to suit the video size and frame rate.
+     */
     public void setVideoEncodingBitRate(int bitRate) {
         this.mBitRate = bitRate;
     }
 
+    public void setVideoFrameRate(int frameRate) {
+        this.mFrameRate = frameRate;
+    }
+
+    /**
+     * Sets the time between key frames, in seconds.
+     */
+    public void setIFrameInterval(int iFrameInterval) {
+        this.mIFrameInterval = iFrameInterval;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    /**
+     * Sets the video codec, MediaFormat.MIMETYPE_VIDEO_AVC (the default) or
+     * MIMETYPE_VIDEO_HEVC.  HEVC falls back to AVC on devices that can't encode it.
+     */
+    public void setVideoEncoder(String mimeType) {
+        this.mMimeType = mimeType;
+    }
+
+    public String getVideoEncoder() {
+        return mMimeType;
+    }
+
     @Override
     public void setVideoSize(int width, int height) {
         this.mVideoWidth = width;
         this.mVideoHeight = height;
     }
 
+    /**
+     * Enables microphone capture alongside the video.
+     */
+    public void setAudioEnabled(boolean recordAudio) {
+        this.mRecordAudio = recordAudio;
+    }
+
     public void setFilterType(FilterType filterType) {
         this.mFilterType = filterType;
     }
@@ -50,27 +94,95 @@ public class MediaRecorder implements IMediaRecorder {
         return mFilterType;
     }
 
+    /**
+     * Sets up the encoder for the current video size and bit rate ahead of time, so that
+     * start() only has to begin feeding frames.
+     */
+    public void prepare() {
+        final EncoderConfig.Builder builder = newConfigBuilder();
+        mGLSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                EGLContext eglContext = EGL14.eglGetCurrentContext();
+                mVideoEncoder.prepareRecording(builder.setEglContext(eglContext).build());
+            }
+        });
+    }
+
     @Override
     public void start() {
+        final long requestNanos = System.nanoTime();
+        final EncoderConfig.Builder builder = newConfigBuilder()
+                .setOutputFile(new File(mOutputFile))
+                .setFilterType(getFilterType())
+                .setRecordAudio(mRecordAudio);
         mGLSurfaceView.queueEvent(new Runnable() {
             @Override
             public void run() {
                 EGLContext eglContext = EGL14.eglGetCurrentContext();
-                EncoderConfig encoderConfig = new EncoderConfig(new File(mOutputFile), mVideoWidth, mVideoHeight, mBitRate, eglContext, getFilterType());
-                mVideoEncoder.startRecording(encoderConfig);
+                mVideoEncoder.startRecording(builder.setEglContext(eglContext).build(), requestNanos);
             }
         });
     }
 
+    /**
+     * Returns a builder with the encoder settings shared by prepare() and start(), so a
+     * prepared encoder is reused when nothing has changed in between.
+     * <p>
+     * High profile (Main for HEVC) makes noticeably smaller files than the Baseline most
+     * encoders default to; it's dropped again on encoders that don't support it.
+     */
+    private EncoderConfig.Builder newConfigBuilder() {
+        int profile = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mMimeType)
+                ? CodecProfileLevel.HEVCProfileMain : CodecProfileLevel.AVCProfileHigh;
+        return new EncoderConfig.Builder(mVideoWidth, mVideoHeight)
+                .setMimeType(mMimeType)
+                .setBitRate(mBitRate)
+                .setFrameRate(mFrameRate)
+                .setIFrameInterval(mIFrameInterval)
+                .setBitrateMode(EncoderCapabilities.BITRATE_MODE_VBR)
+                .setProfile(profile, EncoderConfig.PROFILE_DEFAULT)
+                .setAsyncEncoding(true);
+    }
+
+    /**
+     * Returns the time from start() to the first encoded frame of the current or last
+     * recording, in milliseconds, or -1 if that frame hasn't arrived yet.
+     */
+    public long getStartLatencyMs() {
+        long latencyNanos = mVideoEncoder.getStartLatencyNanos();
+        return latencyNanos < 0 ? -1 : latencyNanos / 1000000;
+    }
+
+    /**
+     * Returns what the encoder recorded about the last recording, or null if there wasn't
+     * one.  Available once stop() has returned.
+     */
+    public VideoMetadata getMetadata() {
+        return mVideoEncoder.getLastMetadata();
+    }
+
     @Override
     public void stop() {
         mVideoEncoder.stopRecording();
         mVideoEncoder.waitForStop();
     }
 
+    /**
+     * Shuts down the encoder thread.  The recorder can still be started again afterwards,
+     * but the first start will have to set up the encoder's EGL context again.
+     */
+    @Override
+    public void release() {
+        mVideoEncoder.release();
+    }
+
 
-    void onFrameAvailable(int mTextureId, SurfaceTexture mSurfaceTexture) {
-        mVideoEncoder.setTextureId(mTextureId);
-        mVideoEncoder.frameAvailable(mSurfaceTexture);
+    /**
+     * Passes a filtered frame to the encoder.  Returns false if it wasn't taken, in which
+     * case the buffer is still free for the caller.
+     */
+    boolean onFrameAvailable(FrameBuffer frameBuffer, long timestampNanos) {
+        return mVideoEncoder.frameAvailable(frameBuffer, timestampNanos);
     }
 }
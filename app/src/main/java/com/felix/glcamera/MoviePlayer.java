@@ -0,0 +1,471 @@
+package com.felix.glcamera;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Plays a recorded clip on a loop, decoding the video straight into a Surface (the
+ * renderer's SurfaceTexture, so the clip goes through the same filters as the camera) and
+ * the audio, if any, to an AudioTrack.
+ * <p>
+ * Each stream has its own thread, with a MediaExtractor feeding a MediaCodec.  Frames are
+ * released to the surface when PlaybackClock says they're due.  At the end of the clip the
+ * extractor goes back to the start and feeding carries on, with timestamps offset by the
+ * clip length, so the decoder is never drained or flushed and the loop has no gap.  Audio
+ * is cut or padded with silence to the same length each time round, so the two stay
+ * together.
+ * <p>
+ * seekTo() lands on the exact frame asked for: decoding restarts at the sync frame before
+ * it, and the frames in between are decoded but not shown.
+ */
+public class MoviePlayer {
+    private static final String TAG = "MoviePlayer";
+    private static final boolean VERBOSE = false;
+
+    private static final int TIMEOUT_USEC = 10000;
+    // The camera lets go of the surface a little after it's closed; until then configure()
+    // fails.
+    private static final int CONFIGURE_ATTEMPTS = 25;
+    private static final long CONFIGURE_RETRY_MS = 20;
+    private static final long JOIN_TIMEOUT_MS = 1000;
+    private static final long AUDIO_GAP_US = 10000;     // smaller gaps aren't filled
+
+    private final File mSourceFile;
+    private final long mClipDurationUs;
+    private Thread mVideoThread;
+    private Thread mAudioThread;
+    private volatile boolean mStopRequested;
+    private volatile long mVideoSeekUs = -1;
+    private volatile long mAudioSeekUs = -1;
+
+    /**
+     * @param clipDurationUs Length of the clip, which is how far apart the loops are.  0 to
+     *                       take it from the file.
+     */
+    public MoviePlayer(File sourceFile, long clipDurationUs) {
+        mSourceFile = sourceFile;
+        mClipDurationUs = clipDurationUs;
+    }
+
+    /**
+     * Starts playing into the surface.  Returns at once; the first frame follows as soon as
+     * it's decoded.
+     */
+    public void start(final Surface surface) {
+        final long startNanos = System.nanoTime();
+        mStopRequested = false;
+        mVideoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new VideoLoop(surface, startNanos).run();
+            }
+        }, "MoviePlayer");
+        mVideoThread.start();
+        mAudioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new AudioLoop().run();
+            }
+        }, "MoviePlayerAudio");
+        mAudioThread.start();
+    }
+
+    /**
+     * Moves playback to the frame at the given time from the start of the clip.
+     */
+    public void seekTo(long timeUs) {
+        mVideoSeekUs = mAudioSeekUs = Math.max(0, timeUs);
+    }
+
+    /**
+     * Stops playing and releases the decoders.  Waits for the threads to finish.
+     */
+    public void release() {
+        mStopRequested = true;
+        join(mVideoThread);
+        join(mAudioThread);
+        mVideoThread = mAudioThread = null;
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();     // out of any wait for a frame's time
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException ie) {
+            // ignore
+        }
+    }
+
+    /**
+     * Selects the first track whose MIME type starts with the prefix.  Returns its format,
+     * or null if there isn't one.
+     */
+    private static MediaFormat selectTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith(mimePrefix)) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the length of the clip's video track, or 0 if the file doesn't say.  Both
+     * streams loop at this length.
+     */
+    private static long getVideoDurationUs(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")
+                    && format.containsKey(MediaFormat.KEY_DURATION)) {
+                return format.getLong(MediaFormat.KEY_DURATION);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * One stream's extractor and decoder, and the loop on its thread that feeds the one to
+     * the other and takes the output.
+     */
+    private abstract class Loop {
+        final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        MediaExtractor mExtractor;
+        MediaCodec mDecoder;
+        long mFirstSampleUs;        // extractor time of the clip's start
+        long mClipUs;               // 0 until known
+        int mPass;                  // times round the clip, for the timestamp offset
+        long mLastSampleUs;         // of this pass, for working out mClipUs
+        int mSampleCount;
+
+        /**
+         * Opens the track and decoder.  Returns false if the clip has no such track.
+         */
+        abstract boolean prepare() throws IOException;
+
+        /**
+         * Takes whatever the decoder has ready, and starts any seek asked for.
+         */
+        abstract void drain() throws InterruptedException;
+
+        abstract void seek(long timeUs);
+
+        void run() {
+            try {
+                if (!prepare()) {
+                    return;
+                }
+                while (!mStopRequested) {
+                    feed();
+                    drain();
+                }
+            } catch (InterruptedException ie) {
+                // released
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "playback failed", e);
+            } finally {
+                release();
+            }
+        }
+
+        MediaExtractor openExtractor() throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            extractor.setDataSource(mSourceFile.getPath());
+            return extractor;
+        }
+
+        /**
+         * Called once the track is selected.
+         */
+        void startClip() {
+            mFirstSampleUs = Math.max(0, mExtractor.getSampleTime());
+            mClipUs = mClipDurationUs > 0 ? mClipDurationUs : getVideoDurationUs(mExtractor);
+        }
+
+        /**
+         * Feeds one sample, if the decoder has room.  At the end of the clip the extractor
+         * rewinds instead of signalling end of stream.
+         */
+        void feed() {
+            int index = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index < 0) {
+                return;
+            }
+            ByteBuffer buffer = mDecoder.getInputBuffer(index);
+            int size = mExtractor.readSampleData(buffer, 0);
+            long clipTimeUs = mExtractor.getSampleTime() - mFirstSampleUs;
+            if (size < 0 || (mClipUs > 0 && clipTimeUs >= mClipUs)) {
+                rewind();
+                size = mExtractor.readSampleData(buffer, 0);
+                clipTimeUs = mExtractor.getSampleTime() - mFirstSampleUs;
+                if (size < 0) {
+                    throw new RuntimeException("clip has no samples");
+                }
+            }
+            mLastSampleUs = Math.max(mLastSampleUs, clipTimeUs);
+            mSampleCount++;
+            mDecoder.queueInputBuffer(index, 0, size, clipTimeUs + mPass * mClipUs,
+                    mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC);
+            mExtractor.advance();
+        }
+
+        private void rewind() {
+            if (mClipUs <= 0) {
+                // No length in the file: one frame on from the last, at the average rate.
+                mClipUs = mSampleCount > 1
+                        ? mLastSampleUs + mLastSampleUs / (mSampleCount - 1) : mLastSampleUs + 1;
+            }
+            if (VERBOSE) Log.d(TAG, "looping after " + mSampleCount + " samples");
+            mExtractor.seekTo(mFirstSampleUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            mPass++;
+            mLastSampleUs = 0;
+            mSampleCount = 0;
+        }
+
+        /**
+         * Restarts decoding at the sync sample before the clip time, from the first pass.
+         */
+        void seekExtractor(long timeUs) {
+            mExtractor.seekTo(mFirstSampleUs + timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mDecoder.flush();
+            mPass = 0;
+            mLastSampleUs = 0;
+            mSampleCount = 0;
+        }
+
+        void release() {
+            if (mDecoder != null) {
+                try {
+                    mDecoder.stop();
+                } catch (IllegalStateException ise) {
+                    // never started
+                }
+                mDecoder.release();
+                mDecoder = null;
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+        }
+    }
+
+    private class VideoLoop extends Loop {
+        private final Surface mSurface;
+        private final long mStartNanos;
+        private final PlaybackClock mClock = new PlaybackClock();
+        private long mShowFromUs;       // frames before this are decoded but not shown
+        private boolean mFirstFrameShown;
+
+        VideoLoop(Surface surface, long startNanos) {
+            mSurface = surface;
+            mStartNanos = startNanos;
+        }
+
+        @Override
+        boolean prepare() throws IOException {
+            mExtractor = openExtractor();
+            MediaFormat format = selectTrack(mExtractor, "video/");
+            if (format == null) {
+                throw new IOException("no video track in " + mSourceFile);
+            }
+            startClip();
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            configure(format);
+            mDecoder.start();
+            return true;
+        }
+
+        private void configure(MediaFormat format) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    mDecoder.configure(format, mSurface, null, 0);
+                    return;
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    if (attempt == CONFIGURE_ATTEMPTS || mStopRequested) {
+                        throw e;
+                    }
+                    mDecoder.reset();
+                    try {
+                        Thread.sleep(CONFIGURE_RETRY_MS);
+                    } catch (InterruptedException ie) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        void drain() throws InterruptedException {
+            long seekUs = mVideoSeekUs;
+            if (seekUs >= 0) {
+                mVideoSeekUs = -1;
+                seek(seekUs);
+                return;
+            }
+            int index = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (index < 0) {
+                return;     // nothing yet, or a format or buffer change we don't need
+            }
+            if (mBufferInfo.presentationTimeUs < mShowFromUs) {
+                mDecoder.releaseOutputBuffer(index, false);
+                return;
+            }
+            long delayNanos = mClock.getDelayNanos(mBufferInfo.presentationTimeUs,
+                    System.nanoTime());
+            if (delayNanos > 0) {
+                Thread.sleep(delayNanos / 1000000, (int) (delayNanos % 1000000));
+            }
+            mDecoder.releaseOutputBuffer(index, true);
+            if (!mFirstFrameShown) {
+                mFirstFrameShown = true;
+                Log.d(TAG, "first frame after "
+                        + (System.nanoTime() - mStartNanos) / 1000000 + " ms");
+            }
+        }
+
+        @Override
+        void seek(long timeUs) {
+            if (mClipUs > 0) {
+                timeUs = Math.min(timeUs, mClipUs - 1);
+            }
+            seekExtractor(timeUs);
+            mShowFromUs = timeUs;
+            mClock.reset();
+        }
+    }
+
+    private class AudioLoop extends Loop {
+        private AudioTrack mAudioTrack;
+        private int mBytesPerFrame;
+        private int mSampleRate;
+        private long mNextPtsUs = -1;   // where the audio written so far ends
+        private byte[] mChunk;          // for copying PCM (and silence) to the track
+
+        @Override
+        boolean prepare() throws IOException {
+            mExtractor = openExtractor();
+            MediaFormat format = selectTrack(mExtractor, "audio/");
+            if (format == null) {
+                return false;
+            }
+            startClip();
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(format, null, null, 0);
+            mDecoder.start();
+            return true;
+        }
+
+        @Override
+        void drain() {
+            long seekUs = mAudioSeekUs;
+            if (seekUs >= 0) {
+                mAudioSeekUs = -1;
+                seek(seekUs);
+                return;
+            }
+            int index = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                createAudioTrack(mDecoder.getOutputFormat());
+                return;
+            }
+            if (index < 0) {
+                return;
+            }
+            if (mAudioTrack != null && mBufferInfo.size > 0) {
+                long ptsUs = mBufferInfo.presentationTimeUs;
+                if (mNextPtsUs >= 0 && ptsUs - mNextPtsUs > AUDIO_GAP_US) {
+                    // The clip's audio ended before its video: keep time with silence.
+                    writeSilence(ptsUs - mNextPtsUs);
+                }
+                ByteBuffer pcm = mDecoder.getOutputBuffer(index);
+                pcm.position(mBufferInfo.offset);
+                pcm.limit(mBufferInfo.offset + mBufferInfo.size);
+                write(pcm);
+                mNextPtsUs = ptsUs
+                        + mBufferInfo.size / mBytesPerFrame * 1000000L / mSampleRate;
+            }
+            mDecoder.releaseOutputBuffer(index, false);
+        }
+
+        private void createAudioTrack(MediaFormat format) {
+            releaseAudioTrack();
+            mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            int channelConfig = channelCount == 1
+                    ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            mBytesPerFrame = 2 * channelCount;      // 16-bit PCM
+            int bufferSize = AudioTrack.getMinBufferSize(mSampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2, AudioTrack.MODE_STREAM);
+            mChunk = new byte[bufferSize];
+            mAudioTrack.play();
+        }
+
+        /**
+         * Writes to the track, which blocks while its buffer is full and so paces this
+         * thread.
+         */
+        private void write(ByteBuffer pcm) {
+            while (pcm.hasRemaining() && !mStopRequested) {
+                int count = Math.min(pcm.remaining(), mChunk.length);
+                pcm.get(mChunk, 0, count);
+                mAudioTrack.write(mChunk, 0, count);
+            }
+        }
+
+        private void writeSilence(long durationUs) {
+            long bytes = durationUs * mSampleRate / 1000000 * mBytesPerFrame;
+            Arrays.fill(mChunk, (byte) 0);
+            while (bytes > 0 && !mStopRequested) {
+                int count = (int) Math.min(bytes, mChunk.length);
+                mAudioTrack.write(mChunk, 0, count);
+                bytes -= count;
+            }
+        }
+
+        @Override
+        void seek(long timeUs) {
+            seekExtractor(timeUs);
+            mNextPtsUs = -1;
+            if (mAudioTrack != null) {
+                // Drop what's queued, so the audio jumps with the video.
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+                mAudioTrack.play();
+            }
+        }
+
+        private void releaseAudioTrack() {
+            if (mAudioTrack != null) {
+                mAudioTrack.release();
+                mAudioTrack = null;
+            }
+        }
+
+        @Override
+        void release() {
+            super.release();
+            releaseAudioTrack();
+        }
+    }
+}
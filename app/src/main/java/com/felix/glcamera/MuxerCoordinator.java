@@ -0,0 +1,260 @@
+package com.felix.glcamera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Shares one MediaMuxer between several encoders (typically video and audio), each of
+ * which runs on its own thread.
+ * <p>
+ * MediaMuxer can't be started until every track has been added, and tracks only get
+ * their format once their encoder has produced output.  Samples that arrive before then
+ * are copied into a preallocated direct buffer, and written out in timestamp order
+ * (interleaving the tracks) as soon as the muxer starts.  After that, samples go straight
+ * to the muxer.  Nothing is allocated per sample, and no encoder ever waits for another
+ * to produce output.
+ * <p>
+ * Held samples are never dropped, since every later frame may depend on them.  If a slow
+ * track keeps the muxer waiting past the preallocated space, the buffer grows, up to
+ * MAX_PENDING_BYTES; beyond that the recording fails.
+ * <p>
+ * Each encoder calls addTrack() once its format is known, writeSampleData() for every
+ * sample, and finishTrack() when done (or abandonTrack() if it fails to start).  The muxer
+ * is stopped and released when the last track finishes.
+ */
+public class MuxerCoordinator {
+    private static final String TAG = "MuxerCoordinator";
+    private static final boolean VERBOSE = false;
+
+    // Enough to cover the gap between the first video frame and the first audio frame.
+    private static final int PENDING_BUFFER_SIZE = 1024 * 1024;
+    private static final int PENDING_SAMPLES = 128;
+    // Several seconds of video; a track that takes longer than that has failed to start.
+    private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_PENDING_SAMPLES = 4096;
+
+    private MediaMuxer mMuxer;
+    private int mExpectedTracks;
+    private int mAddedTracks;
+    private int mFinishedTracks;
+    private boolean mStarted;
+    private boolean mReleased;
+    private long mSamplesWritten;
+
+    // Samples held back until the muxer starts.  The data is packed into mPendingData, and
+    // the metadata lives in parallel arrays, so holding a sample doesn't allocate.
+    private ByteBuffer mPendingData;
+    private int[] mPendingTrack = new int[PENDING_SAMPLES];
+    private int[] mPendingOffset = new int[PENDING_SAMPLES];
+    private int[] mPendingSize = new int[PENDING_SAMPLES];
+    private int[] mPendingFlags = new int[PENDING_SAMPLES];
+    private long[] mPendingPtsUs = new long[PENDING_SAMPLES];
+    private boolean[] mPendingDone = new boolean[PENDING_SAMPLES];
+    private int mPendingCount;
+    private final MediaCodec.BufferInfo mFlushInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * Allocates the pending buffer, but no muxer yet; call reset() before each recording.
+     * Lets the allocation happen ahead of time, and be reused from one recording to the
+     * next.
+     */
+    public MuxerCoordinator() {
+        mPendingData = ByteBuffer.allocateDirect(PENDING_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates the muxer.
+     *
+     * @param trackCount Number of tracks that will be added before the muxer can start.
+     */
+    public MuxerCoordinator(File outputFile, int trackCount) throws IOException {
+        this();
+        reset(outputFile, trackCount);
+    }
+
+    /**
+     * Starts over with a new muxer for the next recording.  The previous one should have
+     * finished; if it hasn't, it's released without being stopped.
+     *
+     * @param trackCount Number of tracks that will be added before the muxer can start.
+     */
+    public synchronized void reset(File outputFile, int trackCount) throws IOException {
+        if (mMuxer != null && !mReleased) {
+            Log.w(TAG, "previous muxer never finished, releasing it");
+            mMuxer.release();
+            mReleased = true;
+        }
+        mMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mExpectedTracks = trackCount;
+        mAddedTracks = 0;
+        mFinishedTracks = 0;
+        mStarted = false;
+        mReleased = false;
+        mSamplesWritten = 0;
+        mPendingCount = 0;
+        mPendingData.clear();
+    }
+
+    /**
+     * Adds a track.  Starts the muxer if this was the last one we were waiting for.
+     *
+     * @return The track index to pass to writeSampleData().
+     */
+    public synchronized int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("muxer already started");
+        }
+        int trackIndex = mMuxer.addTrack(format);
+        mAddedTracks++;
+        Log.d(TAG, "added track " + trackIndex + " (" + mAddedTracks + "/" + mExpectedTracks + ")");
+        startIfReady();
+        return trackIndex;
+    }
+
+    /**
+     * Gives up on a track that was expected but will never be added, e.g. because its
+     * encoder couldn't be created.  The remaining tracks are muxed without it.
+     */
+    public synchronized void abandonTrack() {
+        mExpectedTracks--;
+        Log.w(TAG, "track abandoned, now expecting " + mExpectedTracks);
+        startIfReady();
+        finishIfDone();
+    }
+
+    /**
+     * Writes a sample, or holds it until the muxer starts.  The buffer's position and limit
+     * are not modified.
+     *
+     * @throws IllegalStateException if the muxer has been waiting for its tracks for so
+     *         long that there's no more room to hold samples in.
+     */
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (mReleased) {
+            return;
+        }
+        if (mStarted) {
+            mMuxer.writeSampleData(trackIndex, data, info);
+            mSamplesWritten++;
+            return;
+        }
+
+        if (!makeRoom(info.size)) {
+            throw new IllegalStateException("muxer still waiting for " + (mExpectedTracks
+                    - mAddedTracks) + " track(s) after " + mPendingCount + " samples");
+        }
+        int offset = mPendingData.position();
+        int oldPosition = data.position();
+        int oldLimit = data.limit();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        mPendingData.put(data);
+        data.limit(oldLimit);
+        data.position(oldPosition);
+
+        int i = mPendingCount++;
+        mPendingTrack[i] = trackIndex;
+        mPendingOffset[i] = offset;
+        mPendingSize[i] = info.size;
+        mPendingFlags[i] = info.flags;
+        mPendingPtsUs[i] = info.presentationTimeUs;
+        if (VERBOSE) Log.d(TAG, "holding sample " + i + " track " + trackIndex + " ts=" + info.presentationTimeUs);
+    }
+
+    /**
+     * Grows the pending buffer and arrays, if needed, to hold one more sample of the given
+     * size.  Returns false if that would take them past their limits.
+     */
+    private boolean makeRoom(int size) {
+        if (mPendingCount == mPendingTrack.length) {
+            if (mPendingCount >= MAX_PENDING_SAMPLES) {
+                return false;
+            }
+            int count = Math.min(mPendingCount * 2, MAX_PENDING_SAMPLES);
+            mPendingTrack = Arrays.copyOf(mPendingTrack, count);
+            mPendingOffset = Arrays.copyOf(mPendingOffset, count);
+            mPendingSize = Arrays.copyOf(mPendingSize, count);
+            mPendingFlags = Arrays.copyOf(mPendingFlags, count);
+            mPendingPtsUs = Arrays.copyOf(mPendingPtsUs, count);
+            mPendingDone = Arrays.copyOf(mPendingDone, count);
+        }
+        if (size > mPendingData.remaining()) {
+            int needed = mPendingData.position() + size;
+            if (needed > MAX_PENDING_BYTES) {
+                return false;
+            }
+            int capacity = Math.min(Math.max(mPendingData.capacity() * 2, needed),
+                    MAX_PENDING_BYTES);
+            Log.w(TAG, "muxer not started yet, growing pending buffer to " + capacity);
+            ByteBuffer data = ByteBuffer.allocateDirect(capacity);
+            mPendingData.flip();
+            data.put(mPendingData);
+            mPendingData = data;
+        }
+        return true;
+    }
+
+    /**
+     * Marks a track as complete.  The muxer is stopped once all tracks are complete.
+     */
+    public synchronized void finishTrack() {
+        mFinishedTracks++;
+        finishIfDone();
+    }
+
+    private void startIfReady() {
+        if (mStarted || mExpectedTracks <= 0 || mAddedTracks < mExpectedTracks) {
+            return;
+        }
+        mMuxer.start();
+        mStarted = true;
+        flushPending();
+    }
+
+    /**
+     * Writes the held-back samples, oldest first.  Within a track the samples arrived in
+     * timestamp order, so picking the earliest remaining sample each time interleaves the
+     * tracks correctly.
+     */
+    private void flushPending() {
+        ByteBuffer view = mPendingData.duplicate();
+        for (int n = 0; n < mPendingCount; n++) {
+            int next = -1;
+            for (int i = 0; i < mPendingCount; i++) {
+                if (!mPendingDone[i] && (next < 0 || mPendingPtsUs[i] < mPendingPtsUs[next])) {
+                    next = i;
+                }
+            }
+            mPendingDone[next] = true;
+            view.limit(mPendingOffset[next] + mPendingSize[next]);
+            view.position(mPendingOffset[next]);
+            mFlushInfo.set(mPendingOffset[next], mPendingSize[next], mPendingPtsUs[next], mPendingFlags[next]);
+            mMuxer.writeSampleData(mPendingTrack[next], view, mFlushInfo);
+            mSamplesWritten++;
+        }
+        if (VERBOSE) Log.d(TAG, "flushed " + mPendingCount + " pending samples");
+        mPendingCount = 0;
+        mPendingData.clear();
+        Arrays.fill(mPendingDone, false);
+    }
+
+    private void finishIfDone() {
+        if (mReleased || mFinishedTracks < mExpectedTracks) {
+            return;
+        }
+        // stop() throws an exception if you haven't fed it any data.
+        if (mStarted && mSamplesWritten > 0) {
+            mMuxer.stop();
+        }
+        mMuxer.release();
+        mReleased = true;
+        Log.d(TAG, "muxer released, " + mSamplesWritten + " samples written");
+    }
+}
@@ -0,0 +1,36 @@
+package com.felix.glcamera;
+
+/**
+ * Decides when decoded frames are due on screen.  The first frame after start or a seek is
+ * shown at once and anchors the clock; every later one is due when the wall clock has moved
+ * on as far as its timestamp has.
+ * <p>
+ * Timestamps passed in are on a continuous timeline: MoviePlayer adds a clip length for
+ * every loop, so the clock never sees time go backwards while looping.
+ */
+class PlaybackClock {
+    private long mAnchorPtsUs;
+    private long mAnchorNanos;
+    private boolean mAnchored;
+
+    /**
+     * Forgets the anchor; the next frame is shown at once.  For seeks.
+     */
+    void reset() {
+        mAnchored = false;
+    }
+
+    /**
+     * Returns how long to wait before showing the frame, in nanoseconds; zero or less means
+     * now.
+     */
+    long getDelayNanos(long ptsUs, long nowNanos) {
+        if (!mAnchored) {
+            mAnchorPtsUs = ptsUs;
+            mAnchorNanos = nowNanos;
+            mAnchored = true;
+            return 0;
+        }
+        return mAnchorNanos + (ptsUs - mAnchorPtsUs) * 1000 - nowNanos;
+    }
+}
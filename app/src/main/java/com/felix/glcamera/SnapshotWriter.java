@@ -0,0 +1,155 @@
+package com.felix.glcamera;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.felix.glcamera.gles.DirectBufferPool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes pixels read back from the GPU to files on a background thread, so the GL thread
+ * only has to hand the buffer over.
+ * <p>
+ * The Bitmap used for compressing is kept for the next image of the same size.  Results go
+ * to the listener on the main thread.
+ */
+public class SnapshotWriter {
+    private static final String TAG = "SnapshotWriter";
+
+    public enum Format {
+        JPEG,
+        PNG,
+        RAW         // the RGBA bytes as they are, top row first
+    }
+
+    public interface Listener {
+        /**
+         * @param file The file written, or null if writing failed.
+         */
+        void onSnapshotWritten(File file);
+    }
+
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Bitmap mBitmap;         // only touched on the writer thread
+
+    /**
+     * Queues the pixels to be written.  The buffer goes back to the pool once written.
+     *
+     * @param quality JPEG quality, 0-100; ignored for other formats.
+     */
+    void write(final ByteBuffer rgba, final int width, final int height,
+            final DirectBufferPool pool, final File file, final Format format, final int quality,
+            final Listener listener) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                boolean written = false;
+                try {
+                    writeFile(rgba, width, height, file, format, quality);
+                    written = true;
+                } catch (IOException ioe) {
+                    Log.w(TAG, "unable to write " + file, ioe);
+                    file.delete();
+                } finally {
+                    pool.release(rgba);
+                }
+                Log.d(TAG, "wrote " + width + "x" + height + " " + format + " in "
+                        + (System.nanoTime() - startNanos) / 1000000 + " ms");
+                final File result = written ? file : null;
+                if (listener != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSnapshotWritten(result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the writes queued so far to finish.  Returns false if they took longer than
+     * the timeout.
+     */
+    boolean awaitWritten(long timeoutMs) throws InterruptedException {
+        Future<?> marker = mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            marker.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lets queued writes finish, then stops the thread.
+     */
+    void release() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                    mBitmap = null;
+                }
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    private void writeFile(ByteBuffer rgba, int width, int height, File file, Format format,
+            int quality) throws IOException {
+        if (format == Format.RAW) {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel channel = out.getChannel();
+                while (rgba.hasRemaining()) {
+                    channel.write(rgba);
+                }
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        // ARGB_8888 is stored as RGBA bytes, which is what GL gives us.
+        mBitmap.copyPixelsFromBuffer(rgba);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            Bitmap.CompressFormat compressFormat = format == Format.PNG
+                    ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            if (!mBitmap.compress(compressFormat, quality, out)) {
+                throw new IOException("compress failed");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
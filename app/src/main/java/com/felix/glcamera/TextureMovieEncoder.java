@@ -16,7 +16,7 @@
 
 package com.felix.glcamera;
 
-import android.graphics.SurfaceTexture;
+import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.os.Handler;
@@ -26,7 +26,11 @@ import android.util.Log;
 
 
 import com.felix.glcamera.gles.EglCore;
+import com.felix.glcamera.gles.FrameBuffer;
 import com.felix.glcamera.gles.FullFrameRect;
+import com.felix.glcamera.gles.GlState;
+import com.felix.glcamera.gles.GlUtil;
+import com.felix.glcamera.gles.OffscreenSurface;
 import com.felix.glcamera.gles.Texture2dProgram;
 import com.felix.glcamera.gles.WindowSurface;
 
@@ -51,13 +55,20 @@ import java.lang.ref.WeakReference;
  * <ul>
  * <li>create TextureMovieEncoder object
  * <li>create an EncoderConfig
+ * <li>optionally, call TextureMovieEncoder#prepareRecording() as soon as the size is known
  * <li>call TextureMovieEncoder#startRecording() with the config
- * <li>call TextureMovieEncoder#setTextureId() with the texture object that receives frames
- * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
- * call TextureMovieEncoder#frameAvailable().
+ * <li>for each frame, render it into a FrameBuffer and call
+ * TextureMovieEncoder#frameAvailable() with it.
  * </ul>
  * <p>
- * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
+ * Frames arrive already filtered: the GL thread renders the camera texture through the
+ * filter once, into a FrameBuffer it then shows on screen and hands to us.  All we do per
+ * frame is copy that texture to the encoder's input surface.
+ * <p>
+ * Frames are handed to the encoder thread through a FrameHandoff rather than one Message
+ * per frame, so nothing is allocated and no lock is taken per frame while recording.  The
+ * encoder thread is woken with a single (pooled) message whenever the ring goes from idle
+ * to busy, and then drains everything that has been published.
  */
 public class TextureMovieEncoder implements Runnable {
     private static final String TAG = "TextureMovieEncoder";
@@ -66,24 +77,75 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
-    private static final int MSG_SET_TEXTURE_ID = 3;
-    private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
+    private static final int MSG_UPDATE_SHARED_CONTEXT = 3;
+    private static final int MSG_PREPARE_RECORDING = 4;
     private static final int MSG_QUIT = 5;
 
+    // Frames in flight between the GL thread and the encoder thread.  A handful is plenty;
+    // if the encoder is that far behind we'd rather drop than add latency.
+    private static final int FRAME_RING_CAPACITY = 4;
+
+    private static final String PROGRAM_SCOPE = "encoder";
+
     // ----- accessed exclusively by encoder thread -----
+    // Per recording:
     private WindowSurface mInputWindowSurface;
-    private EglCore mEglCore;
-    private FullFrameRect mFullScreen;
-    private int mTextureId;
-    private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private AudioEncoderCore mAudioEncoder;
+    private int mFrameNum;
+    // Set up ahead of time by prepareRecording(), consumed by the next recording:
+    private EncoderConfig mPreparedConfig;
+    private VideoEncoderCore mPreparedEncoder;
+    private WindowSurface mPreparedSurface;
+    // Kept between recordings:
+    private EglCore mEglCore;
+    private EGLContext mSharedContext;
+    private OffscreenSurface mIdleSurface;
+    private FullFrameRect mFullScreen;      // TEXTURE_2D copy to the input surface
+    private MuxerCoordinator mMuxer;        // reset for each recording
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private final FrameHandoff mFrameHandoff = new FrameHandoff(FRAME_RING_CAPACITY,
+            new FrameHandoff.Callback() {
+                @Override
+                public void onHandOff(FrameBuffer frameBuffer) {
+                    frameBuffer.handOff(mUseFences);
+                }
+
+                @Override
+                public void scheduleDrain() {
+                    mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+                }
+
+                @Override   // runs on encoder thread
+                public void onFrame(FrameRing.Slot slot) {
+                    if (mVideoEncoder != null) {
+                        handleFrameAvailable(slot);
+                    } else {
+                        slot.frameBuffer.discard();
+                    }
+                }
+            });
+    private volatile long mStartRequestNanos;
+    private volatile long mStartLatencyNanos = -1;
+    private final VideoEncoderCore.FirstSampleListener mFirstSampleListener =
+            new VideoEncoderCore.FirstSampleListener() {
+                @Override
+                public void onFirstSample(long sampleNanos) {
+                    mStartLatencyNanos = sampleNanos - mStartRequestNanos;
+                    Log.d(TAG, "start latency " + mStartLatencyNanos / 1000000 + " ms");
+                }
+            };
+    private File mOutputFile;
+    private volatile VideoMetadata mLastMetadata;
+    private volatile boolean mUseFences;    // our EGL context is GLES 3
 
-    private final Object mReadyFence = new Object();      // guards ready/running
-    private boolean mReady;
-    private boolean mRunning;
+    // Written under the fence, which is also what waiters wait on.  Volatile so that
+    // frameAvailable() can check mRunning on every frame without taking the lock.
+    private final Object mReadyFence = new Object();
+    private volatile boolean mReady;        // encoder thread is up
+    private volatile boolean mRunning;      // a recording is in progress
 
 
     /**
@@ -91,43 +153,229 @@ public class TextureMovieEncoder implements Runnable {
      * <p>
      * Object is immutable, which means we can safely pass it between threads without
      * explicit synchronization (and don't need to worry about it getting tweaked out from
-     * under us).
+     * under us).  Use EncoderConfig.Builder to set anything beyond the basics.
      * <p>
-     * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
-     * with reasonable defaults for those and bit rate.
+     * The values are requests.  VideoCodecSelector checks them against what the device's
+     * encoder supports when the encoder is created, and adjusts them if necessary.
      */
     public static class EncoderConfig {
+        /** Let the encoder pick its bitrate mode. */
+        public static final int BITRATE_MODE_DEFAULT = -1;
+        /** Let the encoder pick its profile or level. */
+        public static final int PROFILE_DEFAULT = 0;
+        public static final int DEFAULT_FRAME_RATE = 30;            // 30fps
+        public static final int DEFAULT_IFRAME_INTERVAL = 5;        // 5 seconds between I-frames
+
         final File mOutputFile;
         final int mWidth;
         final int mHeight;
-        final int mBitRate;
+        final int mBitRate;             // 0: chosen from the size and frame rate
         final EGLContext mEglContext;
-        final FilterType mFilterType;
+        final FilterType mFilterType;   // informational; frames arrive already filtered
+        final boolean mAsyncEncoding;
+        final boolean mRecordAudio;
+        final String mMimeType;
+        final int mFrameRate;
+        final int mIFrameInterval;
+        final int mBitrateMode;
+        final int mProfile;
+        final int mLevel;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate, EGLContext sharedEglContext, FilterType filterType) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mBitRate = bitRate;
-            mEglContext = sharedEglContext;
-            mFilterType = filterType;
+            this(outputFile, width, height, bitRate, sharedEglContext, filterType, false);
+        }
+
+        /**
+         * @param asyncEncoding Drain the encoder through MediaCodec callbacks instead of
+         *                      polling after every frame.  See VideoEncoderCore.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate, EGLContext sharedEglContext, FilterType filterType, boolean asyncEncoding) {
+            this(outputFile, width, height, bitRate, sharedEglContext, filterType, asyncEncoding, false);
+        }
+
+        /**
+         * @param recordAudio Also capture microphone audio into the same file.  Needs the
+         *                    RECORD_AUDIO permission; without it the file is video-only.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate, EGLContext sharedEglContext, FilterType filterType, boolean asyncEncoding, boolean recordAudio) {
+            this(new Builder(width, height)
+                    .setOutputFile(outputFile)
+                    .setBitRate(bitRate)
+                    .setEglContext(sharedEglContext)
+                    .setFilterType(filterType)
+                    .setAsyncEncoding(asyncEncoding)
+                    .setRecordAudio(recordAudio));
+        }
+
+        private EncoderConfig(Builder builder) {
+            mOutputFile = builder.mOutputFile;
+            mWidth = builder.mWidth;
+            mHeight = builder.mHeight;
+            mBitRate = builder.mBitRate;
+            mEglContext = builder.mEglContext;
+            mFilterType = builder.mFilterType;
+            mAsyncEncoding = builder.mAsyncEncoding;
+            mRecordAudio = builder.mRecordAudio;
+            mMimeType = builder.mMimeType;
+            mFrameRate = builder.mFrameRate;
+            mIFrameInterval = builder.mIFrameInterval;
+            mBitrateMode = builder.mBitrateMode;
+            mProfile = builder.mProfile;
+            mLevel = builder.mLevel;
+        }
+
+        /**
+         * Returns true if an encoder prepared for this config can be used for the other one.
+         * The output file, filter and audio don't matter; they're applied when recording
+         * starts.
+         */
+        boolean isCompatibleWith(EncoderConfig other) {
+            return mWidth == other.mWidth && mHeight == other.mHeight
+                    && mBitRate == other.mBitRate && mAsyncEncoding == other.mAsyncEncoding
+                    && mMimeType.equals(other.mMimeType) && mFrameRate == other.mFrameRate
+                    && mIFrameInterval == other.mIFrameInterval && mBitrateMode == other.mBitrateMode
+                    && mProfile == other.mProfile && mLevel == other.mLevel
+                    && mEglContext != null && mEglContext.equals(other.mEglContext);
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate + " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+            return "EncoderConfig: " + mMimeType + " " + mWidth + "x" + mHeight + " @" + (mBitRate > 0 ? mBitRate : "auto") + " " + mFrameRate + "fps to '" + mOutputFile + "' ctxt=" + mEglContext + (mAsyncEncoding ? " async" : "") + (mRecordAudio ? " +audio" : "");
+        }
+
+        /**
+         * Builds an EncoderConfig.  Only the size is required; everything else has a
+         * reasonable default (AVC, 30fps, bit rate chosen from the size, encoder's own
+         * bitrate mode and profile).
+         */
+        public static class Builder {
+            private final int mWidth;
+            private final int mHeight;
+            private File mOutputFile;
+            private int mBitRate;
+            private EGLContext mEglContext;
+            private FilterType mFilterType;
+            private boolean mAsyncEncoding;
+            private boolean mRecordAudio;
+            private String mMimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+            private int mFrameRate = DEFAULT_FRAME_RATE;
+            private int mIFrameInterval = DEFAULT_IFRAME_INTERVAL;
+            private int mBitrateMode = BITRATE_MODE_DEFAULT;
+            private int mProfile = PROFILE_DEFAULT;
+            private int mLevel = PROFILE_DEFAULT;
+
+            public Builder(int width, int height) {
+                mWidth = width;
+                mHeight = height;
+            }
+
+            /**
+             * Sets the file to record to.  May be left null when preparing.
+             */
+            public Builder setOutputFile(File outputFile) {
+                mOutputFile = outputFile;
+                return this;
+            }
+
+            /**
+             * Sets the target bit rate, in bits per second.  Zero (the default) picks one
+             * from the size and frame rate.
+             */
+            public Builder setBitRate(int bitRate) {
+                mBitRate = bitRate;
+                return this;
+            }
+
+            public Builder setEglContext(EGLContext sharedEglContext) {
+                mEglContext = sharedEglContext;
+                return this;
+            }
+
+            public Builder setFilterType(FilterType filterType) {
+                mFilterType = filterType;
+                return this;
+            }
+
+            /**
+             * See EncoderConfig(File, int, int, int, EGLContext, FilterType, boolean).
+             */
+            public Builder setAsyncEncoding(boolean asyncEncoding) {
+                mAsyncEncoding = asyncEncoding;
+                return this;
+            }
+
+            /**
+             * See EncoderConfig(File, int, int, int, EGLContext, FilterType, boolean, boolean).
+             */
+            public Builder setRecordAudio(boolean recordAudio) {
+                mRecordAudio = recordAudio;
+                return this;
+            }
+
+            /**
+             * Sets the video codec, MediaFormat.MIMETYPE_VIDEO_AVC or MIMETYPE_VIDEO_HEVC.
+             * If the device has no suitable HEVC encoder, AVC is used instead.
+             */
+            public Builder setMimeType(String mimeType) {
+                mMimeType = mimeType;
+                return this;
+            }
+
+            public Builder setFrameRate(int frameRate) {
+                mFrameRate = frameRate;
+                return this;
+            }
+
+            /**
+             * Sets the time between key frames, in seconds.
+             */
+            public Builder setIFrameInterval(int iFrameInterval) {
+                mIFrameInterval = iFrameInterval;
+                return this;
+            }
+
+            /**
+             * Sets one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR, _VBR or _CQ,
+             * or BITRATE_MODE_DEFAULT.
+             */
+            public Builder setBitrateMode(int bitrateMode) {
+                mBitrateMode = bitrateMode;
+                return this;
+            }
+
+            /**
+             * Sets the MediaCodecInfo.CodecProfileLevel profile and level for the codec set
+             * with setMimeType(), e.g. AVCProfileHigh.  PROFILE_DEFAULT for the level uses
+             * the highest one the encoder supports for the profile.
+             */
+            public Builder setProfile(int profile, int level) {
+                mProfile = profile;
+                mLevel = level;
+                return this;
+            }
+
+            public EncoderConfig build() {
+                if (mWidth <= 0 || mHeight <= 0) {
+                    throw new IllegalArgumentException("bad size " + mWidth + "x" + mHeight);
+                }
+                if (mFrameRate <= 0) {
+                    throw new IllegalArgumentException("bad frame rate " + mFrameRate);
+                }
+                return new EncoderConfig(this);
+            }
         }
     }
 
 
-    public void startRecording(EncoderConfig config) {
-        Log.d(TAG, "Encoder: startRecording()");
+    /**
+     * Starts the encoder thread if it isn't running yet.  Only the first call after
+     * construction (or after release()) waits, and then only for the thread's Looper.
+     */
+    private void ensureThread() {
         synchronized (mReadyFence) {
-            if (mRunning) {
-                Log.w(TAG, "Encoder thread already running");
+            if (mReady) {
                 return;
             }
-            mRunning = true;
             new Thread(this, "TextureMovieEncoder").start();
             while (!mReady) {
                 try {
@@ -137,21 +385,91 @@ public class TextureMovieEncoder implements Runnable {
                 }
             }
         }
+    }
+
+    /**
+     * Sets up the codec and its input surface for a recording that hasn't started yet, so
+     * that startRecording() only has to open the output file and begin feeding frames.  The
+     * config's output file is ignored and may be null.
+     * <p>
+     * Does not wait for the encoder to be set up.  A prepared encoder that isn't compatible
+     * with the config passed to startRecording() is discarded.
+     */
+    public void prepareRecording(EncoderConfig config) {
+        Log.d(TAG, "Encoder: prepareRecording()");
+        ensureThread();
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PREPARE_RECORDING, config));
+    }
+
+    /**
+     * Starts a new recording.  The encoder thread, EGL context and programs from earlier
+     * recordings are reused; only the VideoEncoderCore and its input surface are new, and
+     * those too are reused if prepareRecording() was called with a compatible config.
+     * <p>
+     * Does not wait for the encoder to be set up.
+     */
+    public void startRecording(EncoderConfig config) {
+        startRecording(config, System.nanoTime());
+    }
+
+    /**
+     * Starts a new recording, measuring start latency from requestNanos (a System.nanoTime()
+     * value, typically taken when the user pressed record).
+     *
+     * @see #getStartLatencyNanos()
+     */
+    public void startRecording(EncoderConfig config, long requestNanos) {
+        Log.d(TAG, "Encoder: startRecording()");
+        ensureThread();
+        synchronized (mReadyFence) {
+            if (mRunning) {
+                Log.w(TAG, "Encoder already recording");
+                return;
+            }
+            mRunning = true;
+        }
+        mStartRequestNanos = requestNanos;
+        mStartLatencyNanos = -1;
 
         mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
     }
 
+    /**
+     * Returns the time from the start request to the first encoded frame reaching the
+     * muxer for the current or most recent recording, in nanoseconds, or -1 if it isn't
+     * known yet.  Becomes available as soon as that frame arrives.
+     */
+    public long getStartLatencyNanos() {
+        return mStartLatencyNanos;
+    }
 
+    /**
+     * Returns what the encoder recorded about the most recent recording, or null if there
+     * wasn't one.  Becomes available when the recording is stopped, at which point it has
+     * also been saved next to the video (see VideoMetadata.getSidecarFile()).
+     */
+    public VideoMetadata getLastMetadata() {
+        return mLastMetadata;
+    }
+
+    /**
+     * Stops the current recording.  The encoder thread stays around for the next one; call
+     * release() to shut it down.
+     */
     public void stopRecording() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
         mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
     }
 
+    /**
+     * Waits for the current recording, if any, to be finalized.
+     */
     public void waitForStop() {
         synchronized (mReadyFence) {
-            if (!mRunning) {
-                return;
-            }
             while (mRunning) {
                 try {
                     mReadyFence.wait();
@@ -162,39 +480,60 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
-    public boolean isRecording() {
+    /**
+     * Shuts down the encoder thread and releases its EGL context and programs.  Any
+     * recording in progress is finished first.  A later startRecording() starts over.
+     */
+    public void release() {
         synchronized (mReadyFence) {
-            return mRunning;
+            if (!mReady) {
+                return;
+            }
         }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
     }
 
-    public void updateSharedContext(EGLContext sharedContext) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_SHARED_CONTEXT, sharedContext));
+    public boolean isRecording() {
+        return mRunning;
     }
 
-    public void frameAvailable(SurfaceTexture st) {
+    public void updateSharedContext(EGLContext sharedContext) {
         synchronized (mReadyFence) {
             if (!mReady) {
                 return;
             }
         }
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
-        long timestamp = st.getTimestamp();
-        if (timestamp == 0) {
-            return;
-        }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE, (int) (timestamp >> 32), (int) timestamp, transform));
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_SHARED_CONTEXT, sharedContext));
     }
 
-
-    public void setTextureId(int id) {
-        synchronized (mReadyFence) {
-            if (!mReady) {
-                return;
-            }
+    /**
+     * Tells the encoder that a filtered frame has been rendered into the buffer.  Call on
+     * the thread that rendered it, with its context current.  The buffer is handed off to
+     * the encoder thread; don't render into it again until FrameBuffer#isInUse() returns
+     * false.
+     * <p>
+     * Does not allocate or lock.  If the encoder thread is too far behind, the frame is
+     * dropped and the buffer isn't handed off.
+     *
+     * @return true if the frame was accepted.
+     */
+    public boolean frameAvailable(FrameBuffer frameBuffer, long timestampNanos) {
+        if (!mRunning || timestampNanos == 0) {
+            return false;
+        }
+        if (!mFrameHandoff.offer(frameBuffer, frameBuffer.getTextureId(),
+                GlUtil.IDENTITY_MATRIX, timestampNanos)) {
+            if (VERBOSE) Log.d(TAG, "frame ring full, dropping frame");
+            return false;
         }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        return true;
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder thread fell behind.
+     */
+    public long getDroppedFrameCount() {
+        return mFrameHandoff.getDroppedCount();
     }
 
     /**
@@ -215,6 +554,13 @@ public class TextureMovieEncoder implements Runnable {
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
+        if (mVideoEncoder != null) {
+            handleStopRecording();
+        }
+        // A wakeup may still have been pending; start the next thread with a clean slate.
+        mFrameHandoff.discardPending();
+        releasePrepared();
+        releaseEgl();
         synchronized (mReadyFence) {
             mReady = mRunning = false;
             mHandler = null;
@@ -252,11 +598,10 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) | (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.mFrameHandoff.drain();
                     break;
-                case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                case MSG_PREPARE_RECORDING:
+                    encoder.handlePrepareRecording((EncoderConfig) obj);
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -270,39 +615,93 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Creates and starts a codec for a future recording, replacing any that was prepared
+     * earlier with a different config.
+     */
+    private void handlePrepareRecording(EncoderConfig config) {
+        Log.d(TAG, "handlePrepareRecording " + config);
+        if (mPreparedEncoder != null) {
+            if (mPreparedConfig.isCompatibleWith(config)) {
+                return;
+            }
+            releasePrepared();
+        }
+        prepareEgl(config.mEglContext);
+        try {
+            mPreparedEncoder = new VideoEncoderCore(config);
+        } catch (IOException ioe) {
+            // Not fatal; startRecording() will try again and report the error.
+            Log.w(TAG, "unable to prepare encoder", ioe);
+            return;
+        }
+        mPreparedSurface = new WindowSurface(mEglCore, mPreparedEncoder.getInputSurface(), true);
+        mPreparedConfig = config;
+        if (mMuxer == null) {
+            // Its pending buffer is sizable; start() only has to open the file.
+            mMuxer = new MuxerCoordinator();
+        }
+    }
+
     /**
      * Starts recording.
      */
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate, config.mOutputFile, config.mFilterType);
+        mLastMetadata = null;
+        if (mPreparedEncoder != null && !mPreparedConfig.isCompatibleWith(config)) {
+            releasePrepared();
+        }
+        prepareEgl(config.mEglContext);
+        prepareEncoder(config);
     }
 
 
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
-        if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mFullScreen.drawFrame(mTextureId, transform);
-        mInputWindowSurface.setPresentationTime(timestampNanos);
+    private void handleFrameAvailable(FrameRing.Slot slot) {
+        if (VERBOSE) Log.d(TAG, "handleFrameAvailable ts=" + slot.timestampNanos);
+        FrameBuffer frameBuffer = slot.frameBuffer;
+        frameBuffer.beginRead();
+        mFullScreen.drawFrame(slot.textureId, slot.transform);
+        // The copy has been issued; the GL thread may render into the buffer again.
+        frameBuffer.endRead(mUseFences);
+        mInputWindowSurface.setPresentationTime(slot.timestampNanos);
         mInputWindowSurface.swapBuffers();
-        mVideoEncoder.drainEncoder(false);
+        mVideoEncoder.drainEncoder(false);      // no-op in async mode
     }
 
     /**
-     * Handles a request to stop encoding.
+     * Handles a request to stop encoding.  The EGL context and programs are kept.
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
-        releaseEncoder();
+        if (mAudioEncoder != null) {
+            mAudioEncoder.stop();
+        }
+        if (mVideoEncoder != null) {
+            mVideoEncoder.drainEncoder(true);
+            VideoEncoderCore encoder = mVideoEncoder;
+            releaseEncoder();
+            saveMetadata(encoder.getMetadata());
+        }
+        mFrameHandoff.discardPending();
+        synchronized (mReadyFence) {
+            mRunning = false;
+            mReadyFence.notifyAll();
+        }
     }
 
     /**
-     * Sets the texture name that SurfaceTexture will use when frames are received.
+     * Writes the finished recording's metadata next to it.
      */
-    private void handleSetTexture(int id) {
-        //Log.d(TAG, "handleSetTexture " + id);
-        mTextureId = id;
+    private void saveMetadata(VideoMetadata metadata) {
+        Log.d(TAG, "recorded " + metadata);
+        try {
+            metadata.writeTo(VideoMetadata.getSidecarFile(mOutputFile));
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to save metadata", ioe);
+        }
+        mLastMetadata = metadata;
     }
 
     /**
@@ -314,58 +713,143 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mEglCore == null) {
+            // Nothing set up yet; the next recording will share with whatever it's given.
+            return;
+        }
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
-        mFullScreen.release(false);
-        mEglCore.release();
+        // Release the EGLSurfaces and EGLContext.
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.releaseEglSurface();
+        }
+        if (mPreparedSurface != null) {
+            mPreparedSurface.releaseEglSurface();
+        }
+        releaseEgl();
 
-        // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        // Create a new EGLContext and recreate the window surfaces.
+        prepareEgl(newSharedContext);
+        if (mPreparedSurface != null) {
+            mPreparedSurface.recreate(mEglCore);
+        }
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.recreate(mEglCore);
+            mInputWindowSurface.makeCurrent();
+        }
+    }
 
-        // Create new programs and such for the new context.
-        mFullScreen = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+    /**
+     * Makes sure we have an EGL context that shares with sharedContext, creating one if
+     * this is the first recording or the context we were sharing with has changed.
+     * <p>
+     * Between recordings the context is kept current on a small pbuffer surface.
+     */
+    private void prepareEgl(EGLContext sharedContext) {
+        if (mEglCore != null) {
+            if (sharedContext == null || sharedContext.equals(mSharedContext)) {
+                return;
+            }
+            releaseEgl();
+        }
+        // GLES 3 if possible, so frames can be handed over with fences instead of glFinish().
+        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mSharedContext = sharedContext;
+        mIdleSurface = new OffscreenSurface(mEglCore, 1, 1);
+        mIdleSurface.makeCurrent();
+        GlState.get().onContextChanged();
+        mUseFences = mEglCore.getGlVersion() >= 3;
+        // Our own program: the preview thread draws with its own texture matrix meanwhile.
+        mFullScreen = new FullFrameRect(new Texture2dProgram(
+                Texture2dProgram.ProgramType.TEXTURE_2D, PROGRAM_SCOPE));
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate, File outputFile, FilterType filterType) {
+    private void prepareEncoder(EncoderConfig config) {
+        if (mMuxer == null) {
+            mMuxer = new MuxerCoordinator();
+        }
+        MuxerCoordinator muxer = mMuxer;
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
+            muxer.reset(config.mOutputFile, config.mRecordAudio ? 2 : 1);
+            mOutputFile = config.mOutputFile;
+            if (mPreparedEncoder != null) {
+                // Codec and surface are already running; just hook up the output.
+                mVideoEncoder = mPreparedEncoder;
+                mInputWindowSurface = mPreparedSurface;
+                mPreparedEncoder = null;
+                mPreparedSurface = null;
+                mPreparedConfig = null;
+            } else {
+                mVideoEncoder = new VideoEncoderCore(config);
+                mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
-        mFullScreen = new FullFrameRect(createTextureProgram(filterType));
-    }
-
-    private Texture2dProgram createTextureProgram(FilterType filterType) {
-        FilterType.FilterInfo filterInfo = FilterType.getFilterInfo(filterType);
-        Texture2dProgram.ProgramType programType = filterInfo.programType;
-        float[] kernel = filterInfo.kernel;
-        float colorAdj = filterInfo.colorAdj;
-        Texture2dProgram texture2dProgram = new Texture2dProgram(programType);
-        if (kernel != null) {
-            texture2dProgram.setKernel(kernel, colorAdj);
+        mVideoEncoder.setMuxer(muxer);
+        mVideoEncoder.setFirstSampleListener(mFirstSampleListener);
+        if (config.mRecordAudio) {
+            // Sets itself up on its own thread; video frames are muxed without waiting for it.
+            mAudioEncoder = new AudioEncoderCore(muxer);
+            mAudioEncoder.start();
         }
-        return texture2dProgram;
+        mInputWindowSurface.makeCurrent();
     }
 
+    /**
+     * Releases the per-recording state and parks the context on the idle surface.
+     */
     private void releaseEncoder() {
+        // The file isn't complete until the audio track has been finished too.
+        if (mAudioEncoder != null) {
+            mAudioEncoder.waitForStop();
+            mAudioEncoder = null;
+        }
+        // Switch away from the encoder's surface before destroying it.
+        mIdleSurface.makeCurrent();
         mVideoEncoder.release();
+        mVideoEncoder = null;
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
-        if (mFullScreen != null) {
-            mFullScreen.release(false);
-            mFullScreen = null;
+    }
+
+    /**
+     * Releases an encoder that was prepared but never used.
+     */
+    private void releasePrepared() {
+        if (mPreparedEncoder == null) {
+            return;
         }
-        if (mEglCore != null) {
-            mEglCore.release();
-            mEglCore = null;
+        mPreparedSurface.release();
+        mPreparedSurface = null;
+        mPreparedEncoder.release();
+        mPreparedEncoder = null;
+        mPreparedConfig = null;
+    }
+
+    /**
+     * Releases the EGL context and everything created in it.
+     */
+    private void releaseEgl() {
+        if (mEglCore == null) {
+            return;
         }
+        // The program and our quad geometry live in the share group, which may outlive our
+        // context.  Releasing the program only drops our reference: ProgramCache keeps it
+        // idle for the next recording, and deletes it once it falls out of the idle list.
+        // Nothing else tracks the geometry, so that is deleted here.  Our own context is
+        // always usable through the idle surface.
+        mIdleSurface.makeCurrent();
+        mFullScreen.release(true);
+        mFullScreen = null;
+        GlState.get().releaseGeometry();
+        if (mIdleSurface != null) {
+            mIdleSurface.release();
+            mIdleSurface = null;
+        }
+        mEglCore.release();
+        mEglCore = null;
+        mSharedContext = null;
     }
 }
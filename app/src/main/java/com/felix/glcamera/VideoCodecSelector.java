@@ -0,0 +1,261 @@
+package com.felix.glcamera;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaCodecInfo.VideoCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import com.felix.glcamera.TextureMovieEncoder.EncoderConfig;
+import com.felix.glcamera.camera.SizeSelector;
+
+/**
+ * Picks a video encoder for an EncoderConfig and builds the MediaFormat to configure it
+ * with, checking each setting against the encoder's CodecCapabilities.
+ * <p>
+ * Anything the device can't do is adjusted rather than passed through to configure(), which
+ * tends to fail with an unhelpful exception: HEVC falls back to AVC, the bit rate and frame
+ * rate are clamped to the supported ranges, and an unsupported bitrate mode or profile is
+ * dropped in favor of the encoder's default.
+ */
+final class VideoCodecSelector {
+    private static final String TAG = "VideoCodecSelector";
+
+    // Rough bits per pixel per frame for decent quality at camera resolutions.  HEVC gets
+    // about the same quality from a bit over half the bits.
+    private static final float AVC_BITS_PER_PIXEL = 0.1f;
+    private static final float HEVC_BITS_PER_PIXEL = 0.06f;
+
+    /**
+     * The encoder to create and the format to configure it with.
+     */
+    static final class Selection {
+        final String mCodecName;        // null: let createEncoderByType() choose
+        final String mMimeType;
+        final MediaFormat mFormat;
+
+        Selection(String codecName, String mimeType, MediaFormat format) {
+            mCodecName = codecName;
+            mMimeType = mimeType;
+            mFormat = format;
+        }
+    }
+
+    private VideoCodecSelector() {
+    }
+
+    /**
+     * Chooses an encoder for the config.
+     *
+     * @param useProfile Whether to request the config's profile and level.  Some encoders
+     *                   advertise profiles that configure() then rejects; pass false to
+     *                   retry with the encoder's default.
+     */
+    static Selection select(EncoderConfig config, boolean useProfile) {
+        int width = config.mWidth;
+        int height = config.mHeight;
+        String mimeType = config.mMimeType;
+        MediaCodecInfo codecInfo = findEncoder(mimeType, width, height);
+        if (codecInfo == null && !MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            Log.w(TAG, "no " + mimeType + " encoder for " + width + "x" + height + ", falling back to AVC");
+            mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+            codecInfo = findEncoder(mimeType, width, height);
+        }
+
+        int frameRate = config.mFrameRate;
+        int bitRate = config.mBitRate > 0 ? config.mBitRate : getDefaultBitRate(mimeType, width, height, frameRate);
+        int bitrateMode = config.mBitrateMode;
+        // Profile and level constants are specific to a codec, so they don't survive a fallback.
+        boolean keepProfile = useProfile && mimeType.equals(config.mMimeType);
+        int profile = keepProfile ? config.mProfile : EncoderConfig.PROFILE_DEFAULT;
+        int level = keepProfile ? config.mLevel : EncoderConfig.PROFILE_DEFAULT;
+
+        if (codecInfo != null) {
+            CodecCapabilities caps = codecInfo.getCapabilitiesForType(mimeType);
+            VideoCapabilities videoCaps = caps.getVideoCapabilities();
+            bitRate = videoCaps.getBitrateRange().clamp(bitRate);
+            Range<Double> frameRates = videoCaps.getSupportedFrameRatesFor(width, height);
+            frameRate = (int) Math.round(frameRates.clamp((double) frameRate));
+
+            EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+            if (bitrateMode != EncoderConfig.BITRATE_MODE_DEFAULT
+                    && !encoderCaps.isBitrateModeSupported(bitrateMode)) {
+                Log.w(TAG, codecInfo.getName() + " doesn't support bitrate mode " + bitrateMode);
+                bitrateMode = EncoderConfig.BITRATE_MODE_DEFAULT;
+            }
+
+            if (profile != EncoderConfig.PROFILE_DEFAULT) {
+                int maxLevel = getMaxLevel(caps, profile);
+                if (maxLevel == 0) {
+                    Log.w(TAG, codecInfo.getName() + " doesn't support profile " + profile);
+                    profile = level = EncoderConfig.PROFILE_DEFAULT;
+                } else if (level == EncoderConfig.PROFILE_DEFAULT || level > maxLevel) {
+                    // Level constants are ordered, so the highest advertised level is safe.
+                    level = maxLevel;
+                }
+            }
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.mIFrameInterval);
+        if (bitrateMode != EncoderConfig.BITRATE_MODE_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+        if (profile != EncoderConfig.PROFILE_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            // Before M the level key is ignored, and the profile alone is only a hint.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && level != EncoderConfig.PROFILE_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+
+        String codecName = codecInfo != null ? codecInfo.getName() : null;
+        Log.d(TAG, "selected " + codecName + " for " + config + ": " + format);
+        return new Selection(codecName, mimeType, format);
+    }
+
+    /**
+     * Returns a bit rate that gives reasonable quality for the size and frame rate.
+     */
+    static int getDefaultBitRate(String mimeType, int width, int height, int frameRate) {
+        float bitsPerPixel = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)
+                ? HEVC_BITS_PER_PIXEL : AVC_BITS_PER_PIXEL;
+        return Math.round(bitsPerPixel * width * height * frameRate);
+    }
+
+    /**
+     * Returns the limits of the encoder select() would pick for the type, for choosing a
+     * recording size.  The codec list is only read the first time the limits are asked
+     * about, so this is cheap to call on the UI thread.
+     */
+    static SizeSelector.EncoderLimits getEncoderLimits(String mimeType) {
+        return new EncoderLimits(mimeType);
+    }
+
+    /**
+     * Finds an encoder for the type that can handle the size, preferring hardware encoders.
+     * A width of 0 accepts any size.  Returns null if there isn't one.
+     */
+    private static MediaCodecInfo findEncoder(String mimeType, int width, int height) {
+        MediaCodecInfo software = null;
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (!codecInfo.isEncoder() || !supportsType(codecInfo, mimeType)) {
+                continue;
+            }
+            VideoCapabilities videoCaps = codecInfo.getCapabilitiesForType(mimeType).getVideoCapabilities();
+            if (videoCaps == null || (width > 0 && !videoCaps.isSizeSupported(width, height))) {
+                continue;
+            }
+            if (!isSoftwareCodec(codecInfo)) {
+                return codecInfo;
+            }
+            if (software == null) {
+                software = codecInfo;
+            }
+        }
+        return software;
+    }
+
+    private static boolean supportsType(MediaCodecInfo codecInfo, String mimeType) {
+        for (String type : codecInfo.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftwareCodec(MediaCodecInfo codecInfo) {
+        String name = codecInfo.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    /**
+     * Returns the highest level advertised for the profile, or 0 if it isn't supported.
+     */
+    private static int getMaxLevel(CodecCapabilities caps, int profile) {
+        int maxLevel = 0;
+        for (CodecProfileLevel profileLevel : caps.profileLevels) {
+            if (profileLevel.profile == profile && profileLevel.level > maxLevel) {
+                maxLevel = profileLevel.level;
+            }
+        }
+        return maxLevel;
+    }
+
+    /**
+     * SizeSelector's view of an encoder's VideoCapabilities.  If there's no encoder at all,
+     * nothing is ruled out and configure() gets to decide.
+     */
+    private static final class EncoderLimits implements SizeSelector.EncoderLimits {
+        private final String mMimeType;
+        private VideoCapabilities mVideoCaps;
+        private boolean mResolved;
+
+        EncoderLimits(String mimeType) {
+            mMimeType = mimeType;
+        }
+
+        private synchronized VideoCapabilities getVideoCapabilities() {
+            if (!mResolved) {
+                mResolved = true;
+                // Same fallback as select().
+                String mimeType = mMimeType;
+                MediaCodecInfo codecInfo = findEncoder(mimeType, 0, 0);
+                if (codecInfo == null && !MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+                    mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+                    codecInfo = findEncoder(mimeType, 0, 0);
+                }
+                if (codecInfo != null) {
+                    mVideoCaps = codecInfo.getCapabilitiesForType(mimeType).getVideoCapabilities();
+                    Log.d(TAG, "size limits from " + codecInfo.getName());
+                }
+            }
+            return mVideoCaps;
+        }
+
+        @Override
+        public String getName() {
+            return mMimeType;
+        }
+
+        @Override
+        public boolean isSizeSupported(int width, int height) {
+            VideoCapabilities videoCaps = getVideoCapabilities();
+            return videoCaps == null || videoCaps.isSizeSupported(width, height);
+        }
+
+        @Override
+        public int getWidthAlignment() {
+            VideoCapabilities videoCaps = getVideoCapabilities();
+            return videoCaps != null ? videoCaps.getWidthAlignment() : 2;
+        }
+
+        @Override
+        public int getHeightAlignment() {
+            VideoCapabilities videoCaps = getVideoCapabilities();
+            return videoCaps != null ? videoCaps.getHeightAlignment() : 2;
+        }
+
+        @Override
+        public double getMaxFrameRate(int width, int height) {
+            VideoCapabilities videoCaps = getVideoCapabilities();
+            if (videoCaps == null) {
+                return Double.MAX_VALUE;
+            }
+            return videoCaps.getSupportedFrameRatesFor(width, height).getUpper();
+        }
+    }
+}
@@ -17,9 +17,10 @@
 package com.felix.glcamera;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -36,22 +37,43 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In asynchronous mode the encoder reports output through MediaCodec.Callback on a private
+ * HandlerThread, and encoded data is forwarded to the muxer as soon as it's ready.  The
+ * thread feeding the input surface never waits on the output side; drainEncoder(false) is
+ * a no-op, and drainEncoder(true) only blocks until the end-of-stream buffer comes out.
  */
 public class VideoEncoderCore {
     private static final String TAG = "VideoEncoderCore";
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final long EOS_TIMEOUT_MS = 2000;        // max wait for EOS in async mode
+
+    public interface FirstSampleListener {
+        /**
+         * @param sampleNanos System.nanoTime() at which the first frame reached the muxer.
+         */
+        void onFirstSample(long sampleNanos);
+    }
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
+    // The muxer may be attached after the encoder starts, and so after the output format
+    // is known; whichever comes second adds the track.  Guarded by mMuxerLock.
+    private final Object mMuxerLock = new Object();
+    private volatile MuxerCoordinator mMuxer;
+    private MediaFormat mPendingFormat;
     private int mTrackIndex;
-    private boolean mMuxerStarted;
+    private volatile boolean mTrackAdded;       // set after mTrackIndex
+    private volatile long mFirstSampleNanos;    // System.nanoTime() of first muxed sample
+    private volatile FirstSampleListener mFirstSampleListener;
+    private VideoMetadata mMetadata;            // of the samples muxed so far
+
+    // ----- asynchronous mode only -----
+    private HandlerThread mCallbackThread;
+    private final Object mEosLock = new Object();   // guards mEosReached
+    private boolean mEosReached;
 
 
     /**
@@ -59,35 +81,229 @@ public class VideoEncoderCore {
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param asyncMode If set, output is drained by MediaCodec callbacks on a dedicated
+     *                  thread rather than by polling in drainEncoder().
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile, boolean asyncMode)
+            throws IOException {
+        this(width, height, bitRate, asyncMode);
+        setOutputFile(outputFile);
+    }
+
+    /**
+     * Configures and starts an AVC encoder with default settings, and prepares the input
+     * Surface, but doesn't create the muxer yet.
+     *
+     * @see #VideoEncoderCore(TextureMovieEncoder.EncoderConfig)
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, boolean asyncMode)
+            throws IOException {
+        this(new TextureMovieEncoder.EncoderConfig.Builder(width, height)
+                .setBitRate(bitRate)
+                .setAsyncEncoding(asyncMode)
+                .build());
+    }
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+    /**
+     * Configures and starts the encoder, and prepares the input Surface, but doesn't create
+     * the muxer yet.  This lets the expensive codec setup happen ahead of time; call
+     * setOutputFile() before feeding the first frame.
+     * <p>
+     * The codec, bit rate, frame rate, key frame interval, bitrate mode and profile come
+     * from the config, adjusted to what the device supports by VideoCodecSelector.  The
+     * config's output file is ignored.
+     */
+    public VideoEncoderCore(TextureMovieEncoder.EncoderConfig config) throws IOException {
+        mBufferInfo = new MediaCodec.BufferInfo();
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + format);
+        VideoCodecSelector.Selection selection = VideoCodecSelector.select(config, true);
+        if (VERBOSE) Log.d(TAG, "format: " + selection.mFormat);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        try {
+            mEncoder = createConfiguredEncoder(selection, config.mAsyncEncoding);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // Some encoders list profiles they can't actually be configured with.
+            Log.w(TAG, "configure failed, retrying without profile", e);
+            selection = VideoCodecSelector.select(config, false);
+            mEncoder = createConfiguredEncoder(selection, config.mAsyncEncoding);
+        }
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
-
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMetadata = new VideoMetadata(selection.mFormat.getInteger(MediaFormat.KEY_WIDTH),
+                selection.mFormat.getInteger(MediaFormat.KEY_HEIGHT));
 
         mTrackIndex = -1;
-        mMuxerStarted = false;
+        mTrackAdded = false;
+    }
+
+    /**
+     * Creates a video-only muxer that will receive the encoded stream.  Either this or
+     * setMuxer() must be called exactly once, before the first frame is submitted to the
+     * input surface.
+     */
+    public void setOutputFile(File outputFile) throws IOException {
+        setMuxer(new MuxerCoordinator(outputFile, 1));
+    }
+
+    /**
+     * Sends the encoded stream to a muxer that may be shared with other tracks (e.g.
+     * audio).  We can't add the video track here, because our MediaFormat doesn't have the
+     * Magic Goodies.  These can only be obtained from the encoder after it has started
+     * processing data, unless it already reported them, in which case the track is added
+     * now.
+     */
+    public void setMuxer(MuxerCoordinator muxer) {
+        synchronized (mMuxerLock) {
+            if (mMuxer != null) {
+                throw new IllegalStateException("muxer already set");
+            }
+            mMuxer = muxer;
+            if (mPendingFormat != null) {
+                addTrack(mPendingFormat);
+                mPendingFormat = null;
+            }
+        }
+    }
+
+    /**
+     * Adds our track to the muxer.  Call with mMuxerLock held.
+     */
+    private void addTrack(MediaFormat format) {
+        mTrackIndex = mMuxer.addTrack(format);
+        mTrackAdded = true;
+    }
+
+    /**
+     * Sets who to tell when the first encoded frame reaches the muxer.  The listener is
+     * called on the thread that drains the encoder.
+     */
+    public void setFirstSampleListener(FirstSampleListener listener) {
+        mFirstSampleListener = listener;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the first encoded frame reached the muxer, or
+     * 0 if that hasn't happened yet.  Safe to call from any thread.
+     */
+    public long getFirstSampleTimeNanos() {
+        return mFirstSampleNanos;
+    }
+
+    /**
+     * Returns what's known about the samples sent to the muxer.  Complete once release()
+     * has returned; don't look at it from another thread before then.
+     */
+    public VideoMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Creates an encoder and configures it.  On failure the encoder (and callback thread)
+     * are released again.
+     */
+    private MediaCodec createConfiguredEncoder(VideoCodecSelector.Selection selection,
+            boolean asyncMode) throws IOException {
+        MediaCodec encoder = asyncMode ? createAsyncEncoder(selection) : createEncoder(selection);
+        try {
+            encoder.configure(selection.mFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException re) {
+            encoder.release();
+            if (mCallbackThread != null) {
+                mCallbackThread.quit();
+                mCallbackThread = null;
+            }
+            throw re;
+        }
+        return encoder;
+    }
+
+    /**
+     * Creates the encoder and routes its callbacks to our private thread.
+     * <p>
+     * Before API 23 there is no setCallback(callback, handler), and callbacks are posted to
+     * the looper of the thread that created the codec.  So on older releases we create the
+     * codec on the callback thread itself.
+     */
+    private MediaCodec createAsyncEncoder(VideoCodecSelector.Selection selection) throws IOException {
+        mCallbackThread = new HandlerThread("VideoEncoderCallback");
+        mCallbackThread.start();
+        Handler handler = new Handler(mCallbackThread.getLooper());
+
+        final MediaCodec encoder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            encoder = createEncoder(selection);
+            encoder.setCallback(new EncoderCallback(), handler);
+        } else {
+            encoder = createEncoderOn(handler, selection);
+            encoder.setCallback(new EncoderCallback());
+        }
+        return encoder;
+    }
+
+    /**
+     * Creates a MediaCodec on the thread behind the handler, waiting for it to finish.
+     */
+    private static MediaCodec createEncoderOn(Handler handler,
+            final VideoCodecSelector.Selection selection) throws IOException {
+        final MediaCodec[] result = new MediaCodec[1];
+        final IOException[] failure = new IOException[1];
+        final Object lock = new Object();
+        synchronized (lock) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    MediaCodec codec = null;
+                    IOException error = null;
+                    try {
+                        codec = createEncoder(selection);
+                    } catch (IOException ioe) {
+                        error = ioe;
+                    }
+                    synchronized (lock) {
+                        result[0] = codec;
+                        failure[0] = error;
+                        lock.notify();
+                    }
+                }
+            });
+            while (result[0] == null && failure[0] == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result[0];
+    }
+
+    /**
+     * Creates the encoder the selector picked, or any encoder for the type if it couldn't
+     * enumerate them.
+     */
+    private static MediaCodec createEncoder(VideoCodecSelector.Selection selection) throws IOException {
+        if (selection.mCodecName != null) {
+            return MediaCodec.createByCodecName(selection.mCodecName);
+        }
+        return MediaCodec.createEncoderByType(selection.mMimeType);
+    }
+
+    /**
+     * Returns true if output is delivered through MediaCodec callbacks.
+     */
+    public boolean isAsync() {
+        return mCallbackThread != null;
     }
 
     /**
@@ -98,7 +314,8 @@ public class VideoEncoderCore {
     }
 
     /**
-     * Releases encoder resources.
+     * Releases encoder resources.  Output not yet drained is dropped, so call
+     * drainEncoder(true) first to keep the end of the recording.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
@@ -107,11 +324,25 @@ public class VideoEncoderCore {
             mEncoder.release();
             mEncoder = null;
         }
+        if (mCallbackThread != null) {
+            // stop() makes the codec drop its callbacks, queued ones included, so output
+            // that wasn't drained first (drainEncoder(true) waits for EOS) is lost.  This
+            // only waits out a callback already running, so it's done with the muxer.
+            mCallbackThread.quitSafely();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+            mCallbackThread = null;
+        }
         if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
-            mMuxer.release();
+            // The muxer is stopped once every track sharing it is done.
+            if (mTrackAdded) {
+                mMuxer.finishTrack();
+            } else {
+                mMuxer.abandonTrack();
+            }
             mMuxer = null;
         }
     }
@@ -123,13 +354,22 @@ public class VideoEncoderCore {
      * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      * <p>
-     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
-     * not recording audio.
+     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  Any
+     * audio is encoded and muxed separately.
      */
     public void drainEncoder(boolean endOfStream) {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (isAsync()) {
+            if (endOfStream) {
+                if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+                mEncoder.signalEndOfInputStream();
+                awaitEndOfStream();
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
@@ -150,16 +390,18 @@ public class VideoEncoderCore {
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
+                if (mTrackAdded) {
                     throw new RuntimeException("format changed twice");
                 }
                 MediaFormat newFormat = mEncoder.getOutputFormat();
                 Log.d(TAG, "encoder output format changed: " + newFormat);
 
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                // now that we have the Magic Goodies, add our track (the muxer starts
+                // once all of its tracks are in).  Drained only while recording, so the
+                // muxer is set.
+                synchronized (mMuxerLock) {
+                    addTrack(newFormat);
+                }
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -179,8 +421,8 @@ public class VideoEncoderCore {
                 }
 
                 if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
+                    if (!mTrackAdded) {
+                        throw new RuntimeException("video track hasn't been added");
                     }
 
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
@@ -188,6 +430,11 @@ public class VideoEncoderCore {
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
                     mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    mMetadata.addSample(mBufferInfo.presentationTimeUs, mBufferInfo.size,
+                            (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    if (mFirstSampleNanos == 0) {
+                        onFirstSample();
+                    }
                     if (VERBOSE) {
                         Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
                                 mBufferInfo.presentationTimeUs);
@@ -207,4 +454,122 @@ public class VideoEncoderCore {
             }
         }
     }
+
+    /**
+     * Blocks until the callback thread has seen the end-of-stream buffer, or we give up.
+     */
+    private void awaitEndOfStream() {
+        long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+        synchronized (mEosLock) {
+            while (!mEosReached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out waiting for end of stream");
+                    break;
+                }
+                try {
+                    mEosLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void onFirstSample() {
+        mFirstSampleNanos = System.nanoTime();
+        FirstSampleListener listener = mFirstSampleListener;
+        if (listener != null) {
+            listener.onFirstSample(mFirstSampleNanos);
+        }
+    }
+
+    /**
+     * Forwards one encoded buffer to the muxer.  Runs on the callback thread.
+     */
+    private void writeEncodedBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        ByteBuffer encodedData = codec.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the format change callback.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            if (!mTrackAdded) {
+                throw new RuntimeException("video track hasn't been added");
+            }
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+            mMetadata.addSample(info.presentationTimeUs, info.size,
+                    (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            if (mFirstSampleNanos == 0) {
+                onFirstSample();
+            }
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                        info.presentationTimeUs);
+            }
+        }
+
+        codec.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (VERBOSE) Log.d(TAG, "end of stream reached");
+            synchronized (mEosLock) {
+                mEosReached = true;
+                mEosLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Receives encoder output on the callback thread.  Input comes from the Surface, so
+     * there are never any input buffers to fill.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // not used with surface input
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            writeEncodedBuffer(codec, index, info);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // should happen before receiving buffers, and should only happen once
+            Log.d(TAG, "encoder output format changed: " + format);
+            synchronized (mMuxerLock) {
+                if (mTrackAdded || mPendingFormat != null) {
+                    throw new RuntimeException("format changed twice");
+                }
+                if (mMuxer != null) {
+                    addTrack(format);
+                } else {
+                    // A prepared encoder: setMuxer() adds the track.
+                    mPendingFormat = format;
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            // Don't leave the encoder thread stuck waiting for an EOS that won't come.
+            synchronized (mEosLock) {
+                mEosReached = true;
+                mEosLock.notifyAll();
+            }
+        }
+    }
 }
@@ -0,0 +1,171 @@
+package com.felix.glcamera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * What the encoder knows about a recording: its size, frame and key frame counts,
+ * timestamps and data rate.  Collected as the samples go to the muxer, and saved next to
+ * the video in a small sidecar file, so none of it needs the video parsed again.
+ */
+public class VideoMetadata implements Serializable {
+    private static final long serialVersionUID = 2214893760132504937L;
+    private static final int SIDECAR_MAGIC = 0x474c4d44;   // "GLMD"
+    private static final int SIDECAR_VERSION = 1;
+    private static final String SIDECAR_SUFFIX = ".meta";
+
+    private final int mWidth;
+    private final int mHeight;
+    private int mFrameCount;
+    private int mKeyFrameCount;
+    private long mFirstPtsUs = -1;
+    private long mLastPtsUs = -1;
+    private long mByteCount;
+
+    public VideoMetadata(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Returns the sidecar file that goes with a video.
+     */
+    public static File getSidecarFile(File videoFile) {
+        return new File(videoFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Counts one encoded frame.
+     */
+    public void addSample(long ptsUs, int size, boolean keyFrame) {
+        // B-frames come out of presentation order.
+        mFirstPtsUs = mFrameCount == 0 ? ptsUs : Math.min(mFirstPtsUs, ptsUs);
+        mLastPtsUs = Math.max(mLastPtsUs, ptsUs);
+        mFrameCount++;
+        if (keyFrame) {
+            mKeyFrameCount++;
+        }
+        mByteCount += size;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    /**
+     * Returns the presentation time of the first frame, in microseconds, or -1 if there
+     * were no frames.
+     */
+    public long getFirstPtsUs() {
+        return mFirstPtsUs;
+    }
+
+    public long getLastPtsUs() {
+        return mLastPtsUs;
+    }
+
+    /**
+     * Returns the duration in microseconds, counting the last frame as lasting as long as
+     * the average one.
+     */
+    public long getDurationUs() {
+        if (mFrameCount == 0) {
+            return 0;
+        }
+        long span = mLastPtsUs - mFirstPtsUs;
+        return mFrameCount > 1 ? span + span / (mFrameCount - 1) : 0;
+    }
+
+    /**
+     * Returns the average video bit rate, in bits per second.
+     */
+    public int getBitRate() {
+        long durationUs = getDurationUs();
+        return durationUs > 0 ? (int) (mByteCount * 8 * 1000000 / durationUs) : 0;
+    }
+
+    /**
+     * Writes the sidecar file, replacing any earlier one.
+     */
+    public void writeTo(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(SIDECAR_MAGIC);
+            out.writeInt(SIDECAR_VERSION);
+            out.writeInt(mWidth);
+            out.writeInt(mHeight);
+            out.writeInt(mFrameCount);
+            out.writeInt(mKeyFrameCount);
+            out.writeLong(mFirstPtsUs);
+            out.writeLong(mLastPtsUs);
+            out.writeLong(mByteCount);
+        } finally {
+            out.close();
+        }
+        // Renamed into place, so a reader never sees half a file.
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads a sidecar file.  Returns null if it's missing or not one we wrote.
+     */
+    public static VideoMetadata readFrom(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION) {
+                return null;
+            }
+            VideoMetadata metadata = new VideoMetadata(in.readInt(), in.readInt());
+            metadata.mFrameCount = in.readInt();
+            metadata.mKeyFrameCount = in.readInt();
+            metadata.mFirstPtsUs = in.readLong();
+            metadata.mLastPtsUs = in.readLong();
+            metadata.mByteCount = in.readLong();
+            return metadata;
+        } catch (IOException ioe) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight + " " + mFrameCount + " frames (" + mKeyFrameCount
+                + " key) " + getDurationUs() / 1000 + "ms " + getBitRate() / 1000 + "kbps";
+    }
+}
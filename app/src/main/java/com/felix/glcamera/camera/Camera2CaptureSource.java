@@ -0,0 +1,544 @@
+package com.felix.glcamera.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * CaptureSource on camera2.  The device is opened and the session configured
+ * asynchronously, with camera callbacks arriving on the given handler, so open() and
+ * startPreview() return at once and opening the device overlaps with the GL thread
+ * creating the SurfaceTexture.
+ * <p>
+ * Camera characteristics come from the CapabilityCache when they can, so a cached camera is
+ * configured without asking the camera service anything, and the stream size is settled
+ * as soon as the texture arrives, before the device has finished opening.
+ */
+public class Camera2CaptureSource implements CaptureSource {
+    private static final String TAG = "Camera2CaptureSource";
+
+    private final CameraManager mManager;
+    private final Handler mCameraHandler;
+    private Handler mCallbackHandler;       // on the thread that called open()
+    private Callback mCallback;
+    private volatile boolean mClosed;
+    private volatile boolean mTorchOn;
+    private volatile boolean mRecording;
+    private volatile FrameAnalysisPool mAnalysisPool;
+    private volatile boolean mFlashAvailable;
+
+    // Only touched on the camera thread.
+    private CameraCapabilities mCaps;
+    private SizeSelector.Selection mSelection;
+    private CameraDevice mDevice;
+    private boolean mOpening;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+    private SurfaceTexture mTexture;
+    private Surface mSurface;
+    private ImageReader mImageReader;           // YUV frames for mActivePool
+    private FrameAnalysisPool mActivePool;
+    private ArrayBlockingQueue<byte[]> mFreeBuffers;
+    private SizeSelector.Request mPreviewRequest;
+
+    /**
+     * @param cameraHandler Handler for camera callbacks; usually the caller's.
+     */
+    public Camera2CaptureSource(Context context, Handler cameraHandler) {
+        mManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mCameraHandler = cameraHandler;
+    }
+
+    /**
+     * Returns true if the camera facing the given way has real camera2 support, rather than
+     * the LEGACY level, which is Camera1 underneath and gains nothing over LegacyCaptureSource.
+     */
+    public static boolean isSupported(Context context, int facing) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            CameraCapabilities caps = getCapabilities(manager, facing);
+            return caps != null
+                    && caps.mHardwareLevel != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException cae) {
+            Log.w(TAG, "unable to query cameras", cae);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the capabilities of the camera facing the given way, from the cache or else
+     * from its characteristics, or null if there's no such camera.
+     */
+    private static CameraCapabilities getCapabilities(CameraManager manager, int facing)
+            throws CameraAccessException {
+        CapabilityCache cache = CapabilityCache.getInstance();
+        CameraCapabilities caps = cache.get(CameraCapabilities.API_CAMERA2, facing);
+        if (caps != null) {
+            return caps;
+        }
+        int lensFacing = facing == FACING_FRONT
+                ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            Integer value = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (value != null && value == lensFacing) {
+                caps = describe(facing, cameraId, characteristics);
+                cache.put(caps);
+                return caps;
+            }
+        }
+        return null;
+    }
+
+    private static CameraCapabilities describe(int facing, String cameraId,
+            CameraCharacteristics characteristics) {
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map.getOutputSizes(SurfaceTexture.class);
+        int[] previewSizes = new int[sizes.length * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            previewSizes[i * 2] = sizes[i].getWidth();
+            previewSizes[i * 2 + 1] = sizes[i].getHeight();
+        }
+        Range<Integer>[] ranges =
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        int[] fpsRanges = new int[ranges != null ? ranges.length * 2 : 0];
+        for (int i = 0; i < fpsRanges.length / 2; i++) {
+            fpsRanges[i * 2] = ranges[i].getLower() * 1000;
+            fpsRanges[i * 2 + 1] = ranges[i].getUpper() * 1000;
+        }
+        Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        return new CameraCapabilities(CameraCapabilities.API_CAMERA2, facing, cameraId,
+                level != null ? level : CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+                previewSizes, new int[0], fpsRanges,
+                contains(characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO),
+                contains(characteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES),
+                        CaptureRequest.CONTROL_AWB_MODE_AUTO),
+                contains(characteristics.get(
+                        CameraCharacteristics.CONTROL_AVAILABLE_VIDEO_STABILIZATION_MODES),
+                        CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_ON),
+                flash != null && flash);
+    }
+
+    @Override
+    public void open(final int facing, Callback callback) {
+        mCallback = callback;
+        mCallbackHandler = new Handler(Looper.myLooper());
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openCamera(facing);
+            }
+        });
+    }
+
+    @Override
+    public void startPreview(final SurfaceTexture texture, final SizeSelector.Request request) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTexture = texture;
+                mPreviewRequest = request;
+                chooseConfig();
+                createSession();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mOpening) {
+                    finishClose();
+                }
+                // Otherwise the open callback closes the device when it arrives.
+            }
+        });
+    }
+
+    @Override
+    public void setTorch(final boolean on) {
+        mTorchOn = on;
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSession != null) {
+                    applyRequest();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setRecording(final boolean recording) {
+        mRecording = recording;
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSession != null) {
+                    applyRequest();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setFrameAnalysisPool(FrameAnalysisPool pool) {
+        mAnalysisPool = pool;
+    }
+
+    @Override
+    public boolean isTorchOn() {
+        return mTorchOn && mFlashAvailable;
+    }
+
+    private void openCamera(int facing) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mCaps = getCapabilities(mManager, facing);
+            if (mCaps == null) {
+                reportError(ERROR_OPEN, "No camera facing " + facing);
+                return;
+            }
+            mFlashAvailable = mCaps.mFlash;
+            mManager.openCamera(mCaps.mCameraId, mStateCallback, mCameraHandler);
+            mOpening = true;
+        } catch (CameraAccessException | SecurityException e) {
+            Log.w(TAG, "openCamera failed", e);
+            reportError(ERROR_OPEN, "Unable to open camera");
+        }
+    }
+
+    /**
+     * Picks the stream size and frame rate, and sizes the texture for it.  Needs only the
+     * capabilities, so it can run while the device is still opening.
+     */
+    private void chooseConfig() {
+        if (mCaps == null || mTexture == null) {
+            return;         // openCamera() failed
+        }
+        int viewWidth = mPreviewRequest.getViewWidth();
+        int viewHeight = mPreviewRequest.getViewHeight();
+        int key = mPreviewRequest.getKey();
+        mSelection = SizeSelector.Selection.fromArray(mCaps.getChoice(viewWidth, viewHeight, key));
+        if (mSelection == null) {
+            mSelection = SizeSelector.select(mCaps.mPreviewSizes, mCaps.mFpsRanges,
+                    mPreviewRequest);
+            mCaps.setChoice(viewWidth, viewHeight, key, mSelection.toArray());
+            CapabilityCache.getInstance().put(mCaps);
+        }
+        // Camera1 sizes the texture's buffers itself; camera2 picks the stream size from them.
+        mTexture.setDefaultBufferSize(mSelection.mPreviewWidth, mSelection.mPreviewHeight);
+    }
+
+    /**
+     * Configures the session once both the device and the texture are here.
+     */
+    private void createSession() {
+        if (mDevice == null || mTexture == null || mSession != null || mClosed) {
+            return;
+        }
+        final SizeSelector.Selection selection = mSelection;
+        mSurface = new Surface(mTexture);
+        List<Surface> outputs = Collections.singletonList(mSurface);
+        startAnalysis();
+        if (mImageReader != null) {
+            outputs = Arrays.asList(mSurface, mImageReader.getSurface());
+        }
+        try {
+            mRequest = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            for (Surface output : outputs) {
+                mRequest.addTarget(output);
+            }
+            if (mCaps.mContinuousVideoFocus) {
+                mRequest.set(CaptureRequest.CONTROL_AF_MODE,
+                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            }
+            if (mCaps.mVideoStabilization) {
+                mRequest.set(CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
+                        CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_ON);
+            }
+            mDevice.createCaptureSession(outputs,
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession session) {
+                            if (mClosed || mDevice == null) {
+                                session.close();
+                                return;
+                            }
+                            mSession = session;
+                            if (applyRequest()) {
+                                reportStarted(selection);
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session) {
+                            // Like a device error: give up on the camera, which close()
+                            // finishes releasing.
+                            session.close();
+                            if (mDevice != null) {
+                                mDevice.close();
+                                mDevice = null;
+                            }
+                            if (mClosed) {
+                                finishClose();
+                            } else {
+                                reportError(ERROR_PREVIEW, "Unable to configure preview");
+                            }
+                        }
+                    }, mCameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "createCaptureSession failed", e);
+            reportError(ERROR_PREVIEW, "Unable to preview");
+        }
+    }
+
+    /**
+     * (Re)starts the repeating request with the current settings.  Returns false if the
+     * camera refused it.
+     */
+    private boolean applyRequest() {
+        // Without advertised ranges the selection's range is only assumed; leave AE alone.
+        if (mCaps.mFpsRanges.length > 0) {
+            Range<Integer> fpsRange = mRecording
+                    ? new Range<Integer>(mSelection.mFpsMin / 1000, mSelection.mFpsMax / 1000)
+                    : new Range<Integer>(mSelection.mPreviewFpsMin / 1000,
+                            mSelection.mPreviewFpsMax / 1000);
+            mRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        if (mFlashAvailable) {
+            mRequest.set(CaptureRequest.FLASH_MODE, mTorchOn
+                    ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+        }
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), null, mCameraHandler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "setRepeatingRequest failed", e);
+            reportError(ERROR_PREVIEW, "Unable to preview");
+            return false;
+        }
+    }
+
+    private void finishClose() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mDevice != null) {
+            mDevice.close();
+            mDevice = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mActivePool != null) {
+            mActivePool.stop();
+            mActivePool = null;
+        }
+        mTexture = null;
+    }
+
+    /**
+     * Sets up a YUV stream at the preview size for the analysis pool, if there is one.
+     * Images are copied into the pool's buffers as NV21, so the pool and its analyzers
+     * work the same as with Camera1.
+     */
+    private void startAnalysis() {
+        mActivePool = mAnalysisPool;
+        if (mActivePool == null) {
+            return;
+        }
+        int width = mSelection.mPreviewWidth;
+        int height = mSelection.mPreviewHeight;
+        mFreeBuffers = new ArrayBlockingQueue<>(mActivePool.getBufferCount());
+        final ArrayBlockingQueue<byte[]> freeBuffers = mFreeBuffers;
+        mActivePool.start(width, height, new FrameAnalysisPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                freeBuffers.offer(buffer);
+            }
+        });
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 2);
+        mImageReader.setOnImageAvailableListener(mImageListener, mCameraHandler);
+    }
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                if (mActivePool == null) {
+                    return;
+                }
+                byte[] buffer = mFreeBuffers.poll();
+                if (buffer == null) {
+                    mActivePool.onFrameDropped();
+                    return;
+                }
+                copyToNv21(image, buffer);
+                mActivePool.submit(buffer, image.getTimestamp());
+            } finally {
+                image.close();
+            }
+        }
+    };
+
+    /**
+     * Copies a YUV_420_888 image into an NV21 buffer, whatever the planes' strides.
+     */
+    private static void copyToNv21(Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        int rowStride = planes[0].getRowStride();
+        if (planes[0].getPixelStride() == 1) {
+            for (int row = 0; row < height; row++) {
+                y.position(row * rowStride);
+                y.get(nv21, row * width, width);
+            }
+        } else {
+            copyPlane(planes[0], width, height, nv21, 0, 1);
+        }
+        // NV21 interleaves V then U.
+        copyPlane(planes[2], width / 2, height / 2, nv21, width * height, 2);
+        copyPlane(planes[1], width / 2, height / 2, nv21, width * height + 1, 2);
+    }
+
+    private static void copyPlane(Image.Plane plane, int width, int height, byte[] out,
+            int offset, int outPixelStride) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int in = row * rowStride;
+            int o = offset + row * width * outPixelStride;
+            for (int col = 0; col < width; col++) {
+                out[o] = buffer.get(in);
+                in += pixelStride;
+                o += outPixelStride;
+            }
+        }
+    }
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice device) {
+            mOpening = false;
+            mDevice = device;
+            if (mClosed) {
+                finishClose();
+                return;
+            }
+            reportOpened();
+            createSession();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice device) {
+            mOpening = false;
+            device.close();
+            mDevice = null;
+            if (mClosed) {
+                finishClose();
+            } else {
+                reportError(ERROR_OPEN, "Camera disconnected");
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice device, int error) {
+            mOpening = false;
+            device.close();
+            mDevice = null;
+            if (mClosed) {
+                finishClose();
+            } else {
+                reportError(ERROR_OPEN, "Camera error " + error);
+            }
+        }
+    };
+
+    private void reportOpened() {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    mCallback.onOpened();
+                }
+            }
+        });
+    }
+
+    private void reportStarted(final SizeSelector.Selection selection) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    mCallback.onPreviewStarted(selection);
+                }
+            }
+        });
+    }
+
+    private void reportError(final int error, final String message) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    mCallback.onError(error, message);
+                }
+            }
+        });
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if (values != null) {
+            for (int v : values) {
+                if (v == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
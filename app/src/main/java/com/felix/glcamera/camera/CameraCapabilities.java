@@ -0,0 +1,118 @@
+package com.felix.glcamera.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * What one camera supports, as far as video preview cares, plus the configuration last
+ * chosen for it.  Kept in the CapabilityCache so later launches can skip querying.
+ */
+public final class CameraCapabilities {
+    public static final int API_CAMERA1 = 1;
+    public static final int API_CAMERA2 = 2;
+
+    public final int mApi;
+    public final int mFacing;                   // CaptureSource.FACING_*
+    public final String mCameraId;              // camera2 id, or Camera1 index
+    public final int mHardwareLevel;            // camera2 INFO_SUPPORTED_HARDWARE_LEVEL, or -1
+    public final int[] mPreviewSizes;           // width, height pairs
+    public final int[] mFrameRates;             // Camera1's getSupportedPreviewFrameRates()
+    public final int[] mFpsRanges;              // min, max pairs, in frames per second * 1000
+    public final boolean mContinuousVideoFocus;
+    public final boolean mAutoWhiteBalance;
+    public final boolean mVideoStabilization;
+    public final boolean mFlash;
+
+    // The last choice, and the preferred size it was made for.
+    private int[] mChoiceKey;
+    private int[] mChoice;
+
+    public CameraCapabilities(int api, int facing, String cameraId, int hardwareLevel,
+            int[] previewSizes, int[] frameRates, int[] fpsRanges, boolean continuousVideoFocus,
+            boolean autoWhiteBalance, boolean videoStabilization, boolean flash) {
+        mApi = api;
+        mFacing = facing;
+        mCameraId = cameraId;
+        mHardwareLevel = hardwareLevel;
+        mPreviewSizes = previewSizes;
+        mFrameRates = frameRates;
+        mFpsRanges = fpsRanges;
+        mContinuousVideoFocus = continuousVideoFocus;
+        mAutoWhiteBalance = autoWhiteBalance;
+        mVideoStabilization = videoStabilization;
+        mFlash = flash;
+    }
+
+    /**
+     * Returns the configuration chosen for a preferred size and key (anything else the choice
+     * depended on), or null if there isn't one.  The values are whatever the source stored.
+     */
+    public synchronized int[] getChoice(int preferredWidth, int preferredHeight, int key) {
+        if (mChoiceKey != null && mChoiceKey[0] == preferredWidth
+                && mChoiceKey[1] == preferredHeight && mChoiceKey[2] == key) {
+            return mChoice;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers a choice.  Call CapabilityCache.put() afterwards to persist it.
+     */
+    public synchronized void setChoice(int preferredWidth, int preferredHeight, int key,
+            int[] choice) {
+        mChoiceKey = new int[] {preferredWidth, preferredHeight, key};
+        mChoice = choice;
+    }
+
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mApi);
+        out.writeInt(mFacing);
+        out.writeUTF(mCameraId);
+        out.writeInt(mHardwareLevel);
+        writeInts(out, mPreviewSizes);
+        writeInts(out, mFrameRates);
+        writeInts(out, mFpsRanges);
+        out.writeBoolean(mContinuousVideoFocus);
+        out.writeBoolean(mAutoWhiteBalance);
+        out.writeBoolean(mVideoStabilization);
+        out.writeBoolean(mFlash);
+        writeInts(out, mChoiceKey);
+        writeInts(out, mChoice);
+    }
+
+    static CameraCapabilities readFrom(DataInputStream in) throws IOException {
+        CameraCapabilities caps = new CameraCapabilities(in.readInt(), in.readInt(), in.readUTF(),
+                in.readInt(), readInts(in), readInts(in), readInts(in), in.readBoolean(),
+                in.readBoolean(), in.readBoolean(), in.readBoolean());
+        int[] choiceKey = readInts(in);
+        int[] choice = readInts(in);
+        if (choiceKey != null && choiceKey.length == 3 && choice != null) {
+            caps.setChoice(choiceKey[0], choiceKey[1], choiceKey[2], choice);
+        }
+        return caps;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
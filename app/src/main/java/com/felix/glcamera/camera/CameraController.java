@@ -0,0 +1,388 @@
+package com.felix.glcamera.camera;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Runs a CaptureSource on the camera thread, so opening and configuring the camera (a few
+ * hundred milliseconds with Camera1) never blocks the UI thread.  There's one camera thread
+ * for the whole process, and it never quits: camera2 may still owe a callback for a device
+ * that's being closed, and a thread that had gone away would leave that device open.
+ * <p>
+ * On the camera thread the camera goes CLOSED -> OPENING -> CONFIGURED -> PREVIEWING ->
+ * CLOSING -> CLOSED.  CONFIGURED means the device is open and waiting for a texture, or for
+ * its preview to start.  Results go to the callback on the thread that created the
+ * controller, which is also the thread all methods must be called from.  Results from an
+ * earlier open() are dropped once close() has been called.
+ */
+public class CameraController {
+    private static final String TAG = "CameraController";
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPENING = 1;
+    private static final int STATE_CONFIGURED = 2;
+    private static final int STATE_PREVIEWING = 3;
+    private static final int STATE_CLOSING = 4;
+    private static final String[] STATE_NAMES = {
+            "closed", "opening", "configured", "previewing", "closing"};
+
+    private static final int MSG_OPEN = 0;
+    private static final int MSG_SET_TEXTURE = 1;
+    private static final int MSG_CLOSE = 2;
+    private static final int MSG_SET_TORCH = 3;
+    private static final int MSG_SWITCH = 4;
+    private static final int MSG_SET_RECORDING = 5;
+    private static final int MSG_SET_ANALYSIS_POOL = 6;
+
+    private static HandlerThread sCameraThread;
+
+    private final Context mContext;
+    private final CaptureSource.Callback mCallback;
+    private final Handler mCallerHandler;
+    private final CameraHandler mHandler;
+    private boolean mOpen;                  // as far as the caller is concerned
+    private int mSession;                   // bumped by open(), to spot stale results
+    private volatile boolean mTorchOn;
+    private FrameAnalysisPool mCallerAnalysisPool;
+
+    // Only touched on the camera thread.
+    private int mState = STATE_CLOSED;
+    private CaptureSource mSource;
+    private int mFacing;
+    private int mSourceSession;
+    private SurfaceTexture mTexture;
+    private SizeSelector.Request mRequest;
+    private boolean mRecording;
+    private FrameAnalysisPool mAnalysisPool;
+    private boolean mPreviewRequested;
+    private long mOpenStartNanos;
+
+    public CameraController(Context context, CaptureSource.Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mCallerHandler = new Handler(Looper.myLooper());
+        mHandler = new CameraHandler(getCameraLooper(), this);
+    }
+
+    private static synchronized Looper getCameraLooper() {
+        if (sCameraThread == null) {
+            sCameraThread = new HandlerThread(TAG);
+            sCameraThread.start();
+        }
+        return sCameraThread.getLooper();
+    }
+
+    /**
+     * Starts opening the camera facing the given way.  The preview starts once
+     * setPreviewTexture() has been called too, in either order.
+     */
+    public void open(int facing) {
+        mOpen = true;
+        mSession++;
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_OPEN, facing, mSession));
+    }
+
+    /**
+     * Switches to another camera, streaming into the same texture.  The old camera is closed
+     * and the new one opened back to back on the camera thread, without going through
+     * close() and open(); camera2 finishes closing a device in the background, so there the
+     * two overlap.  Results of the old camera still in flight are dropped.
+     */
+    public void switchCamera(int facing) {
+        if (!mOpen) {
+            open(facing);
+            return;
+        }
+        mSession++;
+        mTorchOn = false;
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SWITCH, facing, mSession));
+    }
+
+    /**
+     * Sets the texture to stream into, and what to choose the preview size and frame rate
+     * for.
+     */
+    public void setPreviewTexture(SurfaceTexture texture, SizeSelector.Request request) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE,
+                new Object[] {texture, request}));
+    }
+
+    /**
+     * Closes the camera.
+     */
+    public void close() {
+        if (mOpen) {
+            mOpen = false;
+            mTorchOn = false;
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_CLOSE));
+        }
+    }
+
+    /**
+     * Returns true between open() and close().
+     */
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    public void setTorch(boolean on) {
+        if (mOpen) {
+            mTorchOn = on;
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TORCH, on ? 1 : 0, 0));
+        }
+    }
+
+    public boolean isTorchOn() {
+        return mTorchOn;
+    }
+
+    /**
+     * Sets something to look at preview frames on the CPU, or null for nothing.  The
+     * analyzer runs on its own workers, and gets frames from the next time the preview
+     * starts, so set it before open().
+     *
+     * @param workerCount Most frames analyzed at once; more are dropped.
+     */
+    public void setFrameAnalyzer(FrameAnalyzer analyzer, int workerCount) {
+        FrameAnalysisPool pool = analyzer != null
+                ? new FrameAnalysisPool(analyzer, workerCount) : null;
+        if (pool == null && mCallerAnalysisPool == null) {
+            return;
+        }
+        mCallerAnalysisPool = pool;
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_ANALYSIS_POOL, pool));
+    }
+
+    /**
+     * Returns the number of frames the analyzer has looked at.
+     */
+    public long getAnalyzedFrameCount() {
+        return mCallerAnalysisPool != null ? mCallerAnalysisPool.getAnalyzedCount() : 0;
+    }
+
+    /**
+     * Returns the number of frames the analyzer missed because it was busy.
+     */
+    public long getDroppedAnalysisFrameCount() {
+        return mCallerAnalysisPool != null ? mCallerAnalysisPool.getDroppedCount() : 0;
+    }
+
+    /**
+     * Tells the camera whether frames are being recorded, so it holds a steady frame rate
+     * while they are and may slow down in low light while they aren't.
+     */
+    public void setRecording(boolean recording) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_RECORDING, recording ? 1 : 0, 0));
+    }
+
+    private void setState(int state) {
+        Log.d(TAG, STATE_NAMES[mState] + " -> " + STATE_NAMES[state]);
+        mState = state;
+    }
+
+    /**
+     * Opens a camera, first closing any that's open but keeping the texture.
+     */
+    private void handleOpen(int facing, int session) {
+        if (mState != STATE_CLOSED) {
+            closeSource();
+        }
+        mFacing = facing;
+        mSourceSession = session;
+        mOpenStartNanos = System.nanoTime();
+        setState(STATE_OPENING);
+        // Asking camera2 about the hardware level is a binder call too, so it's done here.
+        if (Camera2CaptureSource.isSupported(mContext, facing)) {
+            mSource = new Camera2CaptureSource(mContext, mHandler);
+        } else {
+            mSource = new LegacyCaptureSource();
+        }
+        mSource.setRecording(mRecording);
+        mSource.setFrameAnalysisPool(mAnalysisPool);
+        mSource.open(facing, mSourceCallback);
+        maybeStartPreview();
+    }
+
+    private void handleSetTexture(SurfaceTexture texture, SizeSelector.Request request) {
+        boolean restart = mPreviewRequested && texture != mTexture;
+        mTexture = texture;
+        mRequest = request;
+        if (restart) {
+            // New GL context while the camera stayed open: start over on the new texture.
+            handleOpen(mFacing, mSourceSession);
+        } else {
+            maybeStartPreview();
+        }
+    }
+
+    /**
+     * Hands the texture to the source as soon as there's one.  That can be before the device
+     * has opened, so the source can settle its configuration in the meantime.
+     */
+    private void maybeStartPreview() {
+        if ((mState == STATE_OPENING || mState == STATE_CONFIGURED) && mTexture != null
+                && !mPreviewRequested) {
+            mPreviewRequested = true;
+            mSource.startPreview(mTexture, mRequest);
+        }
+    }
+
+    private void handleClose() {
+        closeSource();
+        mTexture = null;
+    }
+
+    private void closeSource() {
+        if (mState == STATE_CLOSED) {
+            return;
+        }
+        setState(STATE_CLOSING);
+        mSource.close();
+        mSource = null;
+        mPreviewRequested = false;
+        setState(STATE_CLOSED);
+    }
+
+    private void handleSetRecording(boolean recording) {
+        mRecording = recording;
+        if (mSource != null) {
+            mSource.setRecording(recording);
+        }
+    }
+
+    private void handleSetAnalysisPool(FrameAnalysisPool pool) {
+        if (mAnalysisPool != null) {
+            // A source still feeding it drops its frames from now on.
+            mAnalysisPool.release();
+        }
+        mAnalysisPool = pool;
+        if (mSource != null) {
+            mSource.setFrameAnalysisPool(pool);
+        }
+    }
+
+    private void handleSetTorch(boolean on) {
+        if (mSource != null) {
+            mSource.setTorch(on);
+        }
+    }
+
+    private final CaptureSource.Callback mSourceCallback = new CaptureSource.Callback() {
+        @Override
+        public void onOpened() {
+            if (mState != STATE_OPENING) {
+                return;
+            }
+            Log.d(TAG, "camera " + mFacing + " opened in "
+                    + (System.nanoTime() - mOpenStartNanos) / 1000000 + " ms");
+            setState(STATE_CONFIGURED);
+            final int session = mSourceSession;
+            mCallerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(session)) {
+                        mCallback.onOpened();
+                    }
+                }
+            });
+            maybeStartPreview();
+        }
+
+        @Override
+        public void onPreviewStarted(final SizeSelector.Selection selection) {
+            if (mState != STATE_CONFIGURED) {
+                return;
+            }
+            Log.d(TAG, selection + " started " + (System.nanoTime() - mOpenStartNanos) / 1000000
+                    + " ms after open");
+            setState(STATE_PREVIEWING);
+            final int session = mSourceSession;
+            final boolean torchOn = mSource.isTorchOn();
+            mCallerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(session)) {
+                        mTorchOn = torchOn;
+                        mCallback.onPreviewStarted(selection);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(final int error, final String message) {
+            Log.w(TAG, "camera error in state " + STATE_NAMES[mState] + ": " + message);
+            if (error == CaptureSource.ERROR_OPEN) {
+                handleClose();
+            }
+            final int session = mSourceSession;
+            mCallerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(session)) {
+                        mCallback.onError(error, message);
+                    }
+                }
+            });
+        }
+    };
+
+    private boolean isCurrent(int session) {
+        return mOpen && session == mSession;
+    }
+
+    private static class CameraHandler extends Handler {
+        private WeakReference<CameraController> mWeakController;
+
+        CameraHandler(Looper looper, CameraController controller) {
+            super(looper);
+            mWeakController = new WeakReference<CameraController>(controller);
+        }
+
+        @Override  // runs on camera thread
+        public void handleMessage(Message inputMessage) {
+            int what = inputMessage.what;
+            CameraController controller = mWeakController.get();
+            if (controller == null) {
+                Log.w(TAG, "CameraHandler.handleMessage: controller is null");
+                return;
+            }
+
+            switch (what) {
+                case MSG_OPEN:
+                    controller.handleOpen(inputMessage.arg1, inputMessage.arg2);
+                    break;
+                case MSG_SET_TEXTURE:
+                    Object[] args = (Object[]) inputMessage.obj;
+                    controller.handleSetTexture((SurfaceTexture) args[0],
+                            (SizeSelector.Request) args[1]);
+                    break;
+                case MSG_CLOSE:
+                    controller.handleClose();
+                    break;
+                case MSG_SWITCH:
+                    Log.d(TAG, "switching to camera " + inputMessage.arg1);
+                    controller.handleOpen(inputMessage.arg1, inputMessage.arg2);
+                    break;
+                case MSG_SET_TORCH:
+                    controller.handleSetTorch(inputMessage.arg1 != 0);
+                    break;
+                case MSG_SET_RECORDING:
+                    controller.handleSetRecording(inputMessage.arg1 != 0);
+                    break;
+                case MSG_SET_ANALYSIS_POOL:
+                    controller.handleSetAnalysisPool((FrameAnalysisPool) inputMessage.obj);
+                    break;
+                default:
+                    throw new RuntimeException("Unhandled msg what=" + what);
+            }
+        }
+    }
+}
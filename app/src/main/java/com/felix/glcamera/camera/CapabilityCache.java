@@ -0,0 +1,206 @@
+package com.felix.glcamera.camera;
+
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of CameraCapabilities, persisted to a small file so later launches can
+ * configure the camera without querying it.  The file is tied to Build.FINGERPRINT: after a
+ * system update, which can change what the cameras support, it's ignored and rebuilt.
+ * <p>
+ * Reads happen on first use, on whatever thread that is; writes happen in the background.
+ */
+public final class CapabilityCache {
+    private static final String TAG = "CapabilityCache";
+
+    private static final int FILE_MAGIC = 0x43415031;       // "CAP1"
+
+    private static final CapabilityCache sInstance = new CapabilityCache();
+
+    // All guarded by "this".
+    private final ArrayList<CameraCapabilities> mEntries = new ArrayList<CameraCapabilities>();
+    private int mFacingMask = -1;           // Camera1 facings present, as 1 << facing
+    private File mFile;
+    private boolean mLoaded;
+    private ExecutorService mWriter;
+
+    private CapabilityCache() {}
+
+    public static CapabilityCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets the file to keep the cache in.  Until this is called nothing is persisted.
+     */
+    public synchronized void setFile(File file) {
+        mFile = file;
+        mLoaded = false;
+    }
+
+    /**
+     * Returns what's known about the camera facing the given way through the given API, or
+     * null.
+     */
+    public synchronized CameraCapabilities get(int api, int facing) {
+        loadLocked();
+        return findLocked(api, facing);
+    }
+
+    /**
+     * Adds or replaces an entry (or saves a new choice in one), and writes the file.
+     */
+    public synchronized void put(CameraCapabilities caps) {
+        loadLocked();
+        mEntries.remove(findLocked(caps.mApi, caps.mFacing));
+        mEntries.add(caps);
+        saveLocked();
+    }
+
+    /**
+     * Returns true if there's a camera facing the given way.  Asks Camera1 the first time.
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized boolean hasCamera(int facing) {
+        loadLocked();
+        if (mFacingMask < 0) {
+            int mask = 0;
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+                Camera.getCameraInfo(i, info);
+                mask |= 1 << info.facing;
+            }
+            mFacingMask = mask;
+            saveLocked();
+        }
+        return (mFacingMask & (1 << facing)) != 0;
+    }
+
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || !Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.d(TAG, "ignoring cache from another build");
+                return;
+            }
+            int facingMask = in.readInt();
+            int count = in.readInt();
+            ArrayList<CameraCapabilities> entries = new ArrayList<CameraCapabilities>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(CameraCapabilities.readFrom(in));
+            }
+            // Entries found before the file was read are fresher; keep those.
+            for (CameraCapabilities caps : entries) {
+                if (findLocked(caps.mApi, caps.mFacing) == null) {
+                    mEntries.add(caps);
+                }
+            }
+            if (mFacingMask < 0) {
+                mFacingMask = facingMask;
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read " + mFile, ioe);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private CameraCapabilities findLocked(int api, int facing) {
+        for (CameraCapabilities caps : mEntries) {
+            if (caps.mApi == api && caps.mFacing == facing) {
+                return caps;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Snapshots the cache and writes it out on the writer thread.
+     */
+    private void saveLocked() {
+        if (mFile == null) {
+            return;
+        }
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(mFacingMask);
+            out.writeInt(mEntries.size());
+            for (CameraCapabilities caps : mEntries) {
+                caps.writeTo(out);
+            }
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);    // can't happen writing to memory
+        }
+        final File file = mFile;
+        if (mWriter == null) {
+            mWriter = Executors.newSingleThreadExecutor();
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(file, data);
+            }
+        });
+    }
+
+    private static void writeFile(File file, byte[] data) {
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedOutputStream out = null;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create " + dir);
+            }
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to write " + file, ioe);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+        }
+    }
+}
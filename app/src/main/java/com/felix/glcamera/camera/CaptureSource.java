@@ -0,0 +1,64 @@
+package com.felix.glcamera.camera;
+
+import android.graphics.SurfaceTexture;
+
+/**
+ * A camera that streams preview frames into a SurfaceTexture.
+ * <p>
+ * open() and startPreview() may finish asynchronously; the result comes back through the
+ * Callback, on the thread that called open() (which must have a Looper).  startPreview()
+ * can be called before the camera has finished opening, so the two overlap.  All methods
+ * are called from that same thread.
+ */
+public interface CaptureSource {
+    int FACING_BACK = 0;        // same values as Camera.CameraInfo
+    int FACING_FRONT = 1;
+
+    int ERROR_OPEN = 1;
+    int ERROR_PREVIEW = 2;
+
+    interface Callback {
+        void onOpened();
+
+        /**
+         * Frames are arriving.  The preview size in the selection is the sensor's (landscape)
+         * buffer size.
+         */
+        void onPreviewStarted(SizeSelector.Selection selection);
+
+        void onError(int error, String message);
+    }
+
+    /**
+     * Starts opening the camera facing the given way.
+     */
+    void open(int facing, Callback callback);
+
+    /**
+     * Starts streaming into the texture once the camera is open, at the size and frame rate
+     * SizeSelector picks for the request.
+     */
+    void startPreview(SurfaceTexture texture, SizeSelector.Request request);
+
+    /**
+     * Stops the preview and releases the camera.  No callbacks arrive after this.
+     */
+    void close();
+
+    /**
+     * Switches between the selection's steady recording frame rate range and the wider
+     * preview range.  May be called at any time; the preview starts in the range for the
+     * last value set.
+     */
+    void setRecording(boolean recording);
+
+    /**
+     * Sets the pool that gets preview frames for analysis on the CPU, or null for none.
+     * Takes effect when the preview next starts.
+     */
+    void setFrameAnalysisPool(FrameAnalysisPool pool);
+
+    void setTorch(boolean on);
+
+    boolean isTorchOn();
+}
@@ -0,0 +1,231 @@
+package com.felix.glcamera.camera;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a FrameAnalyzer on a fixed number of worker threads, with a fixed set of NV21
+ * buffers that go round from the camera to the workers and back.
+ * <p>
+ * Nothing is allocated per frame: the buffers are made when the preview starts, and each
+ * worker has one task object that carries its frame.  A frame that arrives while every
+ * worker is busy is handed straight back instead of queued, and counted as dropped.
+ * <p>
+ * Buffers go back through the Recycler given to start(): Camera1 gets them back with
+ * addCallbackBuffer(), camera2 keeps them on a free list to copy images into.
+ */
+public class FrameAnalysisPool {
+    private static final AtomicInteger sPoolCount = new AtomicInteger();
+
+    /**
+     * Takes buffers that are free to be filled again.
+     */
+    public interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final FrameAnalyzer mAnalyzer;
+    private final int mBufferCount;
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayBlockingQueue<Task> mIdleTasks;
+    private final AtomicLong mAnalyzed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // Guarded by this.
+    private Recycler mRecycler;
+    private byte[][] mBuffers;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * @param workerCount Number of frames analyzed at once.
+     */
+    public FrameAnalysisPool(FrameAnalyzer analyzer, int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("bad worker count " + workerCount);
+        }
+        mAnalyzer = analyzer;
+        // One being filled by the camera and one on its way, besides those being analyzed.
+        mBufferCount = workerCount + 2;
+        mIdleTasks = new ArrayBlockingQueue<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            mIdleTasks.add(new Task());
+        }
+        // At most workerCount tasks exist, so the queue never fills and execute() never
+        // rejects one.
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerCount), new WorkerFactory());
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Makes buffers for frames of the given size and hands them all to the recycler.
+     * Buffers from an earlier start() that are still being analyzed are retired when they
+     * come back, rather than joining the new set.
+     */
+    public synchronized void start(int width, int height, Recycler recycler) {
+        mBuffers = new byte[mBufferCount][];
+        for (int i = 0; i < mBufferCount; i++) {
+            mBuffers[i] = new byte[getBufferSize(width, height)];
+        }
+        mWidth = width;
+        mHeight = height;
+        mRecycler = recycler;
+        for (byte[] buffer : mBuffers) {
+            recycler.recycle(buffer);
+        }
+    }
+
+    /**
+     * Stops handing buffers to the recycler.  Frames being analyzed still finish.
+     */
+    public synchronized void stop() {
+        mRecycler = null;
+        mBuffers = null;
+    }
+
+    /**
+     * Shuts the workers down.  Frames submitted afterwards are dropped.
+     */
+    public void release() {
+        stop();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns the number of buffers start() hands out.
+     */
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Returns the size of an NV21 frame.
+     */
+    public static int getBufferSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Hands a filled buffer to an idle worker.  If they're all busy the frame is dropped and
+     * the buffer goes straight back to the recycler.  Returns true if the frame was taken.
+     */
+    public boolean submit(byte[] buffer, long timestampNanos) {
+        int width;
+        int height;
+        boolean current;
+        synchronized (this) {
+            width = mWidth;
+            height = mHeight;
+            current = isCurrent(buffer);
+        }
+        Task task = mIdleTasks.poll();
+        if (task == null || !current) {
+            mDropped.incrementAndGet();
+            if (task != null) {
+                mIdleTasks.offer(task);
+            }
+            recycle(buffer);
+            return false;
+        }
+        task.mBuffer = buffer;
+        task.mFrameWidth = width;
+        task.mFrameHeight = height;
+        task.mTimestampNanos = timestampNanos;
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            // Released since the check above.
+            task.mBuffer = null;
+            mIdleTasks.offer(task);
+            mDropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a frame that never got as far as a buffer, e.g. because none were free.
+     */
+    public void onFrameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of frames the analyzer has finished with.
+     */
+    public long getAnalyzedCount() {
+        return mAnalyzed.get();
+    }
+
+    /**
+     * Returns the number of frames dropped because every worker was busy, or no buffer was
+     * free.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void recycle(byte[] buffer) {
+        Recycler recycler;
+        synchronized (this) {
+            // A buffer from before the last start() is left for the GC.
+            recycler = isCurrent(buffer) ? mRecycler : null;
+        }
+        if (recycler != null) {
+            recycler.recycle(buffer);
+        }
+    }
+
+    private boolean isCurrent(byte[] buffer) {
+        if (mBuffers != null) {
+            for (byte[] b : mBuffers) {
+                if (b == buffer) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One worker's frame.  Reused for every frame the worker takes.
+     */
+    private class Task implements Runnable {
+        byte[] mBuffer;
+        int mFrameWidth;
+        int mFrameHeight;
+        long mTimestampNanos;
+
+        @Override
+        public void run() {
+            byte[] buffer = mBuffer;
+            try {
+                mAnalyzer.analyze(buffer, mFrameWidth, mFrameHeight, mTimestampNanos);
+            } finally {
+                mBuffer = null;
+                mAnalyzed.incrementAndGet();
+                mIdleTasks.offer(this);
+                recycle(buffer);
+            }
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final int mPoolNumber = sPoolCount.incrementAndGet();
+        private int mThreadNumber;
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    "FrameAnalysis-" + mPoolNumber + "-" + (++mThreadNumber));
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.felix.glcamera.camera;
+
+/**
+ * Looks at preview frames on the CPU: barcode scanning, motion detection, exposure metering
+ * and so on.  Set one with CameraController.setFrameAnalyzer().
+ * <p>
+ * Frames arrive on a FrameAnalysisPool worker thread.  If every worker is still busy when a
+ * frame comes in, the frame is dropped rather than queued, so a slow analyzer sees fewer
+ * frames but never falls behind the camera.
+ */
+public interface FrameAnalyzer {
+    /**
+     * Analyzes one frame.  The data belongs to the pool and is reused for a later frame as
+     * soon as this returns, so copy out anything that's needed afterwards.
+     *
+     * @param nv21 The frame in NV21: a full-size Y plane, then interleaved V and U at half
+     *             resolution.
+     * @param width Frame width, in the sensor's (landscape) orientation.
+     * @param timestampNanos When the frame was captured.  Only differences between frames
+     *                       mean anything.
+     */
+    void analyze(byte[] nv21, int width, int height, long timestampNanos);
+}
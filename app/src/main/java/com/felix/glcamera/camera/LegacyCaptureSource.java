@@ -0,0 +1,322 @@
+package com.felix.glcamera.camera;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.felix.glcamera.util.CameraUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.hardware.Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+import static android.hardware.Camera.Parameters.WHITE_BALANCE_AUTO;
+
+/**
+ * CaptureSource on the old android.hardware.Camera API, for devices whose Camera2 support
+ * is only the LEGACY shim anyway.  Everything here is synchronous: open() and
+ * startPreview() block until done and report through the callback before returning.
+ * <p>
+ * What the camera supports, and the configuration chosen from it, come from the
+ * CapabilityCache when they can.  getParameters() is still needed for a Parameters to
+ * change, but the supported-value lists in it aren't parsed again.
+ */
+@SuppressWarnings("deprecation")
+public class LegacyCaptureSource implements CaptureSource {
+    private static final String TAG = "LegacyCaptureSource";
+    private static final int MAX_FRAME_RATE = 30;
+
+    private Camera mCamera;
+    private Parameters mParameters;
+    private Callback mCallback;
+    private int mFacing;
+    private SizeSelector.Selection mSelection;
+    private boolean mHasFpsRanges;
+    private boolean mRecording;
+    private FrameAnalysisPool mAnalysisPool;
+    private FrameAnalysisPool mActivePool;      // the one the preview was started with
+
+    @Override
+    public void open(int facing, Callback callback) {
+        mCallback = callback;
+        mFacing = facing;
+        try {
+            mCamera = Camera.open(facing);
+        } catch (RuntimeException re) {
+            Log.w(TAG, "Camera.open failed", re);
+        }
+        if (mCamera == null) {
+            mCallback.onError(ERROR_OPEN, "Unable to open camera");
+            return;
+        }
+        mCamera.setDisplayOrientation(90);
+        mCallback.onOpened();
+    }
+
+    @Override
+    public void startPreview(SurfaceTexture texture, SizeSelector.Request request) {
+        if (mCamera == null) {
+            return;     // open() failed and said so
+        }
+        try {
+            mParameters = mCamera.getParameters();
+            mSelection = prepareCameraParameters(getCapabilities(), request);
+            mCamera.setParameters(mParameters);
+            readBackFrameRate();
+            mCamera.setPreviewTexture(texture);
+            startAnalysis();
+            mCamera.startPreview();
+            mCallback.onPreviewStarted(mSelection);
+        } catch (IOException ioe) {
+            mCallback.onError(ERROR_PREVIEW, "Unable to preview");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mCamera != null) {
+            try {
+                mCamera.stopPreview();
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCamera.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mCamera = null;
+            mParameters = null;
+            mSelection = null;
+        }
+        if (mActivePool != null) {
+            mActivePool.stop();
+            mActivePool = null;
+        }
+    }
+
+    @Override
+    public void setRecording(boolean recording) {
+        if (recording == mRecording) {
+            return;
+        }
+        mRecording = recording;
+        if (mParameters != null && mSelection != null && mHasFpsRanges) {
+            setFpsRange();
+            try {
+                mCamera.setParameters(mParameters);
+            } catch (RuntimeException re) {
+                Log.w(TAG, "unable to change frame rate range", re);
+            }
+        }
+    }
+
+    @Override
+    public void setFrameAnalysisPool(FrameAnalysisPool pool) {
+        mAnalysisPool = pool;
+    }
+
+    /**
+     * Has preview frames copied into the pool's buffers, which come back to the camera with
+     * addCallbackBuffer() once analyzed or dropped.  Frames arrive on this thread, since it
+     * opened the camera.
+     */
+    private void startAnalysis() {
+        mActivePool = mAnalysisPool;
+        if (mActivePool == null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            return;
+        }
+        final Camera camera = mCamera;
+        mActivePool.start(mSelection.mPreviewWidth, mSelection.mPreviewHeight,
+                new FrameAnalysisPool.Recycler() {
+                    @Override
+                    public void recycle(byte[] buffer) {
+                        // Fine from any thread; a released camera ignores it.
+                        camera.addCallbackBuffer(buffer);
+                    }
+                });
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+    }
+
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (data != null && mActivePool != null) {
+                mActivePool.submit(data, System.nanoTime());
+            }
+        }
+    };
+
+    @Override
+    public void setTorch(boolean on) {
+        if (mParameters != null && mCamera != null) {
+            try {
+                mParameters.setFlashMode(on ? Parameters.FLASH_MODE_TORCH : Parameters.FLASH_MODE_OFF);
+                mCamera.setParameters(mParameters);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public boolean isTorchOn() {
+        if (mParameters == null) {
+            return false;
+        }
+        String flashMode = mParameters.getFlashMode();
+        return !TextUtils.isEmpty(flashMode) && !Parameters.FLASH_MODE_OFF.equals(flashMode);
+    }
+
+    private static boolean isSupported(List list, String target) {
+        return list != null && list.contains(target);
+    }
+
+    /**
+     * Returns the cached capabilities of the open camera, reading them from mParameters
+     * the first time.
+     */
+    private CameraCapabilities getCapabilities() {
+        CapabilityCache cache = CapabilityCache.getInstance();
+        CameraCapabilities caps = cache.get(CameraCapabilities.API_CAMERA1, mFacing);
+        if (caps != null) {
+            return caps;
+        }
+        List<Size> sizes = mParameters.getSupportedPreviewSizes();
+        int[] previewSizes = new int[sizes.size() * 2];
+        for (int i = 0; i < sizes.size(); i++) {
+            previewSizes[i * 2] = sizes.get(i).width;
+            previewSizes[i * 2 + 1] = sizes.get(i).height;
+        }
+        List<Integer> rates = mParameters.getSupportedPreviewFrameRates();
+        int[] frameRates = new int[rates != null ? rates.size() : 0];
+        for (int i = 0; i < frameRates.length; i++) {
+            frameRates[i] = rates.get(i);
+        }
+        List<int[]> ranges = mParameters.getSupportedPreviewFpsRange();
+        int[] fpsRanges = new int[ranges != null ? ranges.size() * 2 : 0];
+        for (int i = 0; i < fpsRanges.length / 2; i++) {
+            fpsRanges[i * 2] = ranges.get(i)[Parameters.PREVIEW_FPS_MIN_INDEX];
+            fpsRanges[i * 2 + 1] = ranges.get(i)[Parameters.PREVIEW_FPS_MAX_INDEX];
+        }
+        caps = new CameraCapabilities(CameraCapabilities.API_CAMERA1, mFacing,
+                String.valueOf(mFacing), -1, previewSizes, frameRates, fpsRanges,
+                isSupported(mParameters.getSupportedFocusModes(), FOCUS_MODE_CONTINUOUS_VIDEO),
+                isSupported(mParameters.getSupportedWhiteBalance(), WHITE_BALANCE_AUTO),
+                mParameters.isVideoStabilizationSupported(),
+                isSupported(mParameters.getSupportedFlashModes(), Parameters.FLASH_MODE_TORCH));
+        cache.put(caps);
+        return caps;
+    }
+
+    /**
+     * Fills in mParameters for video preview, and returns what was chosen.
+     */
+    private SizeSelector.Selection prepareCameraParameters(CameraCapabilities caps,
+            SizeSelector.Request request) {
+        int viewWidth = request.getViewWidth();
+        int viewHeight = request.getViewHeight();
+        SizeSelector.Selection selection = SizeSelector.Selection.fromArray(
+                caps.getChoice(viewWidth, viewHeight, request.getKey()));
+        mHasFpsRanges = caps.mFpsRanges.length > 0;
+        if (selection == null) {
+            int[] fpsRanges = caps.mFpsRanges;
+            if (!mHasFpsRanges) {
+                // Only a list of rates; pick one and score just the sizes.
+                int frameRate = chooseFrameRate(caps) * 1000;
+                fpsRanges = new int[] {frameRate, frameRate};
+            }
+            selection = SizeSelector.select(caps.mPreviewSizes, fpsRanges, request);
+            caps.setChoice(viewWidth, viewHeight, request.getKey(), selection.toArray());
+            CapabilityCache.getInstance().put(caps);
+        }
+        mSelection = selection;
+        if (mHasFpsRanges) {
+            setFpsRange();
+        } else {
+            mParameters.setPreviewFrameRate(selection.getFrameRate());
+        }
+        mParameters.setPreviewSize(selection.mPreviewWidth, selection.mPreviewHeight);
+        if (caps.mContinuousVideoFocus) {
+            mParameters.setFocusMode(FOCUS_MODE_CONTINUOUS_VIDEO);
+        }
+        if (caps.mAutoWhiteBalance) {
+            mParameters.setWhiteBalance(WHITE_BALANCE_AUTO);
+        }
+        if (caps.mVideoStabilization) {
+            mParameters.setVideoStabilization(true);
+        }
+        if (!CameraUtils.isDevice("GT-N7100", "GT-I9308", "GT-I9300")) {
+            mParameters.set("cam_mode", 1);
+            mParameters.set("cam-mode", 1);
+        }
+        if (!CameraUtils.isDevice("GT-I9100"))
+            mParameters.setRecordingHint(true);
+        return selection;
+    }
+
+    /**
+     * Puts the recording or the preview range into mParameters.
+     */
+    private void setFpsRange() {
+        if (mRecording) {
+            mParameters.setPreviewFpsRange(mSelection.mFpsMin, mSelection.mFpsMax);
+        } else {
+            mParameters.setPreviewFpsRange(mSelection.mPreviewFpsMin, mSelection.mPreviewFpsMax);
+        }
+    }
+
+    /**
+     * Asks the camera what rate it settled on, so the encoder is told the real one.  Only
+     * tells anything when the recording range is the one in effect, or when there are no
+     * ranges at all.
+     */
+    private void readBackFrameRate() {
+        Parameters applied = mCamera.getParameters();
+        int[] range = new int[2];
+        if (!mHasFpsRanges) {
+            int frameRate = applied.getPreviewFrameRate() * 1000;
+            range[0] = range[1] = frameRate;
+        } else if (mRecording || (mSelection.mPreviewFpsMin == mSelection.mFpsMin
+                && mSelection.mPreviewFpsMax == mSelection.mFpsMax)) {
+            applied.getPreviewFpsRange(range);
+        } else {
+            return;
+        }
+        if (range[1] > 0 && (range[0] != mSelection.mFpsMin || range[1] != mSelection.mFpsMax)) {
+            Log.w(TAG, "asked for " + mSelection + ", camera runs at " + range[0] / 1000f + "-"
+                    + range[1] / 1000f);
+            mSelection = mSelection.withRecordingRange(range[0], range[1]);
+        }
+    }
+
+    /**
+     * Picks the highest rate up to MAX_FRAME_RATE, or the lowest rate if they're all
+     * higher.  For cameras that don't list frame rate ranges.
+     */
+    private static int chooseFrameRate(CameraCapabilities caps) {
+        //设置预览帧率
+        int frameRate = -1;
+        int[] supportedFrameRates = caps.mFrameRates;
+        if (supportedFrameRates.length > 0) {
+            int[] sorted = supportedFrameRates.clone();
+            Arrays.sort(sorted);
+            if (Arrays.binarySearch(sorted, MAX_FRAME_RATE) >= 0) {
+                frameRate = MAX_FRAME_RATE;
+            } else {
+                for (int i = sorted.length - 1; i >= 0; --i) {
+                    if (sorted[i] <= MAX_FRAME_RATE) {
+                        frameRate = sorted[i];
+                        break;
+                    }
+                }
+                if (frameRate == -1) {
+                    frameRate = sorted[0];
+                }
+            }
+        }
+        return frameRate > 0 ? frameRate : MAX_FRAME_RATE;
+    }
+}
@@ -0,0 +1,284 @@
+package com.felix.glcamera.camera;
+
+/**
+ * Picks the preview size, recording size and frame rate range together, by scoring every
+ * combination the camera offers.
+ * <p>
+ * A combination scores well when the preview matches the view's aspect ratio and covers it
+ * without a lot to spare, when its pixel rate (width * height * fps) fits the budget, when
+ * the encoder takes the matching recording size at the target frame rate, and when the
+ * range reaches the target rate and doesn't dip far below it.  Nothing is ruled out
+ * outright, so there's always an answer; things that don't fit just score very badly.
+ * <p>
+ * The scoring is plain Java with no Android dependencies, so it's tested on the JVM with
+ * made-up size lists.  The camera sources memoize the result in their CameraCapabilities.
+ */
+public final class SizeSelector {
+    // Score weights.  The budget and encoder terms are large enough to outweigh the rest.
+    private static final double WEIGHT_ASPECT = 10.0;       // per unit of |log aspect ratio|
+    private static final double WEIGHT_COVERAGE = 4.0;      // for covering the whole view
+    private static final double WEIGHT_OVERSIZE = 0.5;      // per view's worth of extra pixels
+    private static final double WEIGHT_OVER_BUDGET = 50.0;  // per budget's worth of excess
+    private static final double WEIGHT_ENCODER = 50.0;      // encoder can't take the size
+    private static final double WEIGHT_ENCODER_RATE = 20.0; // ...or not at the target rate
+    private static final double WEIGHT_RECORD_LOSS = 5.0;   // preview pixels not recorded
+    private static final double WEIGHT_SLOW = 8.0;          // range tops out below target
+    private static final double WEIGHT_FAST = 1.0;          // range goes past target
+    private static final double WEIGHT_STABLE = 1.0;        // min / max of the range
+    private static final int MAX_OVERSIZE = 4;
+    private static final int MIN_PREVIEW_FPS = 10000;       // lowest the preview may drop to
+
+    /**
+     * What the video encoder can take.  On devices this wraps MediaCodecInfo's
+     * VideoCapabilities.
+     */
+    public interface EncoderLimits {
+        /** Identifies the encoder, for memoizing choices. */
+        String getName();
+
+        boolean isSizeSupported(int width, int height);
+
+        int getWidthAlignment();
+
+        int getHeightAlignment();
+
+        /** Returns the highest frame rate the encoder supports at the size. */
+        double getMaxFrameRate(int width, int height);
+    }
+
+    /**
+     * What we'd like.
+     */
+    public static final class Request {
+        final int mViewWidth;
+        final int mViewHeight;
+        final int mTargetFps;
+        final long mPixelBudget;
+        final EncoderLimits mEncoderLimits;
+
+        /**
+         * @param viewWidth View size in the sensor's (landscape) orientation.
+         * @param targetFps Frame rate to record at.
+         * @param pixelBudget Most preview pixels per second the pipeline should handle.
+         * @param encoderLimits Encoder to record with, or null to not care.
+         */
+        public Request(int viewWidth, int viewHeight, int targetFps, long pixelBudget,
+                EncoderLimits encoderLimits) {
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+            mTargetFps = targetFps;
+            mPixelBudget = pixelBudget;
+            mEncoderLimits = encoderLimits;
+        }
+
+        public int getViewWidth() {
+            return mViewWidth;
+        }
+
+        public int getViewHeight() {
+            return mViewHeight;
+        }
+
+        /**
+         * Returns a value that changes with anything besides the view size that affects the
+         * choice.
+         */
+        public int getKey() {
+            int key = mTargetFps;
+            key = 31 * key + (int) (mPixelBudget ^ (mPixelBudget >>> 32));
+            return 31 * key + (mEncoderLimits != null ? mEncoderLimits.getName().hashCode() : 0);
+        }
+    }
+
+    /**
+     * The chosen configuration.  There are two frame rate ranges: a steady one to record
+     * with, and one that may drop further, to let the preview expose longer in low light
+     * when nothing is being recorded.
+     */
+    public static final class Selection {
+        public final int mPreviewWidth;         // sensor orientation
+        public final int mPreviewHeight;
+        public final int mRecordWidth;          // upright, as recorded
+        public final int mRecordHeight;
+        public final int mFpsMin;               // recording range, frames per second * 1000
+        public final int mFpsMax;
+        public final int mPreviewFpsMin;        // range while only previewing
+        public final int mPreviewFpsMax;
+
+        public Selection(int previewWidth, int previewHeight, int recordWidth, int recordHeight,
+                int fpsMin, int fpsMax, int previewFpsMin, int previewFpsMax) {
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mRecordWidth = recordWidth;
+            mRecordHeight = recordHeight;
+            mFpsMin = fpsMin;
+            mFpsMax = fpsMax;
+            mPreviewFpsMin = previewFpsMin;
+            mPreviewFpsMax = previewFpsMax;
+        }
+
+        /** Returns the top of the recording range in whole frames per second. */
+        public int getFrameRate() {
+            return mFpsMax / 1000;
+        }
+
+        /**
+         * Returns a copy with the recording range replaced, for when the camera settled on a
+         * different one than was asked for.
+         */
+        public Selection withRecordingRange(int fpsMin, int fpsMax) {
+            return new Selection(mPreviewWidth, mPreviewHeight, mRecordWidth, mRecordHeight,
+                    fpsMin, fpsMax, mPreviewFpsMin, mPreviewFpsMax);
+        }
+
+        int[] toArray() {
+            return new int[] {mPreviewWidth, mPreviewHeight, mRecordWidth, mRecordHeight,
+                    mFpsMin, mFpsMax, mPreviewFpsMin, mPreviewFpsMax};
+        }
+
+        static Selection fromArray(int[] values) {
+            if (values == null || values.length != 8) {
+                return null;
+            }
+            return new Selection(values[0], values[1], values[2], values[3], values[4], values[5],
+                    values[6], values[7]);
+        }
+
+        @Override
+        public String toString() {
+            return "preview " + mPreviewWidth + "x" + mPreviewHeight + ", record " + mRecordWidth
+                    + "x" + mRecordHeight + " @" + mFpsMin / 1000f + "-" + mFpsMax / 1000f
+                    + " (preview " + mPreviewFpsMin / 1000f + "-" + mPreviewFpsMax / 1000f + ")";
+        }
+    }
+
+    private SizeSelector() {}   // do not instantiate
+
+    /**
+     * Returns the best combination.
+     *
+     * @param previewSizes Width, height pairs, in the sensor's orientation.
+     * @param fpsRanges Min, max pairs in frames per second * 1000.  May be empty, in which
+     *                  case the target rate is assumed.
+     */
+    public static Selection select(int[] previewSizes, int[] fpsRanges, Request request) {
+        if (previewSizes.length < 2) {
+            throw new IllegalArgumentException("no preview sizes");
+        }
+        int[] ranges = fpsRanges.length >= 2 ? fpsRanges
+                : new int[] {request.mTargetFps * 1000, request.mTargetFps * 1000};
+        int bestSize = -1;
+        int bestRange = -1;
+        int[] bestRecord = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i + 1 < previewSizes.length; i += 2) {
+            int[] record = getRecordSize(previewSizes[i], previewSizes[i + 1],
+                    request.mEncoderLimits);
+            for (int j = 0; j + 1 < ranges.length; j += 2) {
+                double score = score(previewSizes[i], previewSizes[i + 1], record[0], record[1],
+                        ranges[j], ranges[j + 1], request);
+                if (bestSize < 0 || score > bestScore) {
+                    bestSize = i;
+                    bestRange = j;
+                    bestRecord = record;
+                    bestScore = score;
+                }
+            }
+        }
+        int previewRange = choosePreviewRange(ranges, bestRange);
+        return new Selection(previewSizes[bestSize], previewSizes[bestSize + 1], bestRecord[0],
+                bestRecord[1], ranges[bestRange], ranges[bestRange + 1], ranges[previewRange],
+                ranges[previewRange + 1]);
+    }
+
+    /**
+     * Returns the index of the range to use while only previewing: the one reaching the
+     * same rate as the recording range that drops furthest, but not below MIN_PREVIEW_FPS.
+     */
+    static int choosePreviewRange(int[] ranges, int recordingRange) {
+        int best = recordingRange;
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            if (ranges[i + 1] == ranges[recordingRange + 1] && ranges[i] >= MIN_PREVIEW_FPS
+                    && ranges[i] < ranges[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scores one combination; higher is better.
+     */
+    static double score(int previewWidth, int previewHeight, int recordWidth, int recordHeight,
+            int fpsMin, int fpsMax, Request request) {
+        double score = 0;
+        double previewPixels = (double) previewWidth * previewHeight;
+        int viewWidth = Math.max(1, request.mViewWidth);
+        int viewHeight = Math.max(1, request.mViewHeight);
+        double viewPixels = (double) viewWidth * viewHeight;
+
+        double aspect = ((double) previewWidth / previewHeight) / ((double) viewWidth / viewHeight);
+        score -= WEIGHT_ASPECT * Math.abs(Math.log(aspect));
+
+        double coverage = previewPixels / viewPixels;
+        score += WEIGHT_COVERAGE * Math.min(1.0, coverage);
+        score -= WEIGHT_OVERSIZE * Math.min(MAX_OVERSIZE, Math.max(0.0, coverage - 1.0));
+
+        double fps = fpsMax / 1000.0;
+        double pixelRate = previewPixels * fps;
+        if (request.mPixelBudget > 0 && pixelRate > request.mPixelBudget) {
+            score -= WEIGHT_OVER_BUDGET * (pixelRate / request.mPixelBudget - 1.0);
+        }
+
+        EncoderLimits limits = request.mEncoderLimits;
+        if (limits != null) {
+            if (!limits.isSizeSupported(recordWidth, recordHeight)) {
+                score -= WEIGHT_ENCODER;
+            } else {
+                double encoderFps = limits.getMaxFrameRate(recordWidth, recordHeight);
+                double wanted = Math.min(fps, request.mTargetFps);
+                if (encoderFps < wanted) {
+                    score -= WEIGHT_ENCODER_RATE * (wanted - encoderFps) / wanted;
+                }
+            }
+        }
+        score -= WEIGHT_RECORD_LOSS * (1.0 - (double) recordWidth * recordHeight / previewPixels);
+
+        double target = request.mTargetFps;
+        if (fps < target) {
+            score -= WEIGHT_SLOW * (target - fps) / target;
+        } else {
+            score -= WEIGHT_FAST * (fps - target) / target;
+        }
+        score += WEIGHT_STABLE * fpsMin / fpsMax;
+        return score;
+    }
+
+    /**
+     * Returns the upright recording size for a preview size: the preview turned upright,
+     * rounded down to the encoder's alignment, and scaled down until the encoder takes it.
+     */
+    static int[] getRecordSize(int previewWidth, int previewHeight, EncoderLimits limits) {
+        int width = previewHeight;
+        int height = previewWidth;
+        if (limits == null) {
+            return new int[] {width, height};
+        }
+        int widthAlignment = Math.max(1, limits.getWidthAlignment());
+        int heightAlignment = Math.max(1, limits.getHeightAlignment());
+        for (int step = 0; step < 8; step++) {
+            double scale = 1.0 - step / 8.0;
+            int w = align((int) (width * scale), widthAlignment);
+            int h = align((int) (height * scale), heightAlignment);
+            if (w > 0 && h > 0 && limits.isSizeSupported(w, h)) {
+                return new int[] {w, h};
+            }
+        }
+        // Nothing fits; score() will count that against this size.
+        return new int[] {align(width, widthAlignment), align(height, heightAlignment)};
+    }
+
+    private static int align(int value, int alignment) {
+        return value / alignment * alignment;
+    }
+}
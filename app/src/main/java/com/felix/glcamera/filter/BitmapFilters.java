@@ -0,0 +1,25 @@
+package com.felix.glcamera.filter;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+/**
+ * Runs CpuFilterEngine on Bitmaps, keeping the engine itself free of Android classes.
+ */
+public final class BitmapFilters {
+    private BitmapFilters() {}
+
+    /**
+     * Filters a bitmap.  Returns a new ARGB_8888 bitmap.
+     */
+    public static Bitmap apply(CpuFilterEngine engine, List<FilterPass> passes, Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] argb = new int[width * height];
+        // Bitmap rows run top to bottom, which is texture order for an upright image.
+        bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+        int[] out = engine.apply(passes, argb, width, height);
+        return Bitmap.createBitmap(out, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,96 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Pointwise color transform: color = matrix * color + offset.  Covers grayscale, sepia,
+ * saturation, contrast and simple color grades.
+ */
+public class ColorMatrixPass extends FilterPass {
+    private static final String[] UNIFORMS = {"matrix", "offset"};
+    private static final float[] IDENTITY = {
+            1f, 0f, 0f, 0f,
+            0f, 1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 0f, 0f, 1f};
+
+    private final float[] mMatrix = new float[16];
+    private final float[] mOffset = new float[4];
+    private boolean mIdentity;
+
+    /**
+     * @param matrix 4x4 column-major matrix, applied to RGBA.
+     * @param offset RGBA offset added afterwards, or null for none.
+     */
+    public ColorMatrixPass(float[] matrix, float[] offset) {
+        set(matrix, offset);
+    }
+
+    /**
+     * Returns a pass that converts to black & white.
+     */
+    public static ColorMatrixPass grayscale() {
+        return new ColorMatrixPass(new float[]{
+                0.3f, 0.3f, 0.3f, 0f,
+                0.59f, 0.59f, 0.59f, 0f,
+                0.11f, 0.11f, 0.11f, 0f,
+                0f, 0f, 0f, 1f}, null);
+    }
+
+    /**
+     * Changes the transform.  Takes effect on the next frame without recompiling.
+     */
+    public void set(float[] matrix, float[] offset) {
+        System.arraycopy(matrix, 0, mMatrix, 0, 16);
+        if (offset != null) {
+            System.arraycopy(offset, 0, mOffset, 0, 4);
+        } else {
+            Arrays.fill(mOffset, 0f);
+        }
+        mIdentity = Arrays.equals(mMatrix, IDENTITY) && mOffset[0] == 0f && mOffset[1] == 0f
+                && mOffset[2] == 0f && mOffset[3] == 0f;
+        invalidate();
+    }
+
+    float[] getMatrix() {
+        return mMatrix;
+    }
+
+    float[] getOffset() {
+        return mOffset;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mIdentity;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform mat4 $matrix;\n" +
+                "uniform vec4 $offset;\n";
+    }
+
+    @Override
+    public String getBody() {
+        return "color = $matrix * color + $offset;\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniformMatrix4fv(locations[0], 1, false, mMatrix, 0);
+        GLES20.glUniform4fv(locations[1], 1, mOffset, 0);
+    }
+}
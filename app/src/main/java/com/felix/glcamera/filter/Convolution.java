@@ -0,0 +1,273 @@
+package com.felix.glcamera.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds convolution passes, picking the cheapest way to run a kernel.
+ * <ul>
+ * <li>Kernels that are (nearly) the outer product of two vectors run as a horizontal and a
+ * vertical Convolution1dPass: 2N taps instead of N*N.  Separability is found with a rank-1
+ * decomposition, so it doesn't matter how the kernel was written down.  One of the two
+ * vectors has to be non-negative, since it runs first, into an 8-bit framebuffer.
+ * <li>Other kernels run directly, as a KernelPass.
+ * <li>For radii too large for either, pyramidBlur() downsamples and upsamples with a
+ * fixed number of taps per level, so the cost per output pixel doesn't grow with the
+ * radius.
+ * </ul>
+ */
+public final class Convolution {
+    /** Below this size a single direct pass is cheaper than two stages. */
+    private static final int MIN_SEPARABLE_SIZE = 5;
+    /** Largest relative error (Frobenius norm) accepted from the rank-1 decomposition. */
+    private static final float RANK1_TOLERANCE = 1e-3f;
+    private static final int POWER_ITERATIONS = 32;
+
+    private Convolution() {}    // do not instantiate
+
+    /**
+     * Returns the passes that apply a size x size kernel.
+     *
+     * @param kernel Filter values in row order.
+     * @param colorAdjust Added to the result.
+     */
+    public static List<FilterPass> createPasses(float[] kernel, int size, float colorAdjust) {
+        if (size % 2 == 0 || kernel.length != size * size) {
+            throw new IllegalArgumentException("need an odd square kernel, got " + kernel.length
+                    + " values for size " + size);
+        }
+        List<FilterPass> passes = new ArrayList<FilterPass>();
+        float[][] factors = size >= MIN_SEPARABLE_SIZE ? decomposeRank1(kernel, size) : null;
+        // The first pass goes through an RGBA8 framebuffer, which would clamp negative
+        // results, so it has to be a non-negative factor; scaled to sum to 1, it then can't
+        // leave 0..1 either.  Signed parts all go in the second pass.
+        if (factors != null && isNonNegative(factors[1])) {
+            moveScale(factors[1], factors[0]);
+            passes.add(new Convolution1dPass(factors[1], true, 0f));
+            passes.add(new Convolution1dPass(factors[0], false, colorAdjust));
+        } else if (factors != null && isNonNegative(factors[0])) {
+            moveScale(factors[0], factors[1]);
+            passes.add(new Convolution1dPass(factors[0], false, 0f));
+            passes.add(new Convolution1dPass(factors[1], true, colorAdjust));
+        } else {
+            passes.add(new KernelPass(size, kernel, colorAdjust));
+        }
+        return passes;
+    }
+
+    /**
+     * Returns a Gaussian blur of the given radius, as two 1D passes.
+     */
+    public static List<FilterPass> gaussianBlur(int radius, float sigma) {
+        float[] weights = gaussian(radius, sigma);
+        List<FilterPass> passes = new ArrayList<FilterPass>();
+        passes.add(new Convolution1dPass(weights, true, 0f));
+        passes.add(new Convolution1dPass(weights, false, 0f));
+        return passes;
+    }
+
+    /**
+     * Returns a dual-filter (Kawase style) blur: levels halvings with a 5-tap downsample,
+     * then the same number of doublings with an 8-tap upsample.  Every level doubles the
+     * radius, while the total work stays under 1.4 full-size passes.
+     *
+     * @param offset Spread of the taps, in texels; 1 is the usual, larger is blurrier.
+     */
+    public static List<FilterPass> pyramidBlur(int levels, float offset) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("levels must be at least 1");
+        }
+        List<FilterPass> passes = new ArrayList<FilterPass>();
+        for (int i = 1; i <= levels; i++) {
+            passes.add(new DualFilterPass(false, 1f / (1 << i), offset));
+        }
+        for (int i = levels - 1; i >= 0; i--) {
+            passes.add(new DualFilterPass(true, 1f / (1 << i), offset));
+        }
+        return passes;
+    }
+
+    /**
+     * Returns normalized Gaussian weights for offsets -radius to radius.
+     */
+    public static float[] gaussian(int radius, float sigma) {
+        float[] weights = new float[2 * radius + 1];
+        float sum = 0f;
+        for (int i = -radius; i <= radius; i++) {
+            float weight = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            weights[i + radius] = weight;
+            sum += weight;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * Finds column and row vectors whose outer product is the kernel, i.e.
+     * kernel[y * size + x] == column[y] * row[x].  Uses power iteration for the largest
+     * singular value.
+     *
+     * @return {column, row}, or null if the kernel isn't separable.
+     */
+    public static float[][] decomposeRank1(float[] kernel, int size) {
+        double norm = 0;
+        for (float value : kernel) {
+            norm += value * value;
+        }
+        if (norm == 0) {
+            return null;
+        }
+
+        // Iterate row = normalize(K^T K row), starting from something not orthogonal to
+        // the answer.
+        double[] row = new double[size];
+        double[] column = new double[size];
+        for (int x = 0; x < size; x++) {
+            row[x] = 1.0 + x * 1e-3;
+        }
+        double sigma = 0;
+        for (int iter = 0; iter < POWER_ITERATIONS; iter++) {
+            multiply(kernel, size, row, column, false);
+            multiply(kernel, size, column, row, true);
+            sigma = normalize(row);
+            if (sigma == 0) {
+                return null;
+            }
+        }
+        multiply(kernel, size, row, column, false);
+        sigma = normalize(column);
+
+        double error = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double diff = kernel[y * size + x] - sigma * column[y] * row[x];
+                error += diff * diff;
+            }
+        }
+        if (error > RANK1_TOLERANCE * RANK1_TOLERANCE * norm) {
+            return null;
+        }
+
+        // Split sigma evenly, and keep the sums positive where we can.
+        double scale = Math.sqrt(sigma);
+        double sign = sum(row) < 0 ? -1 : 1;
+        float[] outRow = new float[size];
+        float[] outColumn = new float[size];
+        for (int i = 0; i < size; i++) {
+            outRow[i] = (float) (row[i] * scale * sign);
+            outColumn[i] = (float) (column[i] * scale * sign);
+        }
+        return new float[][] {outColumn, outRow};
+    }
+
+    /**
+     * Merges neighboring taps of a 1D kernel into single bilinear fetches.  Two taps with
+     * weights a and b, one texel apart, equal one fetch of weight a + b at a fractional
+     * offset, as long as a and b have the same sign.  A Gaussian of radius r ends up with
+     * r + 1 fetches instead of 2r + 1.  The center tap is never merged.
+     *
+     * @param weights Weights for offsets -radius to radius.
+     * @return {offsets, weights}, with offsets in texels.
+     */
+    public static float[][] mergeTaps(float[] weights) {
+        int radius = weights.length / 2;
+        float[] offsets = new float[weights.length];
+        float[] merged = new float[weights.length];
+        int count = 0;
+        offsets[count] = 0f;
+        merged[count++] = weights[radius];
+        for (int side = -1; side <= 1; side += 2) {
+            for (int i = 1; i <= radius; i++) {
+                float a = weights[radius + side * i];
+                float b = i < radius ? weights[radius + side * (i + 1)] : 0f;
+                if (i < radius && a * b > 0f) {
+                    offsets[count] = side * (i + b / (a + b));
+                    merged[count++] = a + b;
+                    i++;
+                } else if (a != 0f) {
+                    offsets[count] = side * i;
+                    merged[count++] = a;
+                }
+            }
+        }
+        float[] outOffsets = new float[count];
+        float[] outWeights = new float[count];
+        System.arraycopy(offsets, 0, outOffsets, 0, count);
+        System.arraycopy(merged, 0, outWeights, 0, count);
+        return new float[][] {outOffsets, outWeights};
+    }
+
+    /**
+     * True if the weights have no negative values beyond the rank-1 decomposition's error.
+     */
+    private static boolean isNonNegative(float[] weights) {
+        float max = 0f;
+        for (float weight : weights) {
+            max = Math.max(max, Math.abs(weight));
+        }
+        for (float weight : weights) {
+            if (weight < -RANK1_TOLERANCE * max) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scales first to sum to 1, and second the other way, leaving their product alone.
+     */
+    private static void moveScale(float[] first, float[] second) {
+        float sum = 0f;
+        for (float weight : first) {
+            sum += weight;
+        }
+        for (int i = 0; i < first.length; i++) {
+            first[i] /= sum;
+        }
+        for (int i = 0; i < second.length; i++) {
+            second[i] *= sum;
+        }
+    }
+
+    /**
+     * out = K * v, or K^T * v if transpose.
+     */
+    private static void multiply(float[] kernel, int size, double[] v, double[] out,
+            boolean transpose) {
+        for (int i = 0; i < size; i++) {
+            double sum = 0;
+            for (int j = 0; j < size; j++) {
+                sum += (transpose ? kernel[j * size + i] : kernel[i * size + j]) * v[j];
+            }
+            out[i] = sum;
+        }
+    }
+
+    private static double normalize(double[] v) {
+        double length = Math.sqrt(dot(v, v));
+        if (length != 0) {
+            for (int i = 0; i < v.length; i++) {
+                v[i] /= length;
+            }
+        }
+        return length;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static double sum(double[] v) {
+        double sum = 0;
+        for (double value : v) {
+            sum += value;
+        }
+        return sum;
+    }
+}
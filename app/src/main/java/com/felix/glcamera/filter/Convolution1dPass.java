@@ -0,0 +1,99 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * One direction of a separable convolution.  Neighboring taps are merged into bilinear
+ * fetches (see Convolution.mergeTaps()), so the input must be sampled with GL_LINEAR.
+ * <p>
+ * The number of fetches is fixed when the pass is created, since it's compiled into the
+ * shader; setWeights() can change the weights as long as that number stays the same.
+ */
+public class Convolution1dPass extends FilterPass {
+    private static final String[] UNIFORMS = {"offsets", "weights", "colorAdjust"};
+
+    private final boolean mHorizontal;
+    private final int mTapCount;
+    private float[] mOffsets;
+    private float[] mWeights;
+    private float mColorAdjust;
+
+    /**
+     * @param weights Weights for offsets -radius to radius.
+     * @param horizontal Whether to convolve along x (in the input texture) rather than y.
+     * @param colorAdjust Added to the result.
+     */
+    public Convolution1dPass(float[] weights, boolean horizontal, float colorAdjust) {
+        mHorizontal = horizontal;
+        mTapCount = Convolution.mergeTaps(weights)[0].length;
+        setWeights(weights, colorAdjust);
+    }
+
+    public void setWeights(float[] weights, float colorAdjust) {
+        float[][] taps = Convolution.mergeTaps(weights);
+        if (taps[0].length != mTapCount) {
+            throw new IllegalArgumentException("weights need " + taps[0].length
+                    + " fetches, pass was built for " + mTapCount);
+        }
+        mOffsets = taps[0];
+        mWeights = taps[1];
+        mColorAdjust = colorAdjust;
+        invalidate();
+    }
+
+    boolean isHorizontal() {
+        return mHorizontal;
+    }
+
+    /** Merged fetch offsets, in texels. */
+    float[] getOffsets() {
+        return mOffsets;
+    }
+
+    float[] getWeights() {
+        return mWeights;
+    }
+
+    float getColorAdjust() {
+        return mColorAdjust;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return false;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mTapCount == 1 && mOffsets[0] == 0f && mWeights[0] == 1f && mColorAdjust == 0f;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform float $offsets[" + mTapCount + "];\n" +
+                "uniform float $weights[" + mTapCount + "];\n" +
+                "uniform float $colorAdjust;\n";
+    }
+
+    @Override
+    public String getBody() {
+        String step = mHorizontal ? "vec2(uTexelSize.x, 0.0)" : "vec2(0.0, uTexelSize.y)";
+        return "color = vec4(0.0);\n" +
+                "for (int i = 0; i < " + mTapCount + "; i++) {\n" +
+                "    color += sampleInput(vTextureCoord + " + step + " * $offsets[i]) * $weights[i];\n" +
+                "}\n" +
+                "color += $colorAdjust;\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniform1fv(locations[0], mTapCount, mOffsets, 0);
+        GLES20.glUniform1fv(locations[1], mTapCount, mWeights, 0);
+        GLES20.glUniform1f(locations[2], mColorAdjust);
+    }
+}
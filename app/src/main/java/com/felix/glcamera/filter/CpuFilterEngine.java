@@ -0,0 +1,373 @@
+package com.felix.glcamera.filter;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs FilterPass chains on the CPU, as a reference for the GLSL and for filtering stills
+ * off the GL thread (BitmapFilters does the Bitmap side).  Follows the GPU path closely:
+ * the same stages (StagePlanner), bilinear clamp-to-edge sampling at the same coordinates,
+ * and rounding to 8 bits between stages like the RGBA8 framebuffers do.  Results match the
+ * GPU to within a step or two per channel, the difference being GPU filtering precision.
+ * <p>
+ * Images are ARGB ints in texture order: row 0 is t = 0, the way glTexImage2D() uploads
+ * them.  Output is opaque.
+ * <p>
+ * Rows are processed in parallel bands on a ForkJoinPool.  An engine can be shared between
+ * threads, but setLutTable() must not be called while one is running.
+ */
+public class CpuFilterEngine {
+    private static final int MIN_BAND_ROWS = 8;
+
+    private final ForkJoinPool mPool;
+    private Image mLut;
+
+    /**
+     * @param pool Pool to run on, or null to run on the calling thread.
+     */
+    public CpuFilterEngine(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Sets the table used by LutPasses, in the layout LutPass describes.  On the GPU the
+     * table comes from a LutCache texture; without one, LutPasses are skipped here too.
+     */
+    public void setLutTable(int[] argb, int dimension) {
+        mLut = argb != null ? Image.fromArgb(argb, dimension, dimension) : null;
+    }
+
+    /**
+     * Filters an image.  Returns a new array of the same size.
+     */
+    public int[] apply(List<FilterPass> passes, int[] argb, int width, int height) {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("need " + width * height + " pixels, got "
+                    + argb.length);
+        }
+        long mask = StagePlanner.activeMask(passes);
+        for (int i = 0; i < passes.size(); i++) {
+            FilterPass pass = passes.get(i);
+            if (pass instanceof LutPass) {
+                // Active on the GPU once its texture is set; here, once we have a table.
+                boolean active = mLut != null && ((LutPass) pass).getIntensity() != 0f;
+                mask = active ? mask | (1L << i) : mask & ~(1L << i);
+            }
+        }
+
+        Image input = Image.fromArgb(argb, width, height);
+        List<List<FilterPass>> stages = StagePlanner.split(passes, mask);
+        for (int i = 0; i < stages.size(); i++) {
+            List<FilterPass> stage = stages.get(i);
+            float scale = i == stages.size() - 1 ? 1f : StagePlanner.getOutputScale(stage);
+            Image output = new Image(Math.max(1, Math.round(width * scale)),
+                    Math.max(1, Math.round(height * scale)));
+            StageTask task = new StageTask(stage.toArray(new FilterPass[stage.size()]), input,
+                    output, mLut, 0, output.mHeight, bandRows(output.mHeight));
+            if (mPool != null) {
+                mPool.invoke(task);
+            } else {
+                task.compute();
+            }
+            input = output;
+        }
+        return input.toArgb();
+    }
+
+    private int bandRows(int height) {
+        if (mPool == null) {
+            return height;
+        }
+        // A few bands per worker, so uneven bands even out.
+        return Math.max(MIN_BAND_ROWS, height / (mPool.getParallelism() * 4));
+    }
+
+    /**
+     * RGBA floats, interleaved.
+     */
+    private static class Image {
+        final int mWidth;
+        final int mHeight;
+        final float[] mData;
+
+        Image(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mData = new float[width * height * 4];
+        }
+
+        static Image fromArgb(int[] argb, int width, int height) {
+            Image image = new Image(width, height);
+            float[] data = image.mData;
+            for (int i = 0; i < width * height; i++) {
+                int pixel = argb[i];
+                data[i * 4] = ((pixel >> 16) & 0xff) / 255f;
+                data[i * 4 + 1] = ((pixel >> 8) & 0xff) / 255f;
+                data[i * 4 + 2] = (pixel & 0xff) / 255f;
+                data[i * 4 + 3] = (pixel >>> 24) / 255f;
+            }
+            return image;
+        }
+
+        int[] toArgb() {
+            int[] argb = new int[mWidth * mHeight];
+            for (int i = 0; i < argb.length; i++) {
+                argb[i] = 0xff000000 | (toByte(mData[i * 4]) << 16)
+                        | (toByte(mData[i * 4 + 1]) << 8) | toByte(mData[i * 4 + 2]);
+            }
+            return argb;
+        }
+
+        /**
+         * Bilinear, clamp-to-edge lookup at texture coordinates (u, v), like texture2D() with
+         * GL_LINEAR.
+         */
+        void sample(float u, float v, float[] out, int offset) {
+            float x = u * mWidth - 0.5f;
+            float y = v * mHeight - 0.5f;
+            int x0 = (int) Math.floor(x);
+            int y0 = (int) Math.floor(y);
+            float fx = x - x0;
+            float fy = y - y0;
+            int x1 = clamp(x0 + 1, mWidth);
+            int y1 = clamp(y0 + 1, mHeight);
+            x0 = clamp(x0, mWidth);
+            y0 = clamp(y0, mHeight);
+            int p00 = (y0 * mWidth + x0) * 4;
+            int p10 = (y0 * mWidth + x1) * 4;
+            int p01 = (y1 * mWidth + x0) * 4;
+            int p11 = (y1 * mWidth + x1) * 4;
+            for (int c = 0; c < 4; c++) {
+                float top = mData[p00 + c] + (mData[p10 + c] - mData[p00 + c]) * fx;
+                float bottom = mData[p01 + c] + (mData[p11 + c] - mData[p01 + c]) * fx;
+                out[offset + c] = top + (bottom - top) * fy;
+            }
+        }
+
+        private static int clamp(int i, int size) {
+            return i < 0 ? 0 : (i >= size ? size - 1 : i);
+        }
+
+        private static int toByte(float value) {
+            return Math.round(Math.min(Math.max(value, 0f), 1f) * 255f);
+        }
+    }
+
+    /**
+     * Runs one stage over a band of output rows, splitting it while it's large.
+     */
+    private static class StageTask extends RecursiveAction {
+        private final FilterPass[] mPasses;
+        private final Image mInput;
+        private final Image mOutput;
+        private final Image mLut;
+        private final int mStartRow;
+        private final int mEndRow;
+        private final int mBandRows;
+        // Scratch for the LUT's two blue slices, so the per-pixel path doesn't allocate.
+        private final float[] mGraded0 = new float[4];
+        private final float[] mGraded1 = new float[4];
+
+        StageTask(FilterPass[] passes, Image input, Image output, Image lut, int startRow,
+                int endRow, int bandRows) {
+            mPasses = passes;
+            mInput = input;
+            mOutput = output;
+            mLut = lut;
+            mStartRow = startRow;
+            mEndRow = endRow;
+            mBandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndRow - mStartRow > mBandRows) {
+                int middle = (mStartRow + mEndRow) >>> 1;
+                invokeAll(
+                        new StageTask(mPasses, mInput, mOutput, mLut, mStartRow, middle, mBandRows),
+                        new StageTask(mPasses, mInput, mOutput, mLut, middle, mEndRow, mBandRows));
+                return;
+            }
+            float[] color = new float[4];
+            float[] tap = new float[4];
+            float texelWidth = 1f / mInput.mWidth;
+            float texelHeight = 1f / mInput.mHeight;
+            float[] out = mOutput.mData;
+            for (int y = mStartRow; y < mEndRow; y++) {
+                float v = (y + 0.5f) / mOutput.mHeight;
+                for (int x = 0; x < mOutput.mWidth; x++) {
+                    float u = (x + 0.5f) / mOutput.mWidth;
+                    if (mPasses.length > 0 && !mPasses[0].isPointwise()) {
+                        applySampling(mPasses[0], u, v, texelWidth, texelHeight, color, tap);
+                    } else {
+                        mInput.sample(u, v, color, 0);
+                    }
+                    for (int i = 0; i < mPasses.length; i++) {
+                        if (mPasses[i].isPointwise()) {
+                            applyPointwise(mPasses[i], u, v, color);
+                        }
+                    }
+                    // The framebuffer stores 8 bits per channel.
+                    int p = (y * mOutput.mWidth + x) * 4;
+                    for (int c = 0; c < 4; c++) {
+                        out[p + c] = Math.round(Math.min(Math.max(color[c], 0f), 1f) * 255f) / 255f;
+                    }
+                }
+            }
+        }
+
+        private void applySampling(FilterPass pass, float u, float v, float texelWidth,
+                float texelHeight, float[] color, float[] tap) {
+            clear(color);
+            if (pass instanceof KernelPass) {
+                KernelPass kernelPass = (KernelPass) pass;
+                int size = kernelPass.getSize();
+                int radius = size / 2;
+                float[] kernel = kernelPass.getKernel();
+                for (int ky = 0; ky < size; ky++) {
+                    for (int kx = 0; kx < size; kx++) {
+                        mInput.sample(u + (kx - radius) * texelWidth,
+                                v + (ky - radius) * texelHeight, tap, 0);
+                        accumulate(color, tap, kernel[ky * size + kx]);
+                    }
+                }
+                add(color, kernelPass.getColorAdjust());
+            } else if (pass instanceof Convolution1dPass) {
+                Convolution1dPass convolution = (Convolution1dPass) pass;
+                float stepU = convolution.isHorizontal() ? texelWidth : 0f;
+                float stepV = convolution.isHorizontal() ? 0f : texelHeight;
+                float[] offsets = convolution.getOffsets();
+                float[] weights = convolution.getWeights();
+                for (int i = 0; i < offsets.length; i++) {
+                    mInput.sample(u + stepU * offsets[i], v + stepV * offsets[i], tap, 0);
+                    accumulate(color, tap, weights[i]);
+                }
+                add(color, convolution.getColorAdjust());
+            } else if (pass instanceof DualFilterPass) {
+                DualFilterPass dual = (DualFilterPass) pass;
+                float hx = texelWidth * 0.5f * dual.getOffset();
+                float hy = texelHeight * 0.5f * dual.getOffset();
+                if (!dual.isUpsample()) {
+                    mInput.sample(u, v, tap, 0);
+                    accumulate(color, tap, 4f);
+                    sampleAdd(u - hx, v - hy, 1f, color, tap);
+                    sampleAdd(u + hx, v + hy, 1f, color, tap);
+                    sampleAdd(u + hx, v - hy, 1f, color, tap);
+                    sampleAdd(u - hx, v + hy, 1f, color, tap);
+                    scale(color, 1f / 8f);
+                } else {
+                    sampleAdd(u - hx * 2f, v, 1f, color, tap);
+                    sampleAdd(u - hx, v + hy, 2f, color, tap);
+                    sampleAdd(u, v + hy * 2f, 1f, color, tap);
+                    sampleAdd(u + hx, v + hy, 2f, color, tap);
+                    sampleAdd(u + hx * 2f, v, 1f, color, tap);
+                    sampleAdd(u + hx, v - hy, 2f, color, tap);
+                    sampleAdd(u, v - hy * 2f, 1f, color, tap);
+                    sampleAdd(u - hx, v - hy, 2f, color, tap);
+                    scale(color, 1f / 12f);
+                }
+            } else {
+                throw new IllegalArgumentException(
+                        "no CPU version of " + pass.getClass().getName());
+            }
+        }
+
+        private void applyPointwise(FilterPass pass, float u, float v, float[] color) {
+            if (pass instanceof ColorMatrixPass) {
+                ColorMatrixPass matrixPass = (ColorMatrixPass) pass;
+                float[] m = matrixPass.getMatrix();      // column-major, like GLSL
+                float[] offset = matrixPass.getOffset();
+                float r = color[0];
+                float g = color[1];
+                float b = color[2];
+                float a = color[3];
+                for (int row = 0; row < 4; row++) {
+                    color[row] = m[row] * r + m[4 + row] * g + m[8 + row] * b + m[12 + row] * a
+                            + offset[row];
+                }
+            } else if (pass instanceof VignettePass) {
+                VignettePass vignette = (VignettePass) pass;
+                float du = u - 0.5f;
+                float dv = v - 0.5f;
+                float d = (float) Math.sqrt(du * du + dv * dv);
+                float factor = 1f - vignette.getStrength()
+                        * smoothstep(vignette.getRadius(), 0.7071f, d);
+                color[0] *= factor;
+                color[1] *= factor;
+                color[2] *= factor;
+            } else if (pass instanceof LutPass) {
+                applyLut(((LutPass) pass).getIntensity(), color);
+            } else {
+                throw new IllegalArgumentException(
+                        "no CPU version of " + pass.getClass().getName());
+            }
+        }
+
+        /**
+         * Same math as LutPass's shader.
+         */
+        private void applyLut(float intensity, float[] color) {
+            int dim = mLut.mWidth;
+            float size = (float) Math.round(Math.pow(dim, 2.0 / 3.0));
+            float tiles = (float) Math.sqrt(size);
+            float cr = clamp01(color[0]) * (size - 1f);
+            float cg = clamp01(color[1]) * (size - 1f);
+            float cb = clamp01(color[2]) * (size - 1f);
+            float b0 = (float) Math.floor(cb);
+            float b1 = Math.min(b0 + 1f, size - 1f);
+            lutTile(b0, cr, cg, size, tiles, mGraded0);
+            lutTile(b1, cr, cg, size, tiles, mGraded1);
+            float f = cb - b0;
+            for (int c = 0; c < 3; c++) {
+                float graded = mGraded0[c] + (mGraded1[c] - mGraded0[c]) * f;
+                color[c] += (graded - color[c]) * intensity;
+            }
+        }
+
+        private void lutTile(float blue, float red, float green, float size, float tiles,
+                float[] out) {
+            float tileX = blue - tiles * (float) Math.floor(blue / tiles);
+            float tileY = (float) Math.floor(blue / tiles);
+            float texels = size * tiles;
+            mLut.sample((tileX * size + red + 0.5f) / texels,
+                    (tileY * size + green + 0.5f) / texels, out, 0);
+        }
+
+        private void sampleAdd(float u, float v, float weight, float[] color, float[] tap) {
+            mInput.sample(u, v, tap, 0);
+            accumulate(color, tap, weight);
+        }
+
+        private static void clear(float[] color) {
+            color[0] = color[1] = color[2] = color[3] = 0f;
+        }
+
+        private static void accumulate(float[] color, float[] tap, float weight) {
+            for (int c = 0; c < 4; c++) {
+                color[c] += tap[c] * weight;
+            }
+        }
+
+        private static void add(float[] color, float value) {
+            for (int c = 0; c < 4; c++) {
+                color[c] += value;
+            }
+        }
+
+        private static void scale(float[] color, float factor) {
+            for (int c = 0; c < 4; c++) {
+                color[c] *= factor;
+            }
+        }
+
+        private static float clamp01(float value) {
+            return Math.min(Math.max(value, 0f), 1f);
+        }
+
+        private static float smoothstep(float edge0, float edge1, float x) {
+            float t = clamp01((x - edge0) / (edge1 - edge0));
+            return t * t * (3f - 2f * t);
+        }
+    }
+}
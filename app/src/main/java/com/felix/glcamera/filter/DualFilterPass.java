@@ -0,0 +1,88 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * One level of a dual-filter (Kawase style) blur pyramid: a 5-tap downsample or an 8-tap
+ * upsample.  Every fetch lands between texels, so GL_LINEAR does part of the averaging.
+ * Use Convolution.pyramidBlur() to get a matched set.
+ */
+public class DualFilterPass extends FilterPass {
+    private static final String[] UNIFORMS = {"offset"};
+
+    private final boolean mUpsample;
+    private final float mScale;
+    private float mOffset;
+
+    /**
+     * @param upsample Whether this is an upsampling level.
+     * @param scale Output size relative to the graph's output.
+     * @param offset Spread of the taps, in texels.
+     */
+    public DualFilterPass(boolean upsample, float scale, float offset) {
+        mUpsample = upsample;
+        mScale = scale;
+        setOffset(offset);
+    }
+
+    public void setOffset(float offset) {
+        mOffset = offset;
+        invalidate();
+    }
+
+    boolean isUpsample() {
+        return mUpsample;
+    }
+
+    float getOffset() {
+        return mOffset;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return false;
+    }
+
+    @Override
+    public float getOutputScale() {
+        return mScale;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform float $offset;\n";
+    }
+
+    @Override
+    public String getBody() {
+        if (!mUpsample) {
+            return "vec2 $h = uTexelSize * 0.5 * $offset;\n" +
+                    "color = sampleInput(vTextureCoord) * 4.0;\n" +
+                    "color += sampleInput(vTextureCoord - $h);\n" +
+                    "color += sampleInput(vTextureCoord + $h);\n" +
+                    "color += sampleInput(vTextureCoord + vec2($h.x, -$h.y));\n" +
+                    "color += sampleInput(vTextureCoord - vec2($h.x, -$h.y));\n" +
+                    "color /= 8.0;\n";
+        }
+        return "vec2 $h = uTexelSize * 0.5 * $offset;\n" +
+                "color = sampleInput(vTextureCoord + vec2(-$h.x * 2.0, 0.0));\n" +
+                "color += sampleInput(vTextureCoord + vec2(-$h.x, $h.y)) * 2.0;\n" +
+                "color += sampleInput(vTextureCoord + vec2(0.0, $h.y * 2.0));\n" +
+                "color += sampleInput(vTextureCoord + vec2($h.x, $h.y)) * 2.0;\n" +
+                "color += sampleInput(vTextureCoord + vec2($h.x * 2.0, 0.0));\n" +
+                "color += sampleInput(vTextureCoord + vec2($h.x, -$h.y)) * 2.0;\n" +
+                "color += sampleInput(vTextureCoord + vec2(0.0, -$h.y * 2.0));\n" +
+                "color += sampleInput(vTextureCoord + vec2(-$h.x, -$h.y)) * 2.0;\n" +
+                "color /= 12.0;\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniform1f(locations[0], mOffset);
+    }
+}
@@ -0,0 +1,188 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.felix.glcamera.gles.FrameBuffer;
+import com.felix.glcamera.gles.GlUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs a chain of FilterPasses over a frame.
+ * <p>
+ * The chain is split into stages, one draw call each: a new stage starts at every sampling
+ * pass, and pointwise passes are fused into the stage before them.  Stages of passes with
+ * an output scale render into smaller framebuffers, and are followed by a full-size stage.
+ * Passes that currently do nothing are left out.  Intermediate results ping-pong between
+ * framebuffers from a FramebufferPool; the last stage draws straight into the caller's
+ * target.
+ * <p>
+ * Programs are compiled the first time a particular set of active passes is seen, and kept
+ * for as long as the graph lives, so toggling a pass on and off doesn't recompile.  They
+ * come from the ProgramCache, so a chain that was used recently, or warmed up with
+ * prewarm(), is set up again without compiling.  In the steady state draw() doesn't create
+ * any GL objects or Java objects.
+ * <p>
+ * All methods must be called on the thread that owns the EGL context.
+ */
+public class FilterGraph {
+    private static final String TAG = "FilterGraph";
+    private static final int MAX_PASSES = 64;   // active passes are tracked in a long
+
+    private final boolean mExternalInput;
+    private final ArrayList<FilterPass> mPasses = new ArrayList<FilterPass>();
+    private final FramebufferPool mPool = new FramebufferPool();
+    private final HashMap<Long, FilterStage[]> mPlans = new HashMap<Long, FilterStage[]>();
+    private FilterStage[] mPlan;
+    private long mPlanMask = -1;
+    private int mInputWidth = 1;
+    private int mInputHeight = 1;
+
+    /**
+     * @param externalInput Whether draw() will be given SurfaceTexture (external OES)
+     *                      textures rather than GL_TEXTURE_2D.
+     */
+    public FilterGraph(boolean externalInput) {
+        mExternalInput = externalInput;
+    }
+
+    /**
+     * Replaces the chain.  Programs for the old chain are released back to the ProgramCache.
+     */
+    public void setPasses(List<FilterPass> passes) {
+        if (passes.size() > MAX_PASSES) {
+            throw new IllegalArgumentException("too many passes: " + passes.size());
+        }
+        releasePlans(true);
+        mPasses.clear();
+        mPasses.addAll(passes);
+    }
+
+    /**
+     * Creates the programs a chain would need with all its passes active, and releases them
+     * to the ProgramCache, so a later setPasses() with the same passes doesn't have to
+     * compile.
+     */
+    public void prewarm(List<FilterPass> passes) {
+        long allActive = passes.size() >= MAX_PASSES ? -1L : (1L << passes.size()) - 1;
+        FilterStage[] plan = buildPlan(passes, allActive);
+        for (FilterStage stage : plan) {
+            stage.release(true);
+        }
+    }
+
+    /**
+     * Sets the size of the input texture, used to find neighboring texels in the first
+     * stage.
+     */
+    public void setInputSize(int width, int height) {
+        mInputWidth = width;
+        mInputHeight = height;
+    }
+
+    /**
+     * Filters the texture into target, or into the window surface if target is null.  The
+     * output is width x height.  Afterwards the window surface is bound, and the viewport
+     * is left at width x height.
+     */
+    public void draw(int textureId, float[] texMatrix, FrameBuffer target, int width, int height) {
+        FilterStage[] plan = getPlan();
+        int inputTexture = textureId;
+        float[] inputMatrix = texMatrix;
+        float texelWidth = 1.0f / mInputWidth;
+        float texelHeight = 1.0f / mInputHeight;
+        FrameBuffer input = null;
+
+        for (int i = 0; i < plan.length; i++) {
+            FrameBuffer output = null;
+            int outputWidth = width;
+            int outputHeight = height;
+            if (i == plan.length - 1) {
+                if (target != null) {
+                    target.bind();
+                } else {
+                    FrameBuffer.unbind();
+                    GLES20.glViewport(0, 0, width, height);
+                }
+            } else {
+                float scale = plan[i].getOutputScale();
+                outputWidth = Math.max(1, Math.round(width * scale));
+                outputHeight = Math.max(1, Math.round(height * scale));
+                output = mPool.acquire(outputWidth, outputHeight);
+                output.bind();
+            }
+            plan[i].draw(inputTexture, inputMatrix, texelWidth, texelHeight);
+
+            if (input != null) {
+                mPool.release(input);
+            }
+            if (output != null) {
+                // Later stages read our output, which is already upright.
+                input = output;
+                inputTexture = output.getTextureId();
+                inputMatrix = GlUtil.IDENTITY_MATRIX;
+                texelWidth = 1.0f / outputWidth;
+                texelHeight = 1.0f / outputHeight;
+            }
+        }
+        if (target != null) {
+            FrameBuffer.unbind();
+        }
+        mPool.endFrame();
+    }
+
+    /**
+     * Releases the programs and framebuffers.  Pass false if the EGL context is about to be
+     * destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        releasePlans(doEglCleanup);
+        mPool.release(doEglCleanup);
+    }
+
+    private void releasePlans(boolean doEglCleanup) {
+        for (FilterStage[] plan : mPlans.values()) {
+            for (FilterStage stage : plan) {
+                stage.release(doEglCleanup);
+            }
+        }
+        mPlans.clear();
+        mPlan = null;
+        mPlanMask = -1;
+    }
+
+    /**
+     * Returns the stages for the passes that are currently active.
+     */
+    private FilterStage[] getPlan() {
+        long mask = StagePlanner.activeMask(mPasses);
+        if (mPlan != null && mask == mPlanMask) {
+            return mPlan;
+        }
+        FilterStage[] plan = mPlans.get(mask);
+        if (plan == null) {
+            plan = buildPlan(mPasses, mask);
+            mPlans.put(mask, plan);
+        }
+        mPlan = plan;
+        mPlanMask = mask;
+        return plan;
+    }
+
+    /**
+     * Splits the active passes into stages and compiles them.
+     */
+    private FilterStage[] buildPlan(List<FilterPass> passes, long mask) {
+        List<List<FilterPass>> groups = StagePlanner.split(passes, mask);
+        FilterStage[] stages = new FilterStage[groups.size()];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new FilterStage(groups.get(i), mExternalInput && i == 0);
+        }
+        Log.d(TAG, "built " + stages.length + " stage(s) for " + Long.bitCount(mask)
+                + " of " + passes.size() + " pass(es)");
+        return stages;
+    }
+}
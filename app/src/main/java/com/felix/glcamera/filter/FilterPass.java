@@ -0,0 +1,96 @@
+package com.felix.glcamera.filter;
+
+/**
+ * One step of a FilterGraph.
+ * <p>
+ * A pass is a fragment of GLSL rather than a whole program, so that FilterGraph can fuse
+ * several passes into one shader.  Inside main() the generated shader keeps the current
+ * pixel in a vec4 called "color":
+ * <ul>
+ * <li>A <b>pointwise</b> pass only looks at "color" (and optionally vTextureCoord), and
+ * updates it in place.  Any number of these are fused onto the end of the pass before.
+ * <li>A <b>sampling</b> pass reads neighboring texels with sampleInput(vec2) and sets
+ * "color" from them.  uTexelSize holds the size of one input texel.  A sampling pass needs
+ * the previous output in a texture, so it always starts a new shader.
+ * </ul>
+ * Uniforms are named with PREFIX, which is replaced with something unique to the pass in
+ * each shader it ends up in.  Their locations are looked up once per program and handed
+ * back to applyUniforms() in the order getUniformNames() lists them.  Subclasses call
+ * invalidate() when their uniform values change; otherwise they aren't uploaded again.
+ * <p>
+ * A sampling pass can also render at a fraction of the output size (getOutputScale()), for
+ * pyramid filters.  Pointwise passes after it run at its size; the graph adds a final copy
+ * back up to full size if needed.
+ * <p>
+ * Passes whose isIdentity() returns true are left out of the graph until they do something
+ * again.
+ */
+public abstract class FilterPass {
+    /** Stands for the pass's uniform name prefix in GLSL snippets. */
+    public static final String PREFIX = "$";
+
+    private int mVersion;
+
+    /**
+     * Returns true if the output pixel only depends on the input pixel at the same place.
+     */
+    public abstract boolean isPointwise();
+
+    /**
+     * Returns true if the pass currently has no effect and can be skipped.
+     */
+    public boolean isIdentity() {
+        return false;
+    }
+
+    /**
+     * Returns the size of the pass's output relative to the graph's output.  Only sampling
+     * passes may return something other than 1.
+     */
+    public float getOutputScale() {
+        return 1f;
+    }
+
+    /**
+     * Returns the GLSL uniform declarations the body needs, with names starting with PREFIX.
+     */
+    public abstract String getDeclarations();
+
+    /**
+     * Returns the GLSL statements that update "color".
+     */
+    public abstract String getBody();
+
+    /**
+     * Returns the uniform names (without PREFIX) whose locations applyUniforms() needs.
+     */
+    public abstract String[] getUniformNames();
+
+    /**
+     * Sets the pass's uniforms.  Called with the program current, before a draw, when the
+     * values changed or the program's uniforms were lost.  A location is -1 if the compiler
+     * optimized the uniform away.
+     */
+    public abstract void applyUniforms(int[] locations);
+
+    /**
+     * Binds any textures the pass samples besides the input, on units other than 0, leaving
+     * unit 0 active.  Called with the program current, before every draw.
+     */
+    public void bindTextures() {
+    }
+
+    /**
+     * Returns a number that changes whenever the uniform values do.
+     */
+    public final int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Marks the uniform values as changed.
+     */
+    protected void invalidate() {
+        mVersion++;
+    }
+}
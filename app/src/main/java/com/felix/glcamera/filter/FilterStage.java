@@ -0,0 +1,118 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import com.felix.glcamera.gles.FullFrameRect;
+import com.felix.glcamera.gles.Texture2dProgram;
+
+import java.util.List;
+
+/**
+ * One draw call of a FilterGraph: an optional sampling pass followed by any number of
+ * pointwise passes, compiled into a single program.
+ */
+class FilterStage {
+    private final FilterPass[] mPasses;
+    private final int[][] mUniformLocations;
+    private final FullFrameRect mRect;
+    private final int mTexelSizeLoc;
+    private final float mOutputScale;
+    private final int[] mAppliedVersions;   // pass versions whose uniforms the program holds
+    private float mTexelWidth = -1f;
+    private float mTexelHeight = -1f;
+
+    /**
+     * Generates and compiles the shader for the passes.  The EGL context must be current.
+     *
+     * @param externalInput Whether the input is a SurfaceTexture (external OES) texture.
+     */
+    FilterStage(List<FilterPass> passes, boolean externalInput) {
+        mPasses = passes.toArray(new FilterPass[passes.size()]);
+        mOutputScale = StagePlanner.getOutputScale(passes);
+        String fragmentShader = generateShader(mPasses, externalInput);
+        int target = externalInput ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
+        mRect = new FullFrameRect(new Texture2dProgram(target, fragmentShader));
+
+        int program = mRect.getProgram().getProgramHandle();
+        mTexelSizeLoc = GLES20.glGetUniformLocation(program, "uTexelSize");
+        mAppliedVersions = new int[mPasses.length];
+        mUniformLocations = new int[mPasses.length][];
+        for (int i = 0; i < mPasses.length; i++) {
+            String[] names = mPasses[i].getUniformNames();
+            mUniformLocations[i] = new int[names.length];
+            for (int j = 0; j < names.length; j++) {
+                mUniformLocations[i][j] = GLES20.glGetUniformLocation(program, prefix(i) + names[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the stage's output relative to the graph's output.
+     */
+    float getOutputScale() {
+        return mOutputScale;
+    }
+
+    private static String prefix(int passIndex) {
+        return "p" + passIndex + "_";
+    }
+
+    private static String generateShader(FilterPass[] passes, boolean externalInput) {
+        StringBuilder sb = new StringBuilder();
+        if (externalInput) {
+            sb.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+        sb.append("precision highp float;\n");
+        sb.append("varying vec2 vTextureCoord;\n");
+        sb.append(externalInput ? "uniform samplerExternalOES sTexture;\n" : "uniform sampler2D sTexture;\n");
+        sb.append("uniform vec2 uTexelSize;\n");
+        for (int i = 0; i < passes.length; i++) {
+            sb.append(passes[i].getDeclarations().replace(FilterPass.PREFIX, prefix(i)));
+        }
+        sb.append("vec4 sampleInput(vec2 tc) {\n");
+        sb.append("    return texture2D(sTexture, tc);\n");
+        sb.append("}\n");
+        sb.append("void main() {\n");
+        if (passes.length > 0 && !passes[0].isPointwise()) {
+            sb.append("    vec4 color;\n");
+        } else {
+            sb.append("    vec4 color = sampleInput(vTextureCoord);\n");
+        }
+        for (int i = 0; i < passes.length; i++) {
+            sb.append("    {\n");
+            sb.append(passes[i].getBody().replace(FilterPass.PREFIX, prefix(i)));
+            sb.append("    }\n");
+        }
+        sb.append("    gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Draws the input through the stage into whatever framebuffer is bound.
+     */
+    void draw(int textureId, float[] texMatrix, float texelWidth, float texelHeight) {
+        // Uniforms stay with the program, so only changed ones are set, unless someone else
+        // has used the program since.
+        boolean lost = mRect.getProgram().use();
+        if (mTexelSizeLoc >= 0 && (lost || texelWidth != mTexelWidth || texelHeight != mTexelHeight)) {
+            GLES20.glUniform2f(mTexelSizeLoc, texelWidth, texelHeight);
+            mTexelWidth = texelWidth;
+            mTexelHeight = texelHeight;
+        }
+        for (int i = 0; i < mPasses.length; i++) {
+            mPasses[i].bindTextures();
+            int version = mPasses[i].getVersion();
+            if (lost || version != mAppliedVersions[i]) {
+                mPasses[i].applyUniforms(mUniformLocations[i]);
+                mAppliedVersions[i] = version;
+            }
+        }
+        mRect.drawFrame(textureId, texMatrix);
+    }
+
+    void release(boolean doEglCleanup) {
+        mRect.release(doEglCleanup);
+    }
+}
@@ -0,0 +1,53 @@
+package com.felix.glcamera.filter;
+
+import com.felix.glcamera.gles.FrameBuffer;
+
+/**
+ * Recycles the intermediate framebuffers of a FilterGraph.  Once a chain has run at a given
+ * size, every later frame at that size is served from the pool.  Buffers a frame didn't
+ * use are released at endFrame(), so old sizes don't hold on to memory.
+ * <p>
+ * Must be used on the thread whose EGL context owns the buffers.
+ */
+public class FramebufferPool {
+    private final SizedPool<FrameBuffer> mPool = new SizedPool<FrameBuffer>() {
+        @Override
+        protected FrameBuffer create(int width, int height) {
+            return new FrameBuffer(width, height);
+        }
+
+        @Override
+        protected void destroy(FrameBuffer frameBuffer, boolean doEglCleanup) {
+            frameBuffer.release(doEglCleanup);
+        }
+    };
+
+    /**
+     * Returns a free buffer of the given size, creating one if there isn't any.
+     */
+    public FrameBuffer acquire(int width, int height) {
+        return mPool.acquire(width, height);
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.
+     */
+    public void release(FrameBuffer frameBuffer) {
+        mPool.release(frameBuffer);
+    }
+
+    /**
+     * Call after each frame.  Releases the free buffers the frame didn't acquire.
+     */
+    public void endFrame() {
+        mPool.endFrame();
+    }
+
+    /**
+     * Releases every buffer the pool has created.  Pass false if the EGL context is about to
+     * be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        mPool.clear(doEglCleanup);
+    }
+}
@@ -0,0 +1,109 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Direct NxN convolution (blur, sharpen, edge detect, emboss).  The 3x3 version is the same
+ * filter as Texture2dProgram's TEXTURE_EXT_FILT but usable anywhere in a chain.  Costs N*N
+ * fetches per pixel; Convolution.createPasses() uses two 1D passes instead when it can.
+ */
+public class KernelPass extends FilterPass {
+    public static final int KERNEL_SIZE = 9;
+    private static final String[] UNIFORMS = {"kernel", "colorAdjust"};
+
+    private final int mSize;
+    private final float[] mKernel;
+    private float mColorAdjust;
+
+    /**
+     * Creates a 3x3 convolution.
+     */
+    public KernelPass(float[] kernel, float colorAdjust) {
+        this(3, kernel, colorAdjust);
+    }
+
+    /**
+     * @param size Width and height of the kernel; must be odd.
+     */
+    public KernelPass(int size, float[] kernel, float colorAdjust) {
+        if (size % 2 == 0) {
+            throw new IllegalArgumentException("Kernel size must be odd: " + size);
+        }
+        mSize = size;
+        mKernel = new float[size * size];
+        setKernel(kernel, colorAdjust);
+    }
+
+    /**
+     * @param kernel Filter values in row order; must be size * size elements.
+     */
+    public void setKernel(float[] kernel, float colorAdjust) {
+        if (kernel.length != mKernel.length) {
+            throw new IllegalArgumentException("Kernel size is " + kernel.length +
+                    " vs. " + mKernel.length);
+        }
+        System.arraycopy(kernel, 0, mKernel, 0, mKernel.length);
+        mColorAdjust = colorAdjust;
+        invalidate();
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    float[] getKernel() {
+        return mKernel;
+    }
+
+    float getColorAdjust() {
+        return mColorAdjust;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return false;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        if (mColorAdjust != 0f) {
+            return false;
+        }
+        for (int i = 0; i < mKernel.length; i++) {
+            if (mKernel[i] != (i == mKernel.length / 2 ? 1f : 0f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform float $kernel[" + mKernel.length + "];\n" +
+                "uniform float $colorAdjust;\n";
+    }
+
+    @Override
+    public String getBody() {
+        int radius = mSize / 2;
+        return "color = vec4(0.0);\n" +
+                "for (int y = 0; y < " + mSize + "; y++) {\n" +
+                "    for (int x = 0; x < " + mSize + "; x++) {\n" +
+                "        vec2 offset = vec2(float(x - " + radius + "), float(y - " + radius + ")) * uTexelSize;\n" +
+                "        color += sampleInput(vTextureCoord + offset) * $kernel[y * " + mSize + " + x];\n" +
+                "    }\n" +
+                "}\n" +
+                "color += $colorAdjust;\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniform1fv(locations[0], mKernel.length, mKernel, 0);
+        GLES20.glUniform1f(locations[1], mColorAdjust);
+    }
+}
@@ -0,0 +1,199 @@
+package com.felix.glcamera.filter;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.felix.glcamera.gles.GlState;
+import com.felix.glcamera.gles.GlUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lookup-table textures for LutPass, loaded from assets and kept in an LRU cache with a
+ * memory budget.  PNG decoding happens on a background thread; the GL thread uploads
+ * finished tables in uploadLoaded(), which it should call once per frame.
+ * <p>
+ * Everything but the decoding runs on the thread that owns the EGL context.
+ */
+public class LutCache {
+    private static final String TAG = "LutCache";
+
+    /**
+     * An uploaded table.
+     */
+    public static class Lut {
+        public final int mTextureId;
+        public final int mSize;         // entries per channel
+        final int mBytes;
+
+        Lut(int textureId, int size, int bytes) {
+            mTextureId = textureId;
+            mSize = size;
+            mBytes = bytes;
+        }
+    }
+
+    private static class Decoded {
+        final String mAsset;
+        final Bitmap mBitmap;       // null if decoding failed
+
+        Decoded(String asset, Bitmap bitmap) {
+            mAsset = asset;
+            mBitmap = bitmap;
+        }
+    }
+
+    private final AssetManager mAssets;
+    private final LruCache<String, Lut> mCache;
+    private final HashSet<String> mPending = new HashSet<String>();
+    private final HashSet<String> mFailed = new HashSet<String>();
+    private final ConcurrentLinkedQueue<Decoded> mDecoded = new ConcurrentLinkedQueue<Decoded>();
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+    private boolean mDoEglCleanup = true;
+
+    /**
+     * @param maxBytes Texture memory the cache may hold; least recently used tables are
+     *                 deleted beyond that.
+     */
+    public LutCache(AssetManager assets, int maxBytes) {
+        mAssets = assets;
+        mCache = new LruCache<String, Lut>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Lut lut) {
+                return lut.mBytes;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Lut oldValue, Lut newValue) {
+                if (mDoEglCleanup) {
+                    GLES20.glDeleteTextures(1, new int[] {oldValue.mTextureId}, 0);
+                    GlState.get().onTextureDeleted(oldValue.mTextureId);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the table for the asset, or null if it isn't loaded yet, in which case it
+     * starts loading.
+     */
+    public Lut get(String asset) {
+        Lut lut = mCache.get(asset);
+        if (lut == null && !mPending.contains(asset) && !mFailed.contains(asset)) {
+            mPending.add(asset);
+            mLoader.execute(new DecodeTask(asset));
+        }
+        return lut;
+    }
+
+    /**
+     * Uploads the tables that have finished decoding.
+     */
+    public void uploadLoaded() {
+        Decoded decoded;
+        while ((decoded = mDecoded.poll()) != null) {
+            mPending.remove(decoded.mAsset);
+            if (decoded.mBitmap == null) {
+                mFailed.add(decoded.mAsset);
+                continue;
+            }
+            Lut lut = upload(decoded.mBitmap);
+            decoded.mBitmap.recycle();
+            if (lut == null) {
+                Log.w(TAG, decoded.mAsset + " isn't a lookup table");
+                mFailed.add(decoded.mAsset);
+            } else {
+                mCache.put(decoded.mAsset, lut);
+            }
+        }
+    }
+
+    /**
+     * Deletes the textures and stops the loader.  Pass false if the EGL context is about to
+     * be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        mLoader.shutdownNow();
+        mDoEglCleanup = doEglCleanup;
+        mCache.evictAll();
+        Decoded decoded;
+        while ((decoded = mDecoded.poll()) != null) {
+            if (decoded.mBitmap != null) {
+                decoded.mBitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Makes a texture from a square table image.  Returns null if the size isn't N * sqrt(N)
+     * for some square N.
+     */
+    private static Lut upload(Bitmap bitmap) {
+        int dim = bitmap.getWidth();
+        int size = (int) Math.round(Math.pow(dim, 2.0 / 3.0));
+        int tiles = (int) Math.round(Math.sqrt(size));
+        if (bitmap.getHeight() != dim || tiles * tiles != size || size * tiles != dim) {
+            return null;
+        }
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, values[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GlUtil.checkGlErrorAlways("upload LUT");
+        GlState.get().invalidateTextures();
+        return new Lut(values[0], size, dim * dim * 4);
+    }
+
+    private class DecodeTask implements Runnable {
+        private final String mAsset;
+
+        DecodeTask(String asset) {
+            mAsset = asset;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            InputStream in = null;
+            try {
+                in = mAssets.open(mAsset);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                options.inScaled = false;
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+                if (bitmap == null) {
+                    Log.w(TAG, "unable to decode " + mAsset);
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "unable to open " + mAsset, ioe);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ioe) {
+                        // ignore
+                    }
+                }
+            }
+            mDecoded.add(new Decoded(mAsset, bitmap));
+        }
+    }
+}
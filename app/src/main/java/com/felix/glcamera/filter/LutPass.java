@@ -0,0 +1,103 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Pointwise color grade through a 3D lookup table packed into a 2D texture: N tiles of
+ * N x N texels, sqrt(N) tiles per row, one tile per blue level, red along x and green down
+ * y.  64^3 in 512x512 is the usual layout.  Blue is interpolated between tiles, red and
+ * green by GL_LINEAR.
+ * <p>
+ * The shader doesn't depend on the table, so every look shares one program, and switching
+ * looks with setLut() is a texture bind.  Until a table is set the pass does nothing.
+ */
+public class LutPass extends FilterPass {
+    private static final String[] UNIFORMS = {"lut", "size", "tiles", "intensity"};
+    private static final int TEXTURE_UNIT = 1;     // unit 0 holds the input
+
+    private int mTextureId;
+    private int mSize;
+    private float mIntensity;
+
+    /**
+     * @param intensity How much of the grade to apply, 0 to 1.
+     */
+    public LutPass(float intensity) {
+        setIntensity(intensity);
+    }
+
+    /**
+     * Sets the table.
+     *
+     * @param textureId GL_TEXTURE_2D texture with the table, or 0 for none.
+     * @param size Entries per channel (N).
+     */
+    public void setLut(int textureId, int size) {
+        if (textureId == mTextureId && size == mSize) {
+            return;
+        }
+        mTextureId = textureId;
+        mSize = size;
+        invalidate();
+    }
+
+    public void setIntensity(float intensity) {
+        mIntensity = intensity;
+        invalidate();
+    }
+
+    float getIntensity() {
+        return mIntensity;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mTextureId == 0 || mIntensity == 0f;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform sampler2D $lut;\n" +
+                "uniform float $size;\n" +
+                "uniform float $tiles;\n" +
+                "uniform float $intensity;\n";
+    }
+
+    @Override
+    public String getBody() {
+        return "vec3 $c = clamp(color.rgb, 0.0, 1.0) * ($size - 1.0);\n" +
+                "float $b0 = floor($c.b);\n" +
+                "float $b1 = min($b0 + 1.0, $size - 1.0);\n" +
+                "vec2 $rg = $c.rg + 0.5;\n" +
+                "float $texels = $size * $tiles;\n" +
+                "vec2 $t0 = (vec2(mod($b0, $tiles), floor($b0 / $tiles)) * $size + $rg) / $texels;\n" +
+                "vec2 $t1 = (vec2(mod($b1, $tiles), floor($b1 / $tiles)) * $size + $rg) / $texels;\n" +
+                "vec3 $graded = mix(texture2D($lut, $t0).rgb, texture2D($lut, $t1).rgb, $c.b - $b0);\n" +
+                "color.rgb = mix(color.rgb, $graded, $intensity);\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniform1i(locations[0], TEXTURE_UNIT);
+        GLES20.glUniform1f(locations[1], mSize);
+        GLES20.glUniform1f(locations[2], (float) Math.sqrt(mSize));
+        GLES20.glUniform1f(locations[3], mIntensity);
+    }
+
+    @Override
+    public void bindTextures() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+}
@@ -0,0 +1,97 @@
+package com.felix.glcamera.filter;
+
+import java.util.ArrayList;
+
+/**
+ * Bookkeeping for pools of width x height objects that are costly to create: reuses free
+ * ones of the right size, and drops the ones a frame didn't use, so sizes that are no
+ * longer wanted (after a resize, or a pass being switched off) don't stay allocated.
+ */
+abstract class SizedPool<T> {
+    // Frames a free item may go unused before it's destroyed.
+    private static final int IDLE_FRAMES = 1;
+
+    private static class Entry<T> {
+        final T mItem;
+        final int mWidth;
+        final int mHeight;
+        boolean mFree;
+        int mLastUsedFrame;
+
+        Entry(T item, int width, int height) {
+            mItem = item;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private final ArrayList<Entry<T>> mEntries = new ArrayList<Entry<T>>();
+    private int mFrame;
+
+    protected abstract T create(int width, int height);
+
+    protected abstract void destroy(T item, boolean doEglCleanup);
+
+    /**
+     * Returns a free item of the given size, creating one if there isn't any.
+     */
+    T acquire(int width, int height) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry<T> entry = mEntries.get(i);
+            if (entry.mFree && entry.mWidth == width && entry.mHeight == height) {
+                entry.mFree = false;
+                entry.mLastUsedFrame = mFrame;
+                return entry.mItem;
+            }
+        }
+        Entry<T> entry = new Entry<T>(create(width, height), width, height);
+        entry.mLastUsedFrame = mFrame;
+        mEntries.add(entry);
+        return entry.mItem;
+    }
+
+    /**
+     * Returns an item obtained from acquire() to the pool.
+     */
+    void release(T item) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry<T> entry = mEntries.get(i);
+            if (entry.mItem == item) {
+                entry.mFree = true;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("not from this pool: " + item);
+    }
+
+    /**
+     * Ends a frame: destroys the free items that went unused for IDLE_FRAMES frames.
+     */
+    void endFrame() {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry<T> entry = mEntries.get(i);
+            if (entry.mFree && mFrame - entry.mLastUsedFrame >= IDLE_FRAMES) {
+                destroy(entry.mItem, true);
+                mEntries.remove(i);
+            }
+        }
+        mFrame++;
+    }
+
+    /**
+     * Returns the number of items the pool holds, free or not.
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Destroys every item, free or not.
+     */
+    void clear(boolean doEglCleanup) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            destroy(mEntries.get(i).mItem, doEglCleanup);
+        }
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,61 @@
+package com.felix.glcamera.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a chain of passes into stages: a new stage starts at every sampling pass, pointwise
+ * passes are fused onto the stage before them, and a full-size copy is added at the end if
+ * the last stage is scaled.  FilterGraph and CpuFilterEngine both use it, so they agree on
+ * where intermediate results are rounded to 8 bits.
+ */
+final class StagePlanner {
+    private StagePlanner() {}   // do not instantiate
+
+    /**
+     * Returns a bit mask of the passes that currently do something.
+     */
+    static long activeMask(List<FilterPass> passes) {
+        long mask = 0;
+        for (int i = 0; i < passes.size(); i++) {
+            if (!passes.get(i).isIdentity()) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the passes in the mask, grouped into stages.  There's always at least one
+     * stage, even if it only copies the input.
+     */
+    static List<List<FilterPass>> split(List<FilterPass> passes, long mask) {
+        List<List<FilterPass>> stages = new ArrayList<List<FilterPass>>();
+        List<FilterPass> current = new ArrayList<FilterPass>();
+        for (int i = 0; i < passes.size(); i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            FilterPass pass = passes.get(i);
+            if (!pass.isPointwise() && !current.isEmpty()) {
+                // Needs the passes so far rendered to a texture it can sample around.
+                stages.add(current);
+                current = new ArrayList<FilterPass>();
+            }
+            current.add(pass);
+        }
+        stages.add(current);
+        if (getOutputScale(current) != 1f) {
+            // Scale the result back up to the output size.
+            stages.add(new ArrayList<FilterPass>());
+        }
+        return stages;
+    }
+
+    /**
+     * Returns the size of a stage's output relative to the chain's output.
+     */
+    static float getOutputScale(List<FilterPass> stage) {
+        return stage.isEmpty() ? 1f : stage.get(0).getOutputScale();
+    }
+}
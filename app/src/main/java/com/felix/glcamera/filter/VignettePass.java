@@ -0,0 +1,69 @@
+package com.felix.glcamera.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Pointwise darkening towards the edges of the frame.
+ */
+public class VignettePass extends FilterPass {
+    private static final String[] UNIFORMS = {"strength", "radius"};
+
+    private float mStrength;
+    private float mRadius;
+
+    /**
+     * @param strength How dark the corners get, 0 (off) to 1 (black).
+     * @param radius Distance from the center, in texture coordinates, where darkening starts.
+     */
+    public VignettePass(float strength, float radius) {
+        set(strength, radius);
+    }
+
+    public void set(float strength, float radius) {
+        mStrength = strength;
+        mRadius = radius;
+        invalidate();
+    }
+
+    float getStrength() {
+        return mStrength;
+    }
+
+    float getRadius() {
+        return mRadius;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mStrength == 0f;
+    }
+
+    @Override
+    public String getDeclarations() {
+        return "uniform float $strength;\n" +
+                "uniform float $radius;\n";
+    }
+
+    @Override
+    public String getBody() {
+        // 0.7071 is the distance from the center to a corner.
+        return "float $d = distance(vTextureCoord, vec2(0.5));\n" +
+                "color.rgb *= 1.0 - $strength * smoothstep($radius, 0.7071, $d);\n";
+    }
+
+    @Override
+    public String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    public void applyUniforms(int[] locations) {
+        GLES20.glUniform1f(locations[0], mStrength);
+        GLES20.glUniform1f(locations[1], mRadius);
+    }
+}
@@ -0,0 +1,80 @@
+package com.felix.glcamera.gles;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Recycles direct ByteBuffers, so pixels read back every so often don't each need a fresh
+ * native allocation (which the GC only learns the true cost of late).
+ * <p>
+ * Buffers may be acquired on one thread and released on another.
+ */
+public class DirectBufferPool {
+    private final int mMaxFree;
+    private final ArrayList<ByteBuffer> mFree = new ArrayList<ByteBuffer>();
+
+    /**
+     * @param maxFree Most buffers kept for reuse; any more released are left for the GC.
+     */
+    public DirectBufferPool(int maxFree) {
+        mMaxFree = maxFree;
+    }
+
+    /**
+     * Returns a buffer with room for at least the given number of bytes, native byte order,
+     * positioned at 0 with its limit at that size.
+     */
+    public ByteBuffer acquire(int size) {
+        synchronized (mFree) {
+            // Smallest one that's big enough.
+            int best = -1;
+            for (int i = 0; i < mFree.size(); i++) {
+                int capacity = mFree.get(i).capacity();
+                if (capacity >= size && (best < 0 || capacity < mFree.get(best).capacity())) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                ByteBuffer buffer = mFree.remove(best);
+                buffer.clear();
+                buffer.limit(size);
+                return buffer;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer from acquire() back.
+     */
+    public void release(ByteBuffer buffer) {
+        synchronized (mFree) {
+            if (mFree.size() < mMaxFree) {
+                mFree.add(buffer);
+            } else {
+                // Keep the larger buffers, since they can serve any request.
+                int smallest = 0;
+                for (int i = 1; i < mFree.size(); i++) {
+                    if (mFree.get(i).capacity() < mFree.get(smallest).capacity()) {
+                        smallest = i;
+                    }
+                }
+                if (mMaxFree > 0 && mFree.get(smallest).capacity() < buffer.capacity()) {
+                    mFree.set(smallest, buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers waiting to be reused.
+     */
+    public int getFreeCount() {
+        synchronized (mFree) {
+            return mFree.size();
+        }
+    }
+}
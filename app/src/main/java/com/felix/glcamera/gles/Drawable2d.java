@@ -16,6 +16,8 @@
 
 package com.felix.glcamera.gles;
 
+import android.opengl.GLES20;
+
 import java.nio.FloatBuffer;
 
 /**
@@ -140,6 +142,52 @@ public class Drawable2d {
         mPrefab = shape;
     }
 
+    /**
+     * Uploads the vertices and texture coordinates into a new vertex buffer object, so draws
+     * don't have to send them from client memory every time.  The positions start at
+     * offset 0, and the texture coordinates at getTexCoordOffset().  Callers normally want
+     * GlState.getPrefabBuffer(), which keeps one per context.
+     * <p>
+     * The EGL context must be current.
+     */
+    public int createBuffer() {
+        int vertexBytes = mVertexArray.capacity() * SIZEOF_FLOAT;
+        int texCoordBytes = mTexCoordArray.capacity() * SIZEOF_FLOAT;
+        int[] values = new int[1];
+        GLES20.glGenBuffers(1, values, 0);
+        GlState.get().bindArrayBuffer(values[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexBytes + texCoordBytes, null,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, vertexBytes, mVertexArray);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, vertexBytes, texCoordBytes, mTexCoordArray);
+        GlUtil.checkGlErrorAlways("createBuffer");
+        return values[0];
+    }
+
+    /**
+     * Points the attributes at this drawable's vertex buffer, which must be bound.
+     */
+    public void setAttributePointers(int positionLoc, int texCoordLoc) {
+        GLES20.glVertexAttribPointer(positionLoc, getCoordsPerVertex(),
+                GLES20.GL_FLOAT, false, getVertexStride(), 0);
+        GLES20.glVertexAttribPointer(texCoordLoc, 2,
+                GLES20.GL_FLOAT, false, getTexCoordStride(), getTexCoordOffset());
+    }
+
+    /**
+     * Returns the shape this drawable was made from.
+     */
+    public Prefab getPrefab() {
+        return mPrefab;
+    }
+
+    /**
+     * Returns the offset, in bytes, of the texture coordinates in the vertex buffer object.
+     */
+    public int getTexCoordOffset() {
+        return mVertexArray.capacity() * SIZEOF_FLOAT;
+    }
+
     /**
      * Returns the array of vertices.
      * <p>
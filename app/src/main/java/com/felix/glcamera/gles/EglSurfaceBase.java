@@ -152,7 +152,8 @@ public class EglSurfaceBase {
     /**
      * Saves the EGL surface to a file.
      * <p>
-     * Expects that this object's EGL surface is current.
+     * Expects that this object's EGL surface is current.  Blocks until the GPU has drawn
+     * everything queued; see PixelReader for reading back without stalling.
      */
     public void saveFrame(File file) throws IOException {
         if (!mEglCore.isCurrent(mEGLSurface)) {
@@ -179,7 +180,7 @@ public class EglSurfaceBase {
         buf.order(ByteOrder.LITTLE_ENDIAN);
         GLES20.glReadPixels(0, 0, width, height,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-        GlUtil.checkGlError("glReadPixels");
+        GlUtil.checkGlErrorAlways("glReadPixels");
         buf.rewind();
 
         BufferedOutputStream bos = null;
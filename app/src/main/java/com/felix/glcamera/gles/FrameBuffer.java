@@ -0,0 +1,195 @@
+package com.felix.glcamera.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Framebuffer object with a GL_TEXTURE_2D color attachment, which can be rendered into by
+ * one EGL context and sampled by another context in the same share group.
+ * <p>
+ * The producer renders between bind() and unbind(), and passes the texture on with
+ * handOff().  The consumer samples it between beginRead() and endRead(), after which the
+ * producer may render into it again.  isInUse() tells the producer whether the consumer is
+ * still holding it.
+ * <p>
+ * Where both contexts are GLES 3, each side inserts a fence sync for the other side to wait
+ * on, so neither CPU thread stalls.  Otherwise the side giving the buffer up calls
+ * glFinish() first.
+ */
+public class FrameBuffer {
+    private static final String TAG = "FrameBuffer";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mProducerFences;   // producer context is GLES 3
+    private int mFramebufferId;
+    private int mTextureId;
+
+    // Handoff state.  The fences are written before mInUse changes hands, and read after.
+    private volatile boolean mInUse;
+    private long mWriteFence;       // producer's rendering, waited on by the consumer
+    private long mReadFence;        // consumer's sampling, waited on by the producer
+
+    /**
+     * Creates the texture and framebuffer in the current (producer) context.
+     */
+    public FrameBuffer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mProducerFences = GlUtil.getGlesMajorVersion() >= 3;
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTextureId = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlErrorAlways("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebufferId = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlState.get().invalidateTextures();
+        GlUtil.checkGlErrorAlways("glFramebufferTexture2D");
+        Log.d(TAG, "Created framebuffer " + mFramebufferId + " " + width + "x" + height
+                + (mProducerFences ? " (fences)" : ""));
+    }
+
+    /**
+     * Releases the texture and framebuffer.  Pass false if the producer context is about
+     * to be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            if (mReadFence != 0) {
+                GLES30.glDeleteSync(mReadFence);
+            }
+            int[] values = new int[] { mFramebufferId };
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            values[0] = mTextureId;
+            GLES20.glDeleteTextures(1, values, 0);
+            GlState.get().onTextureDeleted(mTextureId);
+        }
+        mReadFence = 0;
+        mFramebufferId = mTextureId = 0;
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns true if the buffer has been handed off and the consumer hasn't finished with
+     * it yet.  The producer must not render into it until this returns false.
+     */
+    public boolean isInUse() {
+        return mInUse;
+    }
+
+    /**
+     * Producer: directs rendering into the texture and sets the viewport to match.  Makes
+     * the GPU wait until the consumer's last reads are done.
+     */
+    public void bind() {
+        if (mInUse) {
+            throw new IllegalStateException("framebuffer still in use");
+        }
+        if (mReadFence != 0) {
+            GLES30.glWaitSync(mReadFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(mReadFence);
+            mReadFence = 0;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Producer: goes back to rendering to the window surface.  The caller restores its own
+     * viewport.
+     */
+    public static void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Producer: passes the rendered texture to the consumer.
+     *
+     * @param consumerFences Whether the consumer context is GLES 3 and can wait on a fence.
+     */
+    public void handOff(boolean consumerFences) {
+        if (mProducerFences && consumerFences) {
+            mWriteFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            // The fence has to reach the GPU before the other context can wait on it.
+            GLES20.glFlush();
+        } else {
+            mWriteFence = 0;
+            GLES20.glFinish();
+        }
+        mInUse = true;
+    }
+
+    /**
+     * Consumer: makes the GPU wait until the producer's rendering is done.  Call before
+     * sampling the texture.
+     */
+    public void beginRead() {
+        if (mWriteFence != 0) {
+            GLES30.glWaitSync(mWriteFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(mWriteFence);
+            mWriteFence = 0;
+        }
+    }
+
+    /**
+     * Consumer: gives the buffer back to the producer once the draws that sample it have
+     * been issued.
+     *
+     * @param consumerFences Same value that was passed to handOff().
+     */
+    public void endRead(boolean consumerFences) {
+        if (mProducerFences && consumerFences) {
+            mReadFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();
+        } else {
+            mReadFence = 0;
+            GLES20.glFinish();
+        }
+        mInUse = false;
+    }
+
+    /**
+     * Consumer: gives the buffer back without having sampled it, e.g. for a dropped frame.
+     */
+    public void discard() {
+        if (mWriteFence != 0) {
+            GLES30.glDeleteSync(mWriteFence);
+            mWriteFence = 0;
+        }
+        mInUse = false;
+    }
+}
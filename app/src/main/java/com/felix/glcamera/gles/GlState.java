@@ -0,0 +1,254 @@
+package com.felix.glcamera.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.util.ArrayList;
+
+/**
+ * Remembers the GL state that was set through it, so redundant changes can be skipped.
+ * <p>
+ * There's one per thread, which in this app means one per EGL context.  Call
+ * onContextChanged() after making a different context current on the thread.  It also keeps
+ * the context's copy of the Drawable2d prefab geometry.  Code that changes the tracked state
+ * directly must say so with the invalidate/onDeleted methods.  (SurfaceTexture's
+ * updateTexImage() binds its texture to the external target, which is fine as long as the
+ * context has only the one external texture.)
+ * <p>
+ * Only texture unit 0 is tracked.  Other units may be used directly, as long as unit 0 is
+ * made active again afterwards.
+ */
+public final class GlState {
+    private static final ThreadLocal<GlState> sState = new ThreadLocal<GlState>() {
+        @Override
+        protected GlState initialValue() {
+            return new GlState();
+        }
+    };
+
+    private static final int UNKNOWN = -1;
+
+    private int mProgram;
+    private int mTexture2d;
+    private int mTextureExternal;
+    private int mVertexArray;
+    private int mArrayBuffer;
+    private int mEnabledAttributes;     // bit mask, meaningful when mAttributesKnown
+    private boolean mAttributesKnown;
+
+    private int mGlesMajorVersion;      // 0 until asked
+    private final int[] mPrefabBuffers = new int[Drawable2d.Prefab.values().length];
+    // {prefab ordinal, position location, texture coordinate location, vertex array}
+    private final ArrayList<int[]> mPrefabVertexArrays = new ArrayList<>();
+
+    private GlState() {
+        reset();
+    }
+
+    /**
+     * Returns the tracker for the current thread's context.
+     */
+    public static GlState get() {
+        return sState.get();
+    }
+
+    /**
+     * Forgets everything.  The next call of each kind goes to GL.
+     */
+    public void reset() {
+        mProgram = UNKNOWN;
+        invalidateTextures();
+        invalidateVertexState();
+    }
+
+    /**
+     * Forgets everything, including the geometry, without deleting anything.  Call after
+     * making a different context current on the thread.
+     */
+    public void onContextChanged() {
+        mGlesMajorVersion = 0;
+        for (int i = 0; i < mPrefabBuffers.length; i++) {
+            mPrefabBuffers[i] = 0;
+        }
+        mPrefabVertexArrays.clear();
+        reset();
+    }
+
+    /**
+     * Deletes the geometry made for this context.  Buffers belong to the share group, so a
+     * context that is going away while others in the group live on should call this first.
+     */
+    public void releaseGeometry() {
+        for (int i = 0; i < mPrefabVertexArrays.size(); i++) {
+            GLES30.glDeleteVertexArrays(1, new int[] {mPrefabVertexArrays.get(i)[3]}, 0);
+        }
+        mPrefabVertexArrays.clear();
+        for (int i = 0; i < mPrefabBuffers.length; i++) {
+            if (mPrefabBuffers[i] != 0) {
+                GLES20.glDeleteBuffers(1, new int[] {mPrefabBuffers[i]}, 0);
+                mPrefabBuffers[i] = 0;
+            }
+        }
+        invalidateVertexState();
+    }
+
+    /**
+     * Returns this context's vertex buffer for the drawable's prefab, uploading it the first
+     * time.
+     */
+    public int getPrefabBuffer(Drawable2d drawable) {
+        int index = drawable.getPrefab().ordinal();
+        if (mPrefabBuffers[index] == 0) {
+            mPrefabBuffers[index] = drawable.createBuffer();
+        }
+        return mPrefabBuffers[index];
+    }
+
+    /**
+     * Returns this context's vertex array object that feeds the prefab's buffer to the given
+     * attribute locations, creating it the first time, or 0 on GLES 2.  Programs built from
+     * the same vertex shader end up sharing one.
+     */
+    public int getPrefabVertexArray(Drawable2d drawable, int positionLoc, int texCoordLoc) {
+        if (!hasVertexArrays()) {
+            return 0;
+        }
+        int prefab = drawable.getPrefab().ordinal();
+        for (int i = 0; i < mPrefabVertexArrays.size(); i++) {
+            int[] entry = mPrefabVertexArrays.get(i);
+            if (entry[0] == prefab && entry[1] == positionLoc && entry[2] == texCoordLoc) {
+                return entry[3];
+            }
+        }
+        int buffer = getPrefabBuffer(drawable);
+        int[] values = new int[1];
+        GLES30.glGenVertexArrays(1, values, 0);
+        bindVertexArray(values[0]);
+        bindArrayBuffer(buffer);
+        GLES20.glEnableVertexAttribArray(positionLoc);
+        GLES20.glEnableVertexAttribArray(texCoordLoc);
+        drawable.setAttributePointers(positionLoc, texCoordLoc);
+        bindVertexArray(0);
+        GlUtil.checkGlErrorAlways("getPrefabVertexArray");
+        mPrefabVertexArrays.add(new int[] {prefab, positionLoc, texCoordLoc, values[0]});
+        return values[0];
+    }
+
+    /**
+     * Returns true if the context has vertex array objects (GLES 3).
+     */
+    public boolean hasVertexArrays() {
+        if (mGlesMajorVersion == 0) {
+            mGlesMajorVersion = GlUtil.getGlesMajorVersion();
+        }
+        return mGlesMajorVersion >= 3;
+    }
+
+    /**
+     * Makes the program current.  Whether its uniforms are still as the caller left them is
+     * the UniformOwner's business.
+     */
+    public void useProgram(int program) {
+        if (program != mProgram) {
+            GLES20.glUseProgram(program);
+            mProgram = program;
+        }
+    }
+
+    /**
+     * Binds the texture to GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES on unit 0.
+     */
+    public void bindTexture(int target, int texture) {
+        if (target == GLES20.GL_TEXTURE_2D) {
+            if (texture == mTexture2d) {
+                return;
+            }
+            mTexture2d = texture;
+        } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+            if (texture == mTextureExternal) {
+                return;
+            }
+            mTextureExternal = texture;
+        }
+        GLES20.glBindTexture(target, texture);
+    }
+
+    /**
+     * Binds a vertex array object (GLES 3).  Binding 0 on GLES 2 is a no-op, so attribute
+     * setup for the default vertex array can always start with it.
+     */
+    public void bindVertexArray(int vertexArray) {
+        if (vertexArray == 0 && !hasVertexArrays()) {
+            return;
+        }
+        if (vertexArray != mVertexArray) {
+            GLES30.glBindVertexArray(vertexArray);
+            mVertexArray = vertexArray;
+        }
+    }
+
+    public void bindArrayBuffer(int buffer) {
+        if (buffer != mArrayBuffer) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+            mArrayBuffer = buffer;
+        }
+    }
+
+    /**
+     * Makes exactly the attribute arrays in the mask enabled, on the default vertex array
+     * object.  Locations must be below 32.
+     */
+    public void setEnabledAttributes(int mask) {
+        int changed = mAttributesKnown ? mEnabledAttributes ^ mask : ~0;
+        for (int location = 0; changed != 0 && location < 32; location++) {
+            int bit = 1 << location;
+            if ((changed & bit) != 0) {
+                if ((mask & bit) != 0) {
+                    GLES20.glEnableVertexAttribArray(location);
+                } else if (mAttributesKnown) {
+                    GLES20.glDisableVertexAttribArray(location);
+                }
+                changed &= ~bit;
+            }
+        }
+        mEnabledAttributes = mask;
+        mAttributesKnown = true;
+    }
+
+    /**
+     * Forgets the texture bindings, e.g. after creating a texture with plain GL calls.
+     */
+    public void invalidateTextures() {
+        mTexture2d = mTextureExternal = UNKNOWN;
+    }
+
+    /**
+     * Forgets the vertex array, buffer and attribute state.
+     */
+    public void invalidateVertexState() {
+        mVertexArray = mArrayBuffer = UNKNOWN;
+        mAttributesKnown = false;
+    }
+
+    /**
+     * Tells the tracker a program was deleted, since GL may reuse its name.
+     */
+    public void onProgramDeleted(int program) {
+        if (program == mProgram) {
+            mProgram = UNKNOWN;
+        }
+    }
+
+    /**
+     * Tells the tracker a texture was deleted, which unbinds it.
+     */
+    public void onTextureDeleted(int texture) {
+        if (texture == mTexture2d) {
+            mTexture2d = UNKNOWN;
+        }
+        if (texture == mTextureExternal) {
+            mTextureExternal = UNKNOWN;
+        }
+    }
+}
@@ -16,11 +16,14 @@
 
 package com.felix.glcamera.gles;
 
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import com.felix.glcamera.BuildConfig;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -40,6 +43,18 @@ public class GlUtil {
 
     private static final int SIZEOF_FLOAT = 4;
 
+    /** checkGlError() does nothing.  checkGlErrorAlways() still checks. */
+    public static final int VALIDATION_NONE = 0;
+    /** checkGlError() calls glGetError() once every SAMPLE_INTERVAL calls. */
+    public static final int VALIDATION_SAMPLED = 1;
+    /** checkGlError() calls glGetError() every time. */
+    public static final int VALIDATION_FULL = 2;
+    private static final int SAMPLE_INTERVAL = 64;
+
+    // glGetError() can stall the pipeline, so release builds only sample it.
+    private static volatile int sValidationLevel =
+            BuildConfig.DEBUG ? VALIDATION_FULL : VALIDATION_SAMPLED;
+    private static int sCheckCount;     // racy, but it only spreads the samples out
 
     private GlUtil() {}     // do not instantiate
 
@@ -59,14 +74,14 @@ public class GlUtil {
         }
 
         int program = GLES20.glCreateProgram();
-        checkGlError("glCreateProgram");
+        checkGlErrorAlways("glCreateProgram");
         if (program == 0) {
             Log.e(TAG, "Could not create program");
         }
         GLES20.glAttachShader(program, vertexShader);
-        checkGlError("glAttachShader");
+        checkGlErrorAlways("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
-        checkGlError("glAttachShader");
+        checkGlErrorAlways("glAttachShader");
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -86,7 +101,7 @@ public class GlUtil {
      */
     public static int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
-        checkGlError("glCreateShader type=" + shaderType);
+        checkGlErrorAlways("glCreateShader type=" + shaderType);
         GLES20.glShaderSource(shader, source);
         GLES20.glCompileShader(shader);
         int[] compiled = new int[1];
@@ -101,9 +116,33 @@ public class GlUtil {
     }
 
     /**
-     * Checks to see if a GLES error has been raised.
+     * Sets how much checking checkGlError() does: VALIDATION_NONE, VALIDATION_SAMPLED or
+     * VALIDATION_FULL.
+     */
+    public static void setValidationLevel(int level) {
+        sValidationLevel = level;
+    }
+
+    /**
+     * Checks to see if a GLES error has been raised, subject to the validation level.  When
+     * sampling, an error may have come from any GL call since the previous check.  For the
+     * calls made every frame; setup and allocation use checkGlErrorAlways().
      */
     public static void checkGlError(String op) {
+        int level = sValidationLevel;
+        if (level == VALIDATION_NONE
+                || (level == VALIDATION_SAMPLED && ++sCheckCount % SAMPLE_INTERVAL != 0)) {
+            return;
+        }
+        checkGlErrorAlways(op);
+    }
+
+    /**
+     * Checks to see if a GLES error has been raised, whatever the validation level.  For
+     * setup, allocation and readback, which are rare enough that glGetError() costs nothing
+     * and where an unnoticed failure would only show up much later.
+     */
+    public static void checkGlErrorAlways(String op) {
         int error = GLES20.glGetError();
         if (error != GLES20.GL_NO_ERROR) {
             String msg = op + ": glError 0x" + Integer.toHexString(error);
@@ -139,7 +178,7 @@ public class GlUtil {
 
         GLES20.glGenTextures(1, textureHandles, 0);
         textureHandle = textureHandles[0];
-        GlUtil.checkGlError("glGenTextures");
+        GlUtil.checkGlErrorAlways("glGenTextures");
 
         // Bind the texture handle to the 2D texture target.
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
@@ -150,16 +189,41 @@ public class GlUtil {
                 GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
-        GlUtil.checkGlError("loadImageTexture");
+        GlUtil.checkGlErrorAlways("loadImageTexture");
 
         // Load the data from the buffer into the texture handle.
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, /*level*/ 0, format,
                 width, height, /*border*/ 0, format, GLES20.GL_UNSIGNED_BYTE, data);
-        GlUtil.checkGlError("loadImageTexture");
+        GlUtil.checkGlErrorAlways("loadImageTexture");
+        GlState.get().invalidateTextures();
 
         return textureHandle;
     }
 
+    /**
+     * Creates a texture object for use with SurfaceTexture (GL_TEXTURE_EXTERNAL_OES).
+     */
+    public static int createExternalTexture() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        checkGlErrorAlways("glGenTextures");
+
+        int texId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
+        // Linear both ways: filters rely on it to merge taps into one fetch.
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        checkGlErrorAlways("glTexParameter");
+        GlState.get().invalidateTextures();
+        return texId;
+    }
+
     /**
      * Allocates a direct float buffer, and populates it with the float array data.
      */
@@ -173,6 +237,22 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Returns the major GLES version of the current context, parsed from GL_VERSION
+     * ("OpenGL ES N.M ...").  Works in GLES 2 contexts, where GL_MAJOR_VERSION doesn't exist.
+     */
+    public static int getGlesMajorVersion() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        final String prefix = "OpenGL ES ";
+        if (version != null && version.startsWith(prefix) && version.length() > prefix.length()) {
+            int major = Character.digit(version.charAt(prefix.length()), 10);
+            if (major > 0) {
+                return major;
+            }
+        }
+        return 2;
+    }
+
     /**
      * Writes GL version info to the log.
      */
@@ -0,0 +1,242 @@
+package com.felix.glcamera.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads textures back to the CPU without stalling the GL thread, for snapshots and
+ * thumbnails taken while the preview (and a recording) carries on.
+ * <p>
+ * Each read first draws the texture into a scratch framebuffer at the size wanted, so
+ * downscaling happens on the GPU and only the pixels that are needed cross the bus.  That
+ * pass also flips the image, so rows come back top to bottom.  On GLES 3, glReadPixels then
+ * goes into one of a ring of pixel-pack buffers and returns at once; poll(), called once a
+ * frame, maps the buffer when its fence says the copy is done, which is usually a frame
+ * later.  On GLES 2 the read is synchronous.
+ * <p>
+ * The pixels are copied into a direct buffer from getBufferPool() and handed to the
+ * callback, which gives the buffer back once it's done with it, typically from a background
+ * encoder.  Must be used on the thread whose EGL context was current at creation.
+ */
+public class PixelReader {
+    private static final String TAG = "PixelReader";
+    private static final int SLOT_COUNT = 2;
+
+    /**
+     * Receives the pixels of a read.
+     */
+    public interface Callback {
+        /**
+         * Called on the GL thread.
+         *
+         * @param rgba Tightly packed RGBA rows, top row first, from getBufferPool().  Give it
+         *             back with DirectBufferPool.release() when done.
+         */
+        void onPixelsRead(ByteBuffer rgba, int width, int height);
+    }
+
+    /**
+     * One pixel-pack buffer and the read in flight in it.
+     */
+    private static class Slot {
+        int mBufferId;
+        int mCapacity;
+        long mFence;                // 0 when the slot is free
+        int mWidth;
+        int mHeight;
+        Callback mCallback;
+    }
+
+    private final boolean mUsePbo;
+    private final Slot[] mSlots;
+    private final DirectBufferPool mBufferPool = new DirectBufferPool(SLOT_COUNT + 1);
+    private final float[] mFlipMatrix = new float[16];
+    private int mNextSlot;          // oldest read in flight, if any
+    private FullFrameRect mBlit;
+    private FrameBuffer mScratch;
+
+    public PixelReader() {
+        mUsePbo = GlUtil.getGlesMajorVersion() >= 3;
+        mSlots = new Slot[mUsePbo ? SLOT_COUNT : 0];
+        if (mUsePbo) {
+            int[] ids = new int[SLOT_COUNT];
+            GLES30.glGenBuffers(SLOT_COUNT, ids, 0);
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                mSlots[i] = new Slot();
+                mSlots[i].mBufferId = ids[i];
+            }
+        }
+        Matrix.setIdentityM(mFlipMatrix, 0);
+        Matrix.translateM(mFlipMatrix, 0, 0f, 1f, 0f);
+        Matrix.scaleM(mFlipMatrix, 0, 1f, -1f, 1f);
+        mBlit = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        Log.d(TAG, "reading back with " + (mUsePbo ? SLOT_COUNT + " PBOs" : "glReadPixels"));
+    }
+
+    /**
+     * Returns the pool the callbacks' buffers come from.
+     */
+    public DirectBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Returns true if read() has room to start another read now.
+     */
+    public boolean hasFreeSlot() {
+        return !mUsePbo || countInFlight() < SLOT_COUNT;
+    }
+
+    /**
+     * Starts reading a GL_TEXTURE_2D texture back at the given size.  Changes the
+     * framebuffer binding and viewport; the caller restores its own.  Returns false if the
+     * reads already in flight leave no room for another, in which case try again next frame.
+     *
+     * @param textureId Texture to read, drawn upright (as it would be to the screen).
+     */
+    public boolean read(int textureId, int width, int height, Callback callback) {
+        if (!hasFreeSlot()) {
+            return false;
+        }
+        Slot slot = mUsePbo ? mSlots[(mNextSlot + countInFlight()) % SLOT_COUNT] : null;
+        drawScaled(textureId, width, height);
+        int size = width * height * 4;
+        if (!mUsePbo) {
+            ByteBuffer pixels = mBufferPool.acquire(size);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    pixels);
+            FrameBuffer.unbind();
+            GlUtil.checkGlErrorAlways("glReadPixels");
+            callback.onPixelsRead(pixels, width, height);
+            return true;
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBufferId);
+        if (slot.mCapacity < size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            slot.mCapacity = size;
+        }
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        FrameBuffer.unbind();
+        GlUtil.checkGlErrorAlways("glReadPixels to PBO");
+        slot.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.mWidth = width;
+        slot.mHeight = height;
+        slot.mCallback = callback;
+        return true;
+    }
+
+    /**
+     * Delivers the reads that have finished, oldest first.  Call once a frame.
+     */
+    public void poll() {
+        deliverFinished(0);
+    }
+
+    /**
+     * Waits for the reads in flight, up to a time limit each, and delivers them.  For when
+     * there won't be a next frame to poll() on.
+     */
+    public void finish(long timeoutNanos) {
+        deliverFinished(timeoutNanos);
+    }
+
+    private void deliverFinished(long timeoutNanos) {
+        while (mUsePbo && countInFlight() > 0) {
+            Slot slot = mSlots[mNextSlot];
+            int status = GLES30.glClientWaitSync(slot.mFence,
+                    GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNanos);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                return;     // still copying; look again next frame
+            }
+            GLES30.glDeleteSync(slot.mFence);
+            slot.mFence = 0;
+            mNextSlot = (mNextSlot + 1) % SLOT_COUNT;
+            Callback callback = slot.mCallback;
+            slot.mCallback = null;
+            if (status == GLES30.GL_WAIT_FAILED) {
+                Log.w(TAG, "glClientWaitSync failed, read dropped");
+                continue;
+            }
+            deliver(slot, callback);
+        }
+    }
+
+    /**
+     * Releases the GL objects.  Reads in flight are dropped.  Pass false if the EGL context
+     * is about to be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        for (Slot slot : mSlots) {
+            if (doEglCleanup) {
+                if (slot.mFence != 0) {
+                    GLES30.glDeleteSync(slot.mFence);
+                }
+                GLES30.glDeleteBuffers(1, new int[] {slot.mBufferId}, 0);
+            }
+            slot.mFence = 0;
+            slot.mCallback = null;
+        }
+        if (mScratch != null) {
+            mScratch.release(doEglCleanup);
+            mScratch = null;
+        }
+        if (mBlit != null) {
+            mBlit.release(doEglCleanup);
+            mBlit = null;
+        }
+    }
+
+    private int countInFlight() {
+        int count = 0;
+        for (Slot slot : mSlots) {
+            if (slot.mFence != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Draws the texture, scaled and flipped, into the scratch framebuffer, and leaves that
+     * bound for reading.
+     */
+    private void drawScaled(int textureId, int width, int height) {
+        if (mScratch == null || mScratch.getWidth() != width || mScratch.getHeight() != height) {
+            if (mScratch != null) {
+                mScratch.release(true);
+            }
+            mScratch = new FrameBuffer(width, height);
+        }
+        mScratch.bind();
+        mBlit.drawFrame(textureId, mFlipMatrix);
+    }
+
+    private void deliver(Slot slot, Callback callback) {
+        int size = slot.mWidth * slot.mHeight * 4;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBufferId);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                size, GLES30.GL_MAP_READ_BIT);
+        ByteBuffer pixels = null;
+        if (mapped != null) {
+            pixels = mBufferPool.acquire(size);
+            pixels.put(mapped);
+            pixels.flip();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        if (pixels == null) {
+            // Take the error here, so a later check doesn't blame something else for it.
+            Log.w(TAG, "glMapBufferRange failed, glError 0x"
+                    + Integer.toHexString(GLES20.glGetError()) + "; read dropped");
+            return;
+        }
+        GlUtil.checkGlErrorAlways("glMapBufferRange");
+        callback.onPixelsRead(pixels, slot.mWidth, slot.mHeight);
+    }
+}
@@ -0,0 +1,332 @@
+package com.felix.glcamera.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of linked GL programs, keyed by shader source.
+ * <p>
+ * Programs belong to a share group, not a context, so the preview context and the encoder
+ * contexts that share with it all get the same program for the same source.  Programs are
+ * reference counted; ones nobody uses any more are kept around (up to MAX_IDLE of them) so
+ * switching back to a recent filter doesn't recompile.  Note that uniform values are part
+ * of the program, so two threads drawing with one program at once must set the same values;
+ * a thread that sets its own should acquire with a scope, which gets it a separate program.
+ * <p>
+ * In GLES 3 contexts, linked binaries are also saved to disk with glGetProgramBinary(), and
+ * loaded back with glProgramBinary() on later launches, which skips compilation entirely.
+ * The file name covers the GL renderer and version strings, so a driver update makes the
+ * old binaries miss rather than fail.  If a binary is rejected anyway, the program is
+ * compiled from source and the binary rewritten.
+ * <p>
+ * When the share group goes away (the preview's EGL context is destroyed), call
+ * onContextLost() before creating programs in the new one.
+ */
+public final class ProgramCache {
+    private static final String TAG = "ProgramCache";
+
+    private static final int MAX_IDLE = 16;
+    private static final int BINARY_MAGIC = 0x47504231;     // "GPB1"
+
+    private static final ProgramCache sInstance = new ProgramCache();
+
+    private static class Entry {
+        final String mKey;
+        final int mProgram;
+        final UniformOwner mUniformOwner = new UniformOwner();
+        int mRefCount;
+
+        Entry(String key, int program) {
+            mKey = key;
+            mProgram = program;
+        }
+    }
+
+    // All guarded by "this".
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final SparseArray<Entry> mEntriesByProgram = new SparseArray<Entry>();
+    private final ArrayList<Entry> mIdle = new ArrayList<Entry>();     // oldest first
+    private int mGeneration;
+    private File mBinaryDir;
+    private ExecutorService mWriter;
+
+    private ProgramCache() {}
+
+    public static ProgramCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets where program binaries are kept.  Until this is called nothing is persisted.
+     */
+    public synchronized void setBinaryDirectory(File dir) {
+        mBinaryDir = dir;
+    }
+
+    /**
+     * Returns the current share group generation.  Pass it back to release().
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns a linked program for the sources, creating it in the current context if it
+     * isn't cached.  Returns 0 on failure.
+     */
+    public synchronized int acquire(String vertexSource, String fragmentSource) {
+        return acquire(vertexSource, fragmentSource, null);
+    }
+
+    /**
+     * Like acquire(String, String), but the program is only shared with callers passing the
+     * same scope, so its uniforms aren't changed by other users of the source.
+     */
+    public synchronized int acquire(String vertexSource, String fragmentSource,
+            String scope) {
+        String source = vertexSource + '\0' + fragmentSource;
+        String key = scope == null ? source : source + '\0' + scope;
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (entry.mRefCount++ == 0) {
+                mIdle.remove(entry);
+            }
+            return entry.mProgram;
+        }
+
+        long startMs = SystemClock.elapsedRealtime();
+        boolean useBinaries = mBinaryDir != null && supportsProgramBinaries();
+        File binaryFile = useBinaries ? getBinaryFile(source) : null;
+        int program = useBinaries ? loadBinary(binaryFile) : 0;
+        boolean fromBinary = program != 0;
+        if (!fromBinary) {
+            program = GlUtil.createProgram(vertexSource, fragmentSource);
+            if (program == 0) {
+                return 0;
+            }
+            if (useBinaries) {
+                saveBinary(program, binaryFile);
+            }
+        }
+        // Make sure the other contexts in the share group see a finished program.
+        GLES20.glFlush();
+        Log.d(TAG, (fromBinary ? "loaded" : "compiled") + " program " + program + " in "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+
+        entry = new Entry(key, program);
+        entry.mRefCount = 1;
+        mEntries.put(key, entry);
+        mEntriesByProgram.put(program, entry);
+        return program;
+    }
+
+    /**
+     * Returns the tracker for who last set the program's uniforms, shared by everyone who
+     * acquired it.  Look it up once, after acquire(), not per draw.
+     */
+    public synchronized UniformOwner getUniformOwner(int program) {
+        Entry entry = mEntriesByProgram.get(program);
+        return entry != null ? entry.mUniformOwner : new UniformOwner();
+    }
+
+    /**
+     * Drops a reference to a program from acquire().  The appropriate EGL context must be
+     * current.
+     *
+     * @param generation The value getGeneration() returned before the program was acquired.
+     */
+    public synchronized void release(int program, int generation) {
+        if (generation != mGeneration) {
+            // The share group it lived in is gone, or going; nothing to do.
+            return;
+        }
+        Entry entry = mEntriesByProgram.get(program);
+        if (entry == null) {
+            GLES20.glDeleteProgram(program);
+            GlState.get().onProgramDeleted(program);
+            return;
+        }
+        if (--entry.mRefCount > 0) {
+            return;
+        }
+        mIdle.add(entry);
+        while (mIdle.size() > MAX_IDLE) {
+            Entry oldest = mIdle.remove(0);
+            mEntries.remove(oldest.mKey);
+            mEntriesByProgram.remove(oldest.mProgram);
+            Log.d(TAG, "deleting program " + oldest.mProgram);
+            GLES20.glDeleteProgram(oldest.mProgram);
+            GlState.get().onProgramDeleted(oldest.mProgram);
+        }
+    }
+
+    /**
+     * Forgets every program, without making GL calls.  Call when the share group has been
+     * destroyed; references from before are ignored by release() afterwards.
+     */
+    public synchronized void onContextLost() {
+        mGeneration++;
+        mEntries.clear();
+        mEntriesByProgram.clear();
+        mIdle.clear();
+    }
+
+    private static boolean supportsProgramBinaries() {
+        if (GlUtil.getGlesMajorVersion() < 3) {
+            return false;
+        }
+        int[] values = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, values, 0);
+        return values[0] > 0;
+    }
+
+    /**
+     * Returns the file for the program, named by a hash of the sources and the driver.
+     */
+    private File getBinaryFile(String key) {
+        String driver = GLES20.glGetString(GLES20.GL_RENDERER) + '\0'
+                + GLES20.glGetString(GLES20.GL_VERSION);
+        long hash = fnv1a64(fnv1a64(0xcbf29ce484222325L, driver), key);
+        return new File(mBinaryDir, Long.toHexString(hash) + ".bin");
+    }
+
+    private static long fnv1a64(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Creates a program from a saved binary.  Returns 0 if there isn't one or the driver
+     * won't take it.
+     */
+    private static int loadBinary(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int format;
+        byte[] data;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            format = in.readInt();
+            data = new byte[in.readInt()];
+            in.readFully(data);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read " + file, ioe);
+            file.delete();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+        binary.put(data).position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, data.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.w(TAG, "program binary rejected, recompiling");
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Saves the program's binary.  The binary is read here, and written on a background
+     * thread.
+     */
+    private void saveBinary(int program, final File file) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length, values, 0, format, 0, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        final int binaryFormat = format[0];
+        final byte[] data = new byte[values[0]];
+        binary.position(0);
+        binary.get(data);
+
+        if (mWriter == null) {
+            mWriter = Executors.newSingleThreadExecutor();
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeBinary(file, binaryFormat, data);
+            }
+        });
+    }
+
+    private static void writeBinary(File file, int format, byte[] data) {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "unable to create " + dir);
+            return;
+        }
+        // Write to a temporary file first, so a crash can't leave a truncated binary.
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(format);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to write " + file, ioe);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * GL program and supporting functions for textured 2D shapes.
@@ -111,6 +112,8 @@ public class Texture2dProgram {
 
     // Handles to the GL program and various components of it.
     private int mProgramHandle;
+    private int mCacheGeneration;
+    private String mCacheScope;         // null to share the program with everyone
     private int muMVPMatrixLoc;
     private int muTexMatrixLoc;
     private int muKernelLoc;
@@ -124,29 +127,64 @@ public class Texture2dProgram {
     private float[] mKernel = new float[KERNEL_SIZE];
     private float[] mTexOffset;
     private float mColorAdjust;
+    private boolean mKernelDirty;       // kernel uniforms changed since the last upload
+
+    // What the matrix uniforms were last set to, so unchanged ones aren't uploaded again.
+    private final float[] mLastMvpMatrix = new float[16];
+    private final float[] mLastTexMatrix = new float[16];
+    private boolean mUniformsLost = true;   // the program's uniforms may not be ours
+    private UniformOwner mUniformOwner;     // shared with the program's other users
 
 
+    /**
+     * Prepares a program with a caller-supplied fragment shader in the current EGL context.
+     * The shader is used with the standard vertex shader, so it gets vTextureCoord, and
+     * must sample the texture through "sTexture".
+     *
+     * @param textureTarget GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES.
+     */
+    public Texture2dProgram(int textureTarget, String fragmentShader) {
+        mProgramType = null;
+        mTextureTarget = textureTarget;
+        mProgramHandle = acquireProgram(fragmentShader);
+        if (mProgramHandle == 0) {
+            throw new RuntimeException("Unable to create program");
+        }
+        Log.d(TAG, "Created program " + mProgramHandle + " (custom)");
+        getLocations();
+    }
+
     /**
      * Prepares the program in the current EGL context.
      */
     public Texture2dProgram(ProgramType programType) {
+        this(programType, null);
+    }
+
+    /**
+     * Prepares the program in the current EGL context, sharing it only with programs of the
+     * same cache scope.  For a thread whose uniforms differ from those of other threads
+     * drawing at the same time.
+     */
+    public Texture2dProgram(ProgramType programType, String cacheScope) {
         mProgramType = programType;
+        mCacheScope = cacheScope;
         switch (programType) {
             case TEXTURE_2D:
                 mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+                mProgramHandle = acquireProgram(FRAGMENT_SHADER_2D);
                 break;
             case TEXTURE_EXT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
+                mProgramHandle = acquireProgram(FRAGMENT_SHADER_EXT);
                 break;
             case TEXTURE_EXT_BW:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW);
+                mProgramHandle = acquireProgram(FRAGMENT_SHADER_EXT_BW);
                 break;
             case TEXTURE_EXT_FILT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
+                mProgramHandle = acquireProgram(FRAGMENT_SHADER_EXT_FILT);
                 break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
@@ -155,9 +193,25 @@ public class Texture2dProgram {
             throw new RuntimeException("Unable to create program");
         }
         Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
+        getLocations();
+    }
 
-        // get locations of attributes and uniforms
+    /**
+     * Gets a program for the fragment shader from the ProgramCache, which shares it with
+     * every other user of the same source in this share group.
+     */
+    private int acquireProgram(String fragmentShader) {
+        ProgramCache cache = ProgramCache.getInstance();
+        mCacheGeneration = cache.getGeneration();
+        int program = cache.acquire(VERTEX_SHADER, fragmentShader, mCacheScope);
+        mUniformOwner = cache.getUniformOwner(program);
+        return program;
+    }
 
+    /**
+     * Gets locations of attributes and uniforms.
+     */
+    private void getLocations() {
         maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
         GlUtil.checkLocation(maPositionLoc, "aPosition");
         maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
@@ -186,24 +240,34 @@ public class Texture2dProgram {
     }
 
     /**
-     * Releases the program.
+     * Releases the program.  It stays in the ProgramCache for a while, in case it's wanted
+     * again.
      * <p>
      * The appropriate EGL context must be current (i.e. the one that was used to create
      * the program).
      */
     public void release() {
-        Log.d(TAG, "deleting program " + mProgramHandle);
-        GLES20.glDeleteProgram(mProgramHandle);
+        Log.d(TAG, "releasing program " + mProgramHandle);
+        ProgramCache.getInstance().release(mProgramHandle, mCacheGeneration);
         mProgramHandle = -1;
+        mUniformsLost = true;
     }
 
     /**
-     * Returns the program type.
+     * Returns the program type, or null for a program with a custom fragment shader.
      */
     public ProgramType getProgramType() {
         return mProgramType;
     }
 
+    /**
+     * Returns the GL program handle, e.g. for setting additional uniforms.  Uniform values
+     * stick with the program, so they can be set any time before draw().
+     */
+    public int getProgramHandle() {
+        return mProgramHandle;
+    }
+
     /**
      * Creates a texture object suitable for use with this program.
      * <p>
@@ -212,11 +276,11 @@ public class Texture2dProgram {
     public int createTextureObject() {
         int[] textures = new int[1];
         GLES20.glGenTextures(1, textures, 0);
-        GlUtil.checkGlError("glGenTextures");
+        GlUtil.checkGlErrorAlways("glGenTextures");
 
         int texId = textures[0];
         GLES20.glBindTexture(mTextureTarget, texId);
-        GlUtil.checkGlError("glBindTexture " + texId);
+        GlUtil.checkGlErrorAlways("glBindTexture " + texId);
 
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
@@ -226,7 +290,8 @@ public class Texture2dProgram {
                 GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
                 GLES20.GL_CLAMP_TO_EDGE);
-        GlUtil.checkGlError("glTexParameter");
+        GlUtil.checkGlErrorAlways("glTexParameter");
+        GlState.get().invalidateTextures();
 
         return texId;
     }
@@ -243,6 +308,7 @@ public class Texture2dProgram {
         }
         System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
         mColorAdjust = colorAdj;
+        mKernelDirty = true;
         //Log.d(TAG, "filt kernel: " + Arrays.toString(mKernel) + ", adj=" + colorAdj);
     }
 
@@ -259,11 +325,67 @@ public class Texture2dProgram {
             -rw, 0f,    0f, 0f,     rw, 0f,
             -rw, rh,    0f, rh,     rw, rh
         };
+        mKernelDirty = true;
         //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Makes the program current.  Call before setting extra uniforms on it.
+     *
+     * @return True if the uniforms may have been changed by another user of the program,
+     *         so extra uniforms have to be set again.
+     */
+    public boolean use() {
+        GlState.get().useProgram(mProgramHandle);
+        if (mUniformOwner.claim(this)) {
+            mUniformsLost = true;
+        }
+        return mUniformsLost;
+    }
+
+    /**
+     * Issues the draw call with the context's copy of the drawable's geometry, from
+     * GlState.  State that is already set, including uniforms that haven't changed, is left
+     * alone, and nothing is unbound afterwards.
+     */
+    public void draw(float[] mvpMatrix, Drawable2d drawable, float[] texMatrix, int textureId) {
+        GlState state = GlState.get();
+        use();
+        state.bindTexture(mTextureTarget, textureId);
+        if (mUniformsLost || !Arrays.equals(mvpMatrix, mLastMvpMatrix)) {
+            GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+            System.arraycopy(mvpMatrix, 0, mLastMvpMatrix, 0, 16);
+        }
+        if (mUniformsLost || !Arrays.equals(texMatrix, mLastTexMatrix)) {
+            GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+            System.arraycopy(texMatrix, 0, mLastTexMatrix, 0, 16);
+        }
+        if (muKernelLoc >= 0 && (mUniformsLost || mKernelDirty)) {
+            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
+            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
+            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            mKernelDirty = false;
+        }
+        mUniformsLost = false;
+
+        int vertexArray = state.getPrefabVertexArray(drawable, maPositionLoc, maTextureCoordLoc);
+        if (vertexArray > 0) {
+            state.bindVertexArray(vertexArray);
+        } else {
+            // The pointers below go into whatever vertex array is bound.
+            state.bindVertexArray(0);
+            state.bindArrayBuffer(state.getPrefabBuffer(drawable));
+            state.setEnabledAttributes((1 << maPositionLoc) | (1 << maTextureCoordLoc));
+            drawable.setAttributePointers(maPositionLoc, maTextureCoordLoc);
+        }
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, drawable.getVertexCount());
+        GlUtil.checkGlError("draw");
+    }
+
+    /**
+     * Issues the draw call with client-side geometry.  Does the full setup on every call,
+     * and undoes it afterwards.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param vertexBuffer Buffer with vertex position data.
@@ -298,6 +420,11 @@ public class Texture2dProgram {
         GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
         GlUtil.checkGlError("glUniformMatrix4fv");
 
+        // Client-side pointers need the default vertex array and no buffer bound.
+        GlState state = GlState.get();
+        state.bindVertexArray(0);
+        state.bindArrayBuffer(0);
+
         // Enable the "aPosition" vertex attribute.
         GLES20.glEnableVertexAttribArray(maPositionLoc);
         GlUtil.checkGlError("glEnableVertexAttribArray");
@@ -332,5 +459,9 @@ public class Texture2dProgram {
         GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
         GLES20.glBindTexture(mTextureTarget, 0);
         GLES20.glUseProgram(0);
+        // All of the above bypassed the tracker.  The uniforms are ours, though.
+        state.reset();
+        mUniformOwner.claim(this);
+        mUniformsLost = true;
     }
 }
@@ -0,0 +1,25 @@
+package com.felix.glcamera.gles;
+
+/**
+ * Records which object last set a program's uniforms.  Uniform values live in the program,
+ * which every context in the share group shares, so there's one of these per program (see
+ * ProgramCache.getUniformOwner()) rather than per context.
+ * <p>
+ * Claiming is a volatile read, and a write only when the owner changes, so it costs next
+ * to nothing per draw.
+ */
+public final class UniformOwner {
+    private volatile Object mOwner;
+
+    /**
+     * Makes the object the owner.  Returns true if it wasn't already, meaning the uniforms
+     * have to be set again.
+     */
+    public boolean claim(Object owner) {
+        if (mOwner == owner) {
+            return false;
+        }
+        mOwner = owner;
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+package com.felix.glcamera;
+
+import com.felix.glcamera.gles.FrameBuffer;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the path TextureMovieEncoder#frameAvailable() takes to the encoder
+ * thread's drain.  The GL and Looper parts are replaced by a callback that counts.
+ */
+public class FrameHandoffTest {
+    private static final int FRAMES = 10000;
+
+    private static class CountingCallback implements FrameHandoff.Callback {
+        int handOffs;
+        int wakeups;
+        boolean drainScheduled;
+        long checksum;
+
+        @Override
+        public void onHandOff(FrameBuffer frameBuffer) {
+            handOffs++;
+        }
+
+        @Override
+        public void scheduleDrain() {
+            wakeups++;
+            drainScheduled = true;
+        }
+
+        @Override
+        public void onFrame(FrameRing.Slot slot) {
+            checksum += slot.timestampNanos + (long) slot.transform[0];
+        }
+    }
+
+    @Test
+    public void offerAndDrain_doesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue("allocation counting unsupported",
+                threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        CountingCallback callback = new CountingCallback();
+        FrameHandoff handoff = new FrameHandoff(4, callback);
+        float[] transform = new float[16];
+
+        // Warm up so class loading and the first calls into the bean aren't counted.
+        simulateFrames(handoff, callback, transform);
+        threadBean.getThreadAllocatedBytes(threadId);
+        callback.checksum = 0;
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        simulateFrames(handoff, callback, transform);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Each frame contributes its timestamp twice: once as is, once through the transform.
+        assertEquals((long) FRAMES * (FRAMES - 1), callback.checksum);
+        assertEquals(0, handoff.getDroppedCount());
+        // Less than one byte per frame: anything allocated per frame would be far above this.
+        assertTrue("allocated " + allocated + " bytes over " + FRAMES + " frames",
+                allocated < FRAMES);
+    }
+
+    /**
+     * Plays the GL thread and the encoder thread on one thread.  The encoder side drains
+     * only when woken, every other frame, so some drains see two frames.
+     */
+    private static void simulateFrames(FrameHandoff handoff, CountingCallback callback,
+            float[] transform) {
+        for (int i = 0; i < FRAMES; i++) {
+            transform[0] = i;
+            assertTrue(handoff.offer(null, 1, transform, i));
+            if (callback.drainScheduled && (i & 1) == 1) {
+                callback.drainScheduled = false;
+                handoff.drain();
+            }
+        }
+        if (callback.drainScheduled) {
+            callback.drainScheduled = false;
+            handoff.drain();
+        }
+    }
+
+    @Test
+    public void busyRing_wakesConsumerOnce() {
+        CountingCallback callback = new CountingCallback();
+        FrameHandoff handoff = new FrameHandoff(4, callback);
+        float[] transform = new float[16];
+
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(handoff.offer(null, 1, transform, i));
+        }
+        assertEquals(3, callback.handOffs);
+        assertEquals(1, callback.wakeups);
+
+        handoff.drain();
+        assertEquals(6, callback.checksum);
+        assertTrue(handoff.offer(null, 1, transform, 4));
+        assertEquals(2, callback.wakeups);
+    }
+
+    @Test
+    public void fullRing_dropsWithoutHandingOff() {
+        CountingCallback callback = new CountingCallback();
+        FrameHandoff handoff = new FrameHandoff(2, callback);
+        float[] transform = new float[16];
+
+        assertTrue(handoff.offer(null, 1, transform, 1));
+        assertTrue(handoff.offer(null, 1, transform, 2));
+        assertFalse(handoff.offer(null, 1, transform, 3));
+        assertEquals(2, callback.handOffs);
+        assertEquals(1, handoff.getDroppedCount());
+    }
+}
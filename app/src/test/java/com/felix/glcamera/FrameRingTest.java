@@ -0,0 +1,125 @@
+package com.felix.glcamera;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the GL thread to encoder thread frame handoff.
+ */
+public class FrameRingTest {
+    private static final int FRAMES = 10000;
+
+    @Test
+    public void frameHandoff_doesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue("allocation counting unsupported", threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        FrameRing ring = new FrameRing(4);
+        float[] transform = new float[16];
+        float[] sink = new float[16];
+
+        // Warm up so class loading and the first calls into the bean aren't counted.
+        simulateFrames(ring, transform, sink, FRAMES);
+        threadBean.getThreadAllocatedBytes(threadId);
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long checksum = simulateFrames(ring, transform, sink, FRAMES);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals((long) FRAMES * (FRAMES - 1) / 2, checksum);
+        // Less than one byte per frame: anything allocated per frame would be far above this.
+        assertTrue("allocated " + allocated + " bytes over " + FRAMES + " frames",
+                allocated < FRAMES);
+    }
+
+    /**
+     * Plays producer and consumer on one thread, the way frameAvailable() and the encoder
+     * thread touch the ring.  Returns the sum of the timestamps seen by the consumer.
+     */
+    private static long simulateFrames(FrameRing ring, float[] transform, float[] sink, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            transform[0] = i;
+            FrameRing.Slot slot = ring.acquire();
+            System.arraycopy(transform, 0, slot.transform, 0, transform.length);
+            slot.timestampNanos = i;
+            slot.textureId = 1;
+            ring.publish();
+
+            FrameRing.Slot out = ring.peek();
+            System.arraycopy(out.transform, 0, sink, 0, sink.length);
+            checksum += out.timestampNanos;
+            ring.release();
+        }
+        return checksum;
+    }
+
+    @Test
+    public void fullRing_dropsInsteadOfOverwriting() {
+        FrameRing ring = new FrameRing(2);
+        for (int i = 0; i < 3; i++) {
+            FrameRing.Slot slot = ring.acquire();
+            if (slot != null) {
+                slot.timestampNanos = i;
+                ring.publish();
+            }
+        }
+        assertEquals(2, ring.size());
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(0L, ring.peek().timestampNanos);
+        ring.release();
+        assertEquals(1L, ring.peek().timestampNanos);
+        ring.release();
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void crossThreadHandoff_preservesOrder() throws Exception {
+        final FrameRing ring = new FrameRing(4);
+        final long[] lastSeen = {-1};
+        final boolean[] inOrder = {true};
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (lastSeen[0] < FRAMES - 1) {
+                    FrameRing.Slot slot = ring.peek();
+                    if (slot == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (slot.timestampNanos != lastSeen[0] + 1
+                            || slot.transform[0] != slot.timestampNanos) {
+                        inOrder[0] = false;
+                    }
+                    lastSeen[0] = slot.timestampNanos;
+                    ring.release();
+                }
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < FRAMES; ) {
+            FrameRing.Slot slot = ring.acquire();
+            if (slot == null) {
+                Thread.yield();
+                continue;
+            }
+            slot.transform[0] = i;
+            slot.timestampNanos = i;
+            ring.publish();
+            i++;
+        }
+        consumer.join(10000);
+
+        assertFalse(consumer.isAlive());
+        assertTrue(inOrder[0]);
+        assertEquals((long) FRAMES - 1, lastSeen[0]);
+    }
+}
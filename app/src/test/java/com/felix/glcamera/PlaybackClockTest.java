@@ -0,0 +1,39 @@
+package com.felix.glcamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for playback frame pacing.
+ */
+public class PlaybackClockTest {
+    private static final long MS = 1000000;     // nanoseconds
+
+    @Test
+    public void firstFrame_isShownAtOnce() {
+        PlaybackClock clock = new PlaybackClock();
+        assertEquals(0, clock.getDelayNanos(5000000, 123 * MS));
+    }
+
+    @Test
+    public void laterFrames_followTheirTimestamps() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.getDelayNanos(0, 1000 * MS);
+        // Decoded 10ms after the first, due at 33ms.
+        assertEquals(23 * MS, clock.getDelayNanos(33000, 1010 * MS));
+        // Decoded late: due in the past, so shown at once.
+        assertTrue(clock.getDelayNanos(66000, 1070 * MS) < 0);
+        // The clock doesn't slip because of a late frame.
+        assertEquals(10 * MS, clock.getDelayNanos(100000, 1090 * MS));
+    }
+
+    @Test
+    public void reset_reanchorsOnNextFrame() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.getDelayNanos(0, 0);
+        clock.reset();
+        assertEquals(0, clock.getDelayNanos(500000, 40 * MS));
+        assertEquals(33 * MS, clock.getDelayNanos(533000, 40 * MS));
+    }
+}
@@ -0,0 +1,77 @@
+package com.felix.glcamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the recording metadata and its sidecar file.
+ */
+public class VideoMetadataTest {
+
+    @Test
+    public void samples_giveDurationAndBitRate() {
+        VideoMetadata metadata = new VideoMetadata(1280, 720);
+        // One second at 10fps, 12500 bytes a frame, B-frames out of order.
+        long[] pts = {0, 200000, 100000, 400000, 300000, 600000, 500000, 800000, 700000, 900000};
+        for (int i = 0; i < pts.length; i++) {
+            metadata.addSample(pts[i], 12500, i % 5 == 0);
+        }
+        assertEquals(10, metadata.getFrameCount());
+        assertEquals(2, metadata.getKeyFrameCount());
+        assertEquals(0, metadata.getFirstPtsUs());
+        assertEquals(900000, metadata.getLastPtsUs());
+        assertEquals(1000000, metadata.getDurationUs());
+        assertEquals(1000000, metadata.getBitRate());
+    }
+
+    @Test
+    public void noSamples_haveNoDuration() {
+        VideoMetadata metadata = new VideoMetadata(640, 480);
+        assertEquals(0, metadata.getDurationUs());
+        assertEquals(0, metadata.getBitRate());
+        assertEquals(-1, metadata.getFirstPtsUs());
+    }
+
+    @Test
+    public void sidecar_roundTrips() throws Exception {
+        File video = File.createTempFile("video", ".mp4");
+        File sidecar = VideoMetadata.getSidecarFile(video);
+        try {
+            VideoMetadata metadata = new VideoMetadata(1920, 1080);
+            metadata.addSample(1000, 50000, true);
+            metadata.addSample(34333, 9000, false);
+            metadata.writeTo(sidecar);
+
+            VideoMetadata read = VideoMetadata.readFrom(sidecar);
+            assertNotNull(read);
+            assertEquals(1920, read.getWidth());
+            assertEquals(1080, read.getHeight());
+            assertEquals(2, read.getFrameCount());
+            assertEquals(1, read.getKeyFrameCount());
+            assertEquals(1000, read.getFirstPtsUs());
+            assertEquals(34333, read.getLastPtsUs());
+            assertEquals(metadata.getBitRate(), read.getBitRate());
+        } finally {
+            sidecar.delete();
+            video.delete();
+        }
+    }
+
+    @Test
+    public void sidecar_missingOrForeign_readsAsNull() throws Exception {
+        File file = File.createTempFile("video", ".meta");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[] {'n', 'o', 'p', 'e', 0, 0, 0, 1});
+            out.close();
+            assertNull(VideoMetadata.readFrom(file));
+        } finally {
+            file.delete();
+        }
+        assertNull(VideoMetadata.readFrom(file));
+    }
+}
@@ -0,0 +1,148 @@
+package com.felix.glcamera.camera;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the preview frame analysis pool.
+ */
+public class FrameAnalysisPoolTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAMES = 10000;
+
+    @Test
+    public void submit_doesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue("allocation counting unsupported", threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        FrameAnalysisPool pool = new FrameAnalysisPool(new FrameAnalyzer() {
+            @Override
+            public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+                nv21[0]++;
+            }
+        }, 2);
+        FreeList freeList = new FreeList();
+        pool.start(WIDTH, HEIGHT, freeList);
+
+        // Warm up so class loading and the first calls into the bean aren't counted.
+        simulateFrames(pool, freeList, FRAMES);
+        threadBean.getThreadAllocatedBytes(threadId);
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        simulateFrames(pool, freeList, FRAMES);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        pool.release();
+
+        assertEquals(2L * FRAMES, pool.getAnalyzedCount() + pool.getDroppedCount());
+        // Less than one byte per frame: anything allocated per frame would be far above this.
+        assertTrue("allocated " + allocated + " bytes over " + FRAMES + " frames",
+                allocated < FRAMES);
+    }
+
+    /**
+     * Plays the camera: takes a free buffer, fills it in and submits it.
+     */
+    private static void simulateFrames(FrameAnalysisPool pool, FreeList freeList, int count)
+            throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            byte[] buffer = freeList.poll(1, TimeUnit.SECONDS);
+            assertNotNull("buffer never came back", buffer);
+            buffer[1] = (byte) i;
+            pool.submit(buffer, i);
+        }
+    }
+
+    @Test
+    public void busyWorkers_dropFramesAndReturnBuffers() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        FrameAnalysisPool pool = new FrameAnalysisPool(new FrameAnalyzer() {
+            @Override
+            public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+        }, 1);
+        FreeList freeList = new FreeList();
+        pool.start(WIDTH, HEIGHT, freeList);
+        assertEquals(3, freeList.size());      // one worker, plus two
+
+        assertTrue(pool.submit(freeList.take(), 0));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertFalse(pool.submit(freeList.take(), 1));
+        assertFalse(pool.submit(freeList.take(), 2));
+        assertEquals(2, pool.getDroppedCount());
+        assertEquals(2, freeList.size());      // dropped frames' buffers came straight back
+
+        freeList.clear();
+        finish.countDown();
+        assertNotNull("analyzed buffer never came back", freeList.poll(1, TimeUnit.SECONDS));
+        assertEquals(1, pool.getAnalyzedCount());
+        pool.release();
+    }
+
+    @Test
+    public void analyzer_seesFrameSize() throws Exception {
+        final ArrayBlockingQueue<int[]> sizes = new ArrayBlockingQueue<>(1);
+        FrameAnalysisPool pool = new FrameAnalysisPool(new FrameAnalyzer() {
+            @Override
+            public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+                sizes.offer(new int[] {nv21.length, width, height, (int) timestampNanos});
+            }
+        }, 1);
+        FreeList freeList = new FreeList();
+        pool.start(WIDTH, HEIGHT, freeList);
+        pool.submit(freeList.take(), 42);
+        assertArrayEquals(new int[] {WIDTH * HEIGHT * 3 / 2, WIDTH, HEIGHT, 42},
+                sizes.poll(1, TimeUnit.SECONDS));
+        pool.release();
+    }
+
+    @Test
+    public void sizeChange_retiresOldBuffers() throws Exception {
+        FrameAnalysisPool pool = new FrameAnalysisPool(new FrameAnalyzer() {
+            @Override
+            public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+            }
+        }, 1);
+        FreeList oldList = new FreeList();
+        pool.start(WIDTH, HEIGHT, oldList);
+        byte[] old = oldList.take();
+        pool.stop();
+
+        FreeList newList = new FreeList();
+        pool.start(WIDTH * 2, HEIGHT * 2, newList);
+        assertFalse(pool.submit(old, 0));
+        assertEquals(3, newList.size());
+        for (byte[] buffer : newList) {
+            assertEquals(WIDTH * HEIGHT * 6, buffer.length);
+        }
+        pool.release();
+    }
+
+    private static class FreeList extends ArrayBlockingQueue<byte[]>
+            implements FrameAnalysisPool.Recycler {
+        FreeList() {
+            super(16);
+        }
+
+        @Override
+        public void recycle(byte[] buffer) {
+            offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.felix.glcamera.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for SizeSelector, using made-up camera and encoder capabilities.
+ */
+public class SizeSelectorTest {
+    private static final int[] SIZES = {
+            1920, 1080,
+            1440, 1080,
+            1280, 720,
+            960, 720,
+            640, 480,
+            352, 288,
+            176, 144,
+    };
+    private static final int[] FIXED_30 = {30000, 30000};
+    private static final long BUDGET_1080P30 = 1920L * 1080 * 30;
+
+    @Test
+    public void aspectRatio_beatsArea() {
+        // A 4:3 view: 1440x1080 matches, 1920x1080 is bigger but the wrong shape.
+        SizeSelector.Request request = new SizeSelector.Request(1440, 1080, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1440, selection.mPreviewWidth);
+        assertEquals(1080, selection.mPreviewHeight);
+    }
+
+    @Test
+    public void smallView_getsSmallPreview() {
+        SizeSelector.Request request = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1280, selection.mPreviewWidth);
+        assertEquals(720, selection.mPreviewHeight);
+    }
+
+    @Test
+    public void pixelBudget_isRespected() {
+        // A 1080p view, but only 720p30 worth of pixels.
+        SizeSelector.Request request = new SizeSelector.Request(1920, 1080, 30,
+                1280L * 720 * 30, null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1280, selection.mPreviewWidth);
+        assertEquals(720, selection.mPreviewHeight);
+    }
+
+    @Test
+    public void recordSize_isUprightAndAligned() {
+        SizeSelector.Request request = new SizeSelector.Request(1920, 1080, 30, BUDGET_1080P30,
+                new FakeEncoder(1920, 1920, 16, 16, 30));
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1920, selection.mPreviewWidth);
+        assertEquals(1072, selection.mRecordWidth);     // 1080 rounded down to 16
+        assertEquals(1920, selection.mRecordHeight);
+    }
+
+    @Test
+    public void encoderLimits_steerAwayFromUnsupportedSizes() {
+        // The encoder stops at 1280 on the long side.
+        SizeSelector.Request request = new SizeSelector.Request(1920, 1080, 30, BUDGET_1080P30,
+                new FakeEncoder(1280, 1280, 2, 2, 30));
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1280, selection.mPreviewWidth);
+        assertEquals(720, selection.mPreviewHeight);
+        assertEquals(720, selection.mRecordWidth);
+        assertEquals(1280, selection.mRecordHeight);
+    }
+
+    @Test
+    public void encoderFrameRate_steersAwayFromSlowSizes() {
+        // The encoder manages only 15fps above 720p.
+        SizeSelector.Request request = new SizeSelector.Request(1920, 1080, 30, BUDGET_1080P30,
+                new FakeEncoder(1920, 1920, 2, 2, 30) {
+                    @Override
+                    public double getMaxFrameRate(int width, int height) {
+                        return width * height > 1280 * 720 ? 15 : 30;
+                    }
+                });
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, FIXED_30, request);
+        assertEquals(1280, selection.mPreviewWidth);
+    }
+
+    @Test
+    public void fixedRange_beatsVariableAndFaster() {
+        int[] ranges = {15000, 30000, 30000, 30000, 60000, 60000, 7000, 15000};
+        SizeSelector.Request request = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, ranges, request);
+        assertEquals(30000, selection.mFpsMin);
+        assertEquals(30000, selection.mFpsMax);
+        assertEquals(30, selection.getFrameRate());
+    }
+
+    @Test
+    public void previewRange_dropsFurtherThanRecordingRange() {
+        int[] ranges = {5000, 30000, 15000, 30000, 30000, 30000, 7000, 15000};
+        SizeSelector.Request request = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, ranges, request);
+        assertEquals(30000, selection.mFpsMin);
+        assertEquals(15000, selection.mPreviewFpsMin);     // 5 is too slow to look live
+        assertEquals(30000, selection.mPreviewFpsMax);
+    }
+
+    @Test
+    public void previewRange_isRecordingRangeWithoutAlternative() {
+        int[] ranges = {30000, 30000, 15000, 20000};
+        SizeSelector.Request request = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, ranges, request);
+        assertEquals(30000, selection.mPreviewFpsMin);
+        assertEquals(30000, selection.mPreviewFpsMax);
+    }
+
+    @Test
+    public void slowRangeOnly_isStillChosen() {
+        int[] ranges = {7000, 15000, 15000, 15000};
+        SizeSelector.Request request = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, ranges, request);
+        assertEquals(15000, selection.mFpsMin);
+        assertEquals(15000, selection.mFpsMax);
+    }
+
+    @Test
+    public void noRanges_assumesTarget() {
+        SizeSelector.Request request = new SizeSelector.Request(640, 480, 24, BUDGET_1080P30,
+                null);
+        SizeSelector.Selection selection = SizeSelector.select(SIZES, new int[0], request);
+        assertEquals(640, selection.mPreviewWidth);
+        assertEquals(24, selection.getFrameRate());
+    }
+
+    @Test
+    public void selection_roundTripsThroughArray() {
+        SizeSelector.Selection selection = new SizeSelector.Selection(1280, 720, 720, 1280,
+                24000, 30000, 15000, 30000);
+        SizeSelector.Selection copy = SizeSelector.Selection.fromArray(selection.toArray());
+        assertEquals(selection.toString(), copy.toString());
+        assertNull(SizeSelector.Selection.fromArray(new int[3]));
+        SizeSelector.Selection faster = selection.withRecordingRange(30000, 30000);
+        assertEquals(30000, faster.mFpsMin);
+        assertEquals(15000, faster.mPreviewFpsMin);
+    }
+
+    @Test
+    public void requestKey_dependsOnEncoder() {
+        SizeSelector.Request a = new SizeSelector.Request(1280, 720, 30, BUDGET_1080P30,
+                new FakeEncoder(1920, 1920, 2, 2, 30));
+        SizeSelector.Request b = new SizeSelector.Request(1920, 1080, 30, BUDGET_1080P30,
+                new FakeEncoder(1920, 1920, 2, 2, 30) {
+                    @Override
+                    public String getName() {
+                        return "video/hevc";
+                    }
+                });
+        SizeSelector.Request c = new SizeSelector.Request(640, 480, 30, BUDGET_1080P30,
+                new FakeEncoder(1280, 1280, 16, 16, 30));
+        assertNotEquals(a.getKey(), b.getKey());
+        assertEquals(a.getKey(), c.getKey());       // view size is keyed separately
+    }
+
+    /**
+     * Encoder that takes any aligned size up to a maximum in either orientation.
+     */
+    private static class FakeEncoder implements SizeSelector.EncoderLimits {
+        private final int mMaxLong;
+        private final int mMaxShort;
+        private final int mWidthAlignment;
+        private final int mHeightAlignment;
+        private final double mMaxFrameRate;
+
+        FakeEncoder(int maxLong, int maxShort, int widthAlignment, int heightAlignment,
+                double maxFrameRate) {
+            mMaxLong = maxLong;
+            mMaxShort = maxShort;
+            mWidthAlignment = widthAlignment;
+            mHeightAlignment = heightAlignment;
+            mMaxFrameRate = maxFrameRate;
+        }
+
+        @Override
+        public String getName() {
+            return "video/avc";
+        }
+
+        @Override
+        public boolean isSizeSupported(int width, int height) {
+            return width % mWidthAlignment == 0 && height % mHeightAlignment == 0
+                    && Math.max(width, height) <= mMaxLong && Math.min(width, height) <= mMaxShort;
+        }
+
+        @Override
+        public int getWidthAlignment() {
+            return mWidthAlignment;
+        }
+
+        @Override
+        public int getHeightAlignment() {
+            return mHeightAlignment;
+        }
+
+        @Override
+        public double getMaxFrameRate(int width, int height) {
+            return mMaxFrameRate;
+        }
+    }
+}
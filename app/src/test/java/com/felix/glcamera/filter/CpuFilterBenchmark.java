@@ -0,0 +1,69 @@
+package com.felix.glcamera.filter;
+
+import com.felix.glcamera.FilterType;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares single-threaded and fork-join throughput of the CPU filter engine on 1080p
+ * frames.  Not a test; run main() from the IDE, or with the unit test classpath:
+ * <pre>
+ * java -cp ... com.felix.glcamera.filter.CpuFilterBenchmark [seconds per measurement]
+ * </pre>
+ */
+public class CpuFilterBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final FilterType[] FILTERS = {
+            FilterType.FILTER_BLACK_WHITE, FilterType.FILTER_SHARPEN, FilterType.FILTER_BLUR,
+            FilterType.FILTER_FILM, FilterType.FILTER_SOFT};
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3.0;
+        int[] frame = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = 0xff000000 | ((i * 0x9e3779b1) >>> 8);      // noise, so no filter gets off easy
+        }
+        CpuFilterEngine serial = new CpuFilterEngine(null);
+        CpuFilterEngine parallel = new CpuFilterEngine(ForkJoinPool.commonPool());
+        System.out.println(WIDTH + "x" + HEIGHT + ", " + ForkJoinPool.commonPool().getParallelism()
+                + " workers");
+        System.out.println(String.format("%-20s %12s %12s %8s", "filter", "serial fps",
+                "parallel fps", "speedup"));
+        for (FilterType filterType : FILTERS) {
+            List<FilterPass> passes = FilterType.createPasses(filterType);
+            double serialRate = measure(serial, passes, frame, seconds);
+            double parallelRate = measure(parallel, passes, frame, seconds);
+            System.out.println(String.format("%-20s %12.2f %12.2f %7.1fx", filterType.name(),
+                    serialRate, parallelRate, parallelRate / serialRate));
+        }
+    }
+
+    /**
+     * Returns frames per second, after a warmup of the same length so the JIT has settled.
+     */
+    private static double measure(CpuFilterEngine engine, List<FilterPass> passes, int[] frame,
+            double seconds) {
+        run(engine, passes, frame, seconds);
+        return run(engine, passes, frame, seconds);
+    }
+
+    private static double run(CpuFilterEngine engine, List<FilterPass> passes, int[] frame,
+            double seconds) {
+        long budget = (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long elapsed;
+        int frames = 0;
+        int sink = 0;
+        do {
+            sink += engine.apply(passes, frame, WIDTH, HEIGHT)[frames % frame.length];
+            frames++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budget);
+        if (sink == 42) {
+            System.out.print("");   // keeps the results live
+        }
+        return frames / (elapsed / 1e9);
+    }
+}
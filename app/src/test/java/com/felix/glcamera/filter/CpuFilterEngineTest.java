@@ -0,0 +1,381 @@
+package com.felix.glcamera.filter;
+
+import com.felix.glcamera.FilterType;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the CPU filter engine, which stands in for the GLSL in CI.
+ * <p>
+ * The golden images in src/test/resources/golden are the engine's output for each filter.
+ * After an intended change to a filter, regenerate them with -Dgolden.update=true (run from
+ * the app module) and check the new images by eye before committing them.  Since they come
+ * from the engine, they only catch changes; the per-kernel tests check tiny images against
+ * values worked out by hand.
+ */
+public class CpuFilterEngineTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int TOLERANCE = 2;     // per channel, out of 255
+    private static final String GOLDEN_DIR = "src/test/resources/golden";
+
+    @Test
+    public void filters_matchGoldenImages() throws Exception {
+        boolean update = Boolean.getBoolean("golden.update");
+        int[] input = createTestImage();
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        for (FilterType filterType : FilterType.values()) {
+            if (FilterType.getLutAsset(filterType) != null) {
+                continue;       // tables are assets, covered by lut_identityTable()
+            }
+            int[] output = engine.apply(FilterType.createPasses(filterType), input, WIDTH, HEIGHT);
+            String name = filterType.name().toLowerCase() + ".png";
+            if (update) {
+                writeGolden(name, output);
+            } else {
+                assertSimilar(name, readGolden(name), output, TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void noPasses_returnsInput() {
+        int[] input = createTestImage();
+        int[] output = new CpuFilterEngine(null).apply(
+                FilterType.createPasses(FilterType.FILTER_NORMAL), input, WIDTH, HEIGHT);
+        assertSimilar("copy", input, output, 0);
+    }
+
+    @Test
+    public void blackWhite_usesLumaWeights() {
+        int[] input = {0xffff0000, 0xff00ff00, 0xff0000ff, 0xff808080};
+        int[] output = new CpuFilterEngine(null).apply(
+                FilterType.createPasses(FilterType.FILTER_BLACK_WHITE), input, 4, 1);
+        float[] matrix = ColorMatrixPass.grayscale().getMatrix();
+        for (int channel = 0; channel < 3; channel++) {
+            int expected = Math.round(matrix[channel * 4] * 255f);
+            assertGray(expected, output[channel]);
+        }
+        assertGray(0x80, output[3]);
+    }
+
+    @Test
+    public void kernel_weightsTapsByPosition() {
+        // Left neighbor and center, half each, plus 0.2 (51/255).
+        float[] kernel = {
+                0f, 0f, 0f,
+                0.5f, 0.5f, 0f,
+                0f, 0f, 0f};
+        int[] input = {0xff000000, 0xff640000, 0xffc80000};       // red 0, 100, 200
+        int[] output = new CpuFilterEngine(null).apply(
+                Collections.<FilterPass>singletonList(new KernelPass(kernel, 0.2f)), input, 3, 1);
+        // The left edge clamps: 0.5 * 0 + 0.5 * 0.
+        assertRgb(51, 51, 51, output[0]);
+        assertRgb(50 + 51, 51, 51, output[1]);
+        assertRgb(150 + 51, 51, 51, output[2]);
+    }
+
+    @Test
+    public void convolution1d_runsAlongItsAxis() {
+        float[] weights = {0.25f, 0.5f, 0.25f};
+        int[] input = {0xff000000, 0xff640000, 0xffc80000};       // one column: 0, 100, 200
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        int[] vertical = engine.apply(Collections.<FilterPass>singletonList(
+                new Convolution1dPass(weights, false, 0f)), input, 1, 3);
+        assertRgb(25, 0, 0, vertical[0]);       // 0.75 * 0 + 0.25 * 100, top clamped
+        assertRgb(100, 0, 0, vertical[1]);      // 0.25 * 0 + 0.5 * 100 + 0.25 * 200
+        assertRgb(175, 0, 0, vertical[2]);      // 0.25 * 100 + 0.75 * 200, bottom clamped
+        // Across a single column every tap clamps to the pixel itself.
+        int[] horizontal = engine.apply(Collections.<FilterPass>singletonList(
+                new Convolution1dPass(weights, true, 0f)), input, 1, 3);
+        assertSimilar("horizontal", input, horizontal, 0);
+    }
+
+    @Test
+    public void dualFilter_downsampleTaps() {
+        // 2x2, red 0 80 / 160 240.  At (0, 0) the taps are the pixel (x4), the mean of all
+        // four (120), the top pair (40), the left pair (80), and the pixel again, clamped:
+        // (0 + 120 + 40 + 80 + 0) / 8 = 30.  At (1, 1): (960 + 120 + 240 + 160 + 200) / 8.
+        // Scale 1, so the taps are checked without the resize.
+        int[] output = new CpuFilterEngine(null).apply(Collections.<FilterPass>singletonList(
+                new DualFilterPass(false, 1f, 1f)), createQuad(), 2, 2);
+        assertRgb(30, 0, 0, output[0]);
+        assertRgb(210, 0, 0, output[3]);
+    }
+
+    @Test
+    public void dualFilter_upsampleTaps() {
+        // At (0, 0), going round from the left: 0, 80 x2, 160, 120 x2, 80, 40 x2, 0, 0 x2.
+        // (0 + 160 + 160 + 240 + 80 + 80 + 0 + 0) / 12 = 60.
+        int[] output = new CpuFilterEngine(null).apply(Collections.<FilterPass>singletonList(
+                new DualFilterPass(true, 1f, 1f)), createQuad(), 2, 2);
+        assertRgb(60, 0, 0, output[0]);
+    }
+
+    @Test
+    public void colorMatrix_swapsAndOffsets() {
+        float[] swapRedBlue = {         // column-major: column 0 is where red goes
+                0f, 0f, 1f, 0f,
+                0f, 1f, 0f, 0f,
+                1f, 0f, 0f, 0f,
+                0f, 0f, 0f, 1f};
+        float[] offset = {0f, 0.2f, 0f, 0f};
+        int[] output = new CpuFilterEngine(null).apply(
+                Collections.<FilterPass>singletonList(new ColorMatrixPass(swapRedBlue, offset)),
+                new int[] {0xff4010c0}, 1, 1);
+        assertRgb(0xc0, 0x10 + 51, 0x40, output[0]);
+    }
+
+    @Test
+    public void vignette_darkensByDistance() {
+        int[] input = new int[9];
+        Arrays.fill(input, 0xffc8c8c8);     // 200 gray
+        int[] output = new CpuFilterEngine(null).apply(
+                Collections.<FilterPass>singletonList(new VignettePass(0.5f, 0f)), input, 3, 3);
+        // Center: d = 0, untouched.
+        assertRgb(200, 200, 200, output[4]);
+        // Edge: d = 1/3, t = d / 0.7071 = 0.4714, smoothstep = t^2 (3 - 2t) = 0.4571,
+        // 200 * (1 - 0.5 * 0.4571) = 154.3.
+        assertRgb(154, 154, 154, output[1]);
+        // Corner: d = 0.4714, t = 0.6667, smoothstep = 0.7407, 200 * 0.6296 = 125.9.
+        assertRgb(126, 126, 126, output[0]);
+    }
+
+    @Test
+    public void lut_invertingTable() {
+        // 4 levels per channel in 2x2 tiles of 4x4: an 8x8 table that maps c to 255 - c.
+        int size = 4;
+        int tiles = 2;
+        int dim = size * tiles;
+        int[] table = new int[dim * dim];
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    int x = (b % tiles) * size + r;
+                    int y = (b / tiles) * size + g;
+                    table[y * dim + x] = 0xff000000 | ((255 - level(r, size)) << 16)
+                            | ((255 - level(g, size)) << 8) | (255 - level(b, size));
+                }
+            }
+        }
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        engine.setLutTable(table, dim);
+        int[] input = {0xff2080f0};
+        int[] full = engine.apply(
+                Collections.<FilterPass>singletonList(new LutPass(1f)), input, 1, 1);
+        assertRgb(255 - 0x20, 255 - 0x80, 255 - 0xf0, full[0]);
+        // A quarter of the way: 32 + 191 / 4, 128 - 1 / 4, 240 - 225 / 4.
+        int[] quarter = engine.apply(
+                Collections.<FilterPass>singletonList(new LutPass(0.25f)), input, 1, 1);
+        assertRgb(80, 128, 184, quarter[0]);
+    }
+
+    @Test
+    public void blurs_keepFlatImageFlat() {
+        int[] input = new int[WIDTH * HEIGHT];
+        Arrays.fill(input, 0xff336699);
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        FilterType[] blurs = {FilterType.FILTER_BLUR, FilterType.FILTER_SOFT};
+        for (FilterType filterType : blurs) {
+            List<FilterPass> passes = new ArrayList<FilterPass>();
+            for (FilterPass pass : FilterType.createPasses(filterType)) {
+                if (!(pass instanceof VignettePass)) {
+                    passes.add(pass);
+                }
+            }
+            assertSimilar(filterType.name(), input, engine.apply(passes, input, WIDTH, HEIGHT), 1);
+        }
+    }
+
+    @Test
+    public void separableBlur_matchesFullKernel() {
+        int[] input = createTestImage();
+        float[] weights = Convolution.gaussian(2, 1.2f);
+        float[] kernel = new float[25];
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 5; x++) {
+                kernel[y * 5 + x] = weights[y] * weights[x];
+            }
+        }
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        List<FilterPass> separable = Convolution.createPasses(kernel, 5, 0f);
+        assertEquals(2, separable.size());
+        List<FilterPass> direct =
+                Collections.<FilterPass>singletonList(new KernelPass(5, kernel, 0f));
+        // The separable version rounds to 8 bits between its two passes.
+        assertSimilar("separable", engine.apply(direct, input, WIDTH, HEIGHT),
+                engine.apply(separable, input, WIDTH, HEIGHT), 1);
+    }
+
+    @Test
+    public void signedSeparableKernel_matchesFullKernel() {
+        int[] input = createTestImage();
+        // A vertical smoothing times a horizontal derivative: half the results are negative.
+        float[] smooth = {1f / 16, 4f / 16, 6f / 16, 4f / 16, 1f / 16};
+        float[] derivative = {-0.25f, -0.5f, 0f, 0.5f, 0.25f};
+        float[] kernel = outerProduct(smooth, derivative);
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        List<FilterPass> separable = Convolution.createPasses(kernel, 5, 0.5f);
+        assertEquals(2, separable.size());
+        // The signed half must not run first, or the framebuffer clamps it.
+        assertFalse(((Convolution1dPass) separable.get(0)).isHorizontal());
+        List<FilterPass> direct =
+                Collections.<FilterPass>singletonList(new KernelPass(5, kernel, 0.5f));
+        assertSimilar("signed separable", engine.apply(direct, input, WIDTH, HEIGHT),
+                engine.apply(separable, input, WIDTH, HEIGHT), 1);
+    }
+
+    @Test
+    public void signedFactorsBothWays_runDirectly() {
+        float[] derivative = {-0.25f, -0.5f, 0f, 0.5f, 0.25f};
+        List<FilterPass> passes =
+                Convolution.createPasses(outerProduct(derivative, derivative), 5, 0.5f);
+        assertEquals(1, passes.size());
+        assertTrue(passes.get(0) instanceof KernelPass);
+    }
+
+    @Test
+    public void parallel_matchesSingleThreaded() {
+        int[] input = createTestImage();
+        CpuFilterEngine serial = new CpuFilterEngine(null);
+        CpuFilterEngine parallel = new CpuFilterEngine(new ForkJoinPool(4));
+        for (FilterType filterType : FilterType.values()) {
+            List<FilterPass> passes = FilterType.createPasses(filterType);
+            assertSimilar(filterType.name(), serial.apply(passes, input, WIDTH, HEIGHT),
+                    parallel.apply(passes, input, WIDTH, HEIGHT), 0);
+        }
+    }
+
+    @Test
+    public void lut_identityTable() {
+        int size = 16;
+        int tiles = 4;
+        int dim = size * tiles;
+        int[] table = new int[dim * dim];
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    int x = (b % tiles) * size + r;
+                    int y = (b / tiles) * size + g;
+                    table[y * dim + x] = 0xff000000 | (level(r, size) << 16)
+                            | (level(g, size) << 8) | level(b, size);
+                }
+            }
+        }
+        int[] input = createTestImage();
+        CpuFilterEngine engine = new CpuFilterEngine(null);
+        List<FilterPass> passes = FilterType.createPasses(FilterType.FILTER_LUT_FADED);
+        // Without a table the pass is skipped, as it is on the GPU.
+        assertSimilar("no table", input, engine.apply(passes, input, WIDTH, HEIGHT), 0);
+        engine.setLutTable(table, dim);
+        // Interpolating between 16 levels is exact for a linear table, up to rounding.
+        assertSimilar("identity table", input, engine.apply(passes, input, WIDTH, HEIGHT), 1);
+    }
+
+    private static float[] outerProduct(float[] column, float[] row) {
+        float[] kernel = new float[column.length * row.length];
+        for (int y = 0; y < column.length; y++) {
+            for (int x = 0; x < row.length; x++) {
+                kernel[y * row.length + x] = column[y] * row[x];
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * 2x2, red only: 0, 80 on the first row, 160, 240 on the second.
+     */
+    private static int[] createQuad() {
+        return new int[] {0xff000000, 0xff500000, 0xffa00000, 0xfff00000};
+    }
+
+    private static void assertRgb(int red, int green, int blue, int pixel) {
+        String name = Integer.toHexString(pixel);
+        assertEquals(name, 0xff, pixel >>> 24);
+        assertEquals(name, red, (pixel >> 16) & 0xff);
+        assertEquals(name, green, (pixel >> 8) & 0xff);
+        assertEquals(name, blue, pixel & 0xff);
+    }
+
+    private static int level(int i, int size) {
+        return Math.round(i * 255f / (size - 1));
+    }
+
+    /**
+     * Gradients in red and green, a blue ramp down the diagonal, and a hard-edged square for
+     * the edge filters.
+     */
+    private static int[] createTestImage() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / (WIDTH - 1);
+                int g = y * 255 / (HEIGHT - 1);
+                int b = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+                if (x >= 20 && x < 40 && y >= 14 && y < 34) {
+                    r = 255 - r;
+                    g = 255 - g;
+                }
+                argb[y * WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    private static void assertGray(int expected, int pixel) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            assertEquals(Integer.toHexString(pixel), expected, (pixel >> shift) & 0xff, 1);
+        }
+    }
+
+    private static void assertSimilar(String name, int[] expected, int[] actual, int tolerance) {
+        assertEquals(name, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int diff = Math.abs(((expected[i] >> shift) & 0xff)
+                        - ((actual[i] >> shift) & 0xff));
+                if (diff > tolerance) {
+                    fail(name + ": pixel (" + i % WIDTH + ", " + i / WIDTH + ") is "
+                            + Integer.toHexString(actual[i]) + ", expected "
+                            + Integer.toHexString(expected[i]));
+                }
+            }
+        }
+    }
+
+    private static int[] readGolden(String name) throws Exception {
+        InputStream in = CpuFilterEngineTest.class.getResourceAsStream("/golden/" + name);
+        assertNotNull("missing golden image " + name + "; run with -Dgolden.update=true", in);
+        try {
+            BufferedImage image = ImageIO.read(in);
+            assertEquals(WIDTH, image.getWidth());
+            assertEquals(HEIGHT, image.getHeight());
+            return image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeGolden(String name, int[] argb) throws Exception {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT, argb, 0, WIDTH);
+        File dir = new File(GOLDEN_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("Unable to create " + dir.getAbsolutePath());
+        }
+        ImageIO.write(image, "png", new File(dir, name));
+    }
+}
@@ -0,0 +1,89 @@
+package com.felix.glcamera.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the bookkeeping behind FramebufferPool.
+ */
+public class SizedPoolTest {
+
+    private static class CountingPool extends SizedPool<int[]> {
+        int mCreated;
+        int mDestroyed;
+
+        @Override
+        protected int[] create(int width, int height) {
+            mCreated++;
+            return new int[] {width, height};
+        }
+
+        @Override
+        protected void destroy(int[] item, boolean doEglCleanup) {
+            mDestroyed++;
+        }
+    }
+
+    @Test
+    public void acquire_reusesFreeItemOfSameSize() {
+        CountingPool pool = new CountingPool();
+        int[] first = pool.acquire(64, 48);
+        pool.release(first);
+        assertSame(first, pool.acquire(64, 48));
+        assertNotSame(first, pool.acquire(64, 48));
+        assertEquals(2, pool.mCreated);
+    }
+
+    @Test
+    public void endFrame_keepsSizesUsedEveryFrame() {
+        CountingPool pool = new CountingPool();
+        for (int frame = 0; frame < 10; frame++) {
+            int[] a = pool.acquire(64, 48);
+            int[] b = pool.acquire(32, 24);
+            pool.release(a);
+            pool.release(b);
+            pool.endFrame();
+        }
+        assertEquals(2, pool.mCreated);
+        assertEquals(0, pool.mDestroyed);
+    }
+
+    @Test
+    public void endFrame_evictsSizeNotUsedInLastFrame() {
+        CountingPool pool = new CountingPool();
+        pool.release(pool.acquire(64, 48));
+        pool.endFrame();
+        // Resized: the old size isn't asked for any more.
+        pool.release(pool.acquire(128, 96));
+        pool.endFrame();
+        assertEquals(1, pool.mDestroyed);
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void endFrame_keepsItemsStillInUse() {
+        CountingPool pool = new CountingPool();
+        int[] held = pool.acquire(64, 48);
+        pool.endFrame();
+        pool.endFrame();
+        assertEquals(0, pool.mDestroyed);
+        pool.release(held);
+        assertSame(held, pool.acquire(64, 48));
+    }
+
+    @Test
+    public void clear_destroysEverything() {
+        CountingPool pool = new CountingPool();
+        pool.acquire(64, 48);
+        pool.release(pool.acquire(32, 24));
+        pool.clear(true);
+        assertEquals(2, pool.mDestroyed);
+        assertEquals(0, pool.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void release_rejectsForeignItem() {
+        new CountingPool().release(new int[2]);
+    }
+}
@@ -0,0 +1,50 @@
+package com.felix.glcamera.gles;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the readback buffer pool.
+ */
+public class DirectBufferPoolTest {
+
+    @Test
+    public void acquire_returnsNativeDirectBufferOfSize() {
+        ByteBuffer buffer = new DirectBufferPool(2).acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+        assertEquals(0, buffer.position());
+        assertEquals(100, buffer.limit());
+    }
+
+    @Test
+    public void release_reusesSmallestThatFits() {
+        DirectBufferPool pool = new DirectBufferPool(2);
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(400);
+        pool.release(large);
+        pool.release(small);
+
+        ByteBuffer buffer = pool.acquire(50);
+        assertSame(small, buffer);
+        assertEquals(50, buffer.limit());
+        assertSame(large, pool.acquire(200));
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void release_whenFull_keepsLargest() {
+        DirectBufferPool pool = new DirectBufferPool(1);
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(400);
+        pool.release(small);
+        pool.release(large);
+
+        assertEquals(1, pool.getFreeCount());
+        assertSame(large, pool.acquire(100));
+    }
+}
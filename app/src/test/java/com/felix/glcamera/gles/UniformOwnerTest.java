@@ -0,0 +1,43 @@
+package com.felix.glcamera.gles;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host-side tests for the per-program uniform ownership.
+ */
+public class UniformOwnerTest {
+
+    @Test
+    public void claim_sameOwnerSkipsUpload() {
+        UniformOwner owner = new UniformOwner();
+        Object drawer = new Object();
+        assertTrue(owner.claim(drawer));
+        assertFalse(owner.claim(drawer));
+    }
+
+    @Test
+    public void claim_otherThreadsDrawerForcesUpload() throws InterruptedException {
+        final UniformOwner owner = new UniformOwner();
+        Object preview = new Object();
+        assertTrue(owner.claim(preview));
+        assertFalse(owner.claim(preview));
+
+        // The encoder's drawer uses the same program from its own context and thread.
+        final AtomicBoolean encoderUploads = new AtomicBoolean();
+        Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encoderUploads.set(owner.claim(new Object()));
+            }
+        });
+        encoder.start();
+        encoder.join();
+
+        assertTrue(encoderUploads.get());
+        assertTrue(owner.claim(preview));
+    }
+}